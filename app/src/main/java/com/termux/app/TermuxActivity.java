@@ -49,6 +49,7 @@ import android.widget.Toast;
 import com.termux.R;
 import com.termux.terminal.EmulatorDebug;
 import com.termux.terminal.TerminalColors;
+import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalSession;
 import com.termux.terminal.TerminalSession.SessionChangedCallback;
 import com.termux.terminal.TextStyle;
@@ -171,7 +172,9 @@ public final class TermuxActivity extends Activity implements ServiceConnection
             TerminalColors.COLOR_SCHEME.updateWith(props);
             TerminalSession session = getCurrentTermSession();
             if (session != null && session.getEmulator() != null) {
-                session.getEmulator().mColors.reset();
+                synchronized (session.getEmulator()) {
+                    session.getEmulator().mColors.reset();
+                }
             }
             updateBackgroundColor();
 
@@ -618,6 +621,15 @@ public final class TermuxActivity extends Activity implements ServiceConnection
 
     /** Try switching to session and note about it, but do nothing if already displaying the session. */
     void switchToSession(TerminalSession session) {
+        // Sessions get their emulator when first attached to the view.
+        if (session.getEmulator() == null) {
+            session.setUnicodeVersion(mSettings.mUnicodeVersion);
+            session.setTranscriptRows(mSettings.mTranscriptRows);
+            if (mSettings.mTranscriptMemoryRows > 0 && mTermService != null) {
+                session.setTranscriptSpill(mTermService.getTranscriptSpillDirectory(), mSettings.mTranscriptMemoryRows);
+            }
+        }
+        if (mTermService != null) mTermService.onSessionViewed(session);
         if (mTerminalView.attachSession(session)) {
             noteSessionInfo();
             updateBackgroundColor();
@@ -765,7 +777,11 @@ public final class TermuxActivity extends Activity implements ServiceConnection
     }
 
     void showUrlSelection() {
-        String text = getCurrentTermSession().getEmulator().getScreen().getTranscriptTextWithFullLinesJoined();
+        TerminalEmulator emulator = getCurrentTermSession().getEmulator();
+        String text;
+        synchronized (emulator) {
+            text = emulator.getScreen().getTranscriptTextWithFullLinesJoined();
+        }
         LinkedHashSet<CharSequence> urlSet = extractUrls(text);
         if (urlSet.isEmpty()) {
             new AlertDialog.Builder(this).setMessage(R.string.select_url_no_found).show();
@@ -815,7 +831,10 @@ public final class TermuxActivity extends Activity implements ServiceConnection
                 if (session != null) {
                     Intent intent = new Intent(Intent.ACTION_SEND);
                     intent.setType("text/plain");
-                    String transcriptText = session.getEmulator().getScreen().getTranscriptTextWithoutJoinedLines().trim();
+                    String transcriptText;
+                    synchronized (session.getEmulator()) {
+                        transcriptText = session.getEmulator().getScreen().getTranscriptTextWithoutJoinedLines().trim();
+                    }
                     // See https://github.com/termux/termux-app/issues/1166.
                     final int MAX_LENGTH = 100_000;
                     if (transcriptText.length() > MAX_LENGTH) {
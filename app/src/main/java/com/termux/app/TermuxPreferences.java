@@ -8,6 +8,7 @@ import android.util.Log;
 import android.util.TypedValue;
 import android.widget.Toast;
 import com.termux.terminal.TerminalSession;
+import com.termux.terminal.WcWidth;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -58,6 +59,9 @@ final class TermuxPreferences {
     private final int MIN_FONTSIZE;
     private static final int MAX_FONTSIZE = 256;
 
+    private static final int MIN_TRANSCRIPT_ROWS = 100;
+    private static final int MAX_TRANSCRIPT_ROWS = 2000000;
+
     private static final String SHOW_EXTRA_KEYS_KEY = "show_extra_keys";
     private static final String FONTSIZE_KEY = "fontsize";
     private static final String CURRENT_SESSION_KEY = "current_session";
@@ -74,6 +78,14 @@ final class TermuxPreferences {
     boolean mDisableVolumeVirtualKeys;
     boolean mShowExtraKeys;
 
+    /** The Unicode version for the widths of characters in new sessions, matching the wcwidth(3) of the packages. */
+    String mUnicodeVersion = WcWidth.DEFAULT_UNICODE_VERSION;
+
+    /** The rows of history new sessions keep in memory before spilling older ones to files, or 0 to not spill. */
+    int mTranscriptMemoryRows;
+    /** The rows of history new sessions keep, larger by default when spilling them to files. */
+    int mTranscriptRows = TerminalSession.DEFAULT_TRANSCRIPT_ROWS;
+
     ExtraKeysInfos mExtraKeys;
 
     final List<KeyboardShortcut> shortcuts = new ArrayList<>();
@@ -218,6 +230,35 @@ final class TermuxPreferences {
         mBackIsEscape = "escape".equals(props.getProperty("back-key", "back"));
         mDisableVolumeVirtualKeys = "volume".equals(props.getProperty("volume-keys", "virtual"));
 
+        String unicodeVersion = props.getProperty("unicode-version", WcWidth.DEFAULT_UNICODE_VERSION).trim();
+        try {
+            WcWidth.forUnicodeVersion(unicodeVersion);
+            mUnicodeVersion = unicodeVersion;
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(context, "Invalid unicode-version property: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            mUnicodeVersion = WcWidth.DEFAULT_UNICODE_VERSION;
+        }
+
+        String transcriptMemoryRows = props.getProperty("transcript-memory-rows", "0").trim();
+        try {
+            mTranscriptMemoryRows = Integer.parseInt(transcriptMemoryRows);
+            if (mTranscriptMemoryRows < 0) throw new NumberFormatException("Negative: " + transcriptMemoryRows);
+        } catch (NumberFormatException e) {
+            Toast.makeText(context, "Invalid transcript-memory-rows property: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            mTranscriptMemoryRows = 0;
+        }
+
+        final int defaultTranscriptRows = mTranscriptMemoryRows > 0 ? MAX_TRANSCRIPT_ROWS : TerminalSession.DEFAULT_TRANSCRIPT_ROWS;
+        String transcriptRows = props.getProperty("terminal-transcript-rows", Integer.toString(defaultTranscriptRows)).trim();
+        try {
+            mTranscriptRows = Integer.parseInt(transcriptRows);
+            if (mTranscriptRows < MIN_TRANSCRIPT_ROWS || mTranscriptRows > MAX_TRANSCRIPT_ROWS)
+                throw new NumberFormatException("Not between " + MIN_TRANSCRIPT_ROWS + " and " + MAX_TRANSCRIPT_ROWS + ": " + transcriptRows);
+        } catch (NumberFormatException e) {
+            Toast.makeText(context, "Invalid terminal-transcript-rows property: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            mTranscriptRows = defaultTranscriptRows;
+        }
+
         shortcuts.clear();
         parseAction("shortcut.create-session", SHORTCUT_ACTION_CREATE_SESSION, props);
         parseAction("shortcut.next-session", SHORTCUT_ACTION_NEXT_SESSION, props);
@@ -1,6 +1,7 @@
 package com.termux.app;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -17,6 +18,7 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import android.widget.ArrayAdapter;
@@ -84,6 +86,15 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
     final List<BackgroundJob> mBackgroundTasks = new ArrayList<>();
 
+    /** How often to check that transcripts fit in {@link #mTranscriptMemoryBudget} as sessions produce output. */
+    private static final int TRANSCRIPT_BUDGET_CHECK_INTERVAL_MILLIS = 5000;
+
+    /** The sessions, least recently viewed first, which is the order transcripts are shrunk in. */
+    private final List<TerminalSession> mSessionsByViewTime = new ArrayList<>();
+    /** The bytes of memory all transcripts may take, a part of the heap size of the app. */
+    private long mTranscriptMemoryBudget;
+    private long mLastTranscriptBudgetCheckTime;
+
     /** Note that the service may often outlive the activity, so need to clear this reference. */
     SessionChangedCallback mSessionChangeCallback;
 
@@ -187,6 +198,25 @@ public final class TermuxService extends Service implements SessionChangedCallba
     public void onCreate() {
         setupNotificationChannel();
         startForeground(NOTIFICATION_ID, buildNotification());
+
+        int memoryClassMegabytes = ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+        mTranscriptMemoryBudget = memoryClassMegabytes * 1024L * 1024L / 4;
+
+        // Transcripts spilled by sessions of a previous process are of no use anymore.
+        File transcriptSpillDir = getTranscriptSpillDirectory();
+        if (transcriptSpillDir.exists()) {
+            try {
+                TermuxInstaller.deleteFolder(transcriptSpillDir);
+            } catch (Exception e) {
+                Log.e(EmulatorDebug.LOG_TAG, "Error while removing file at " + transcriptSpillDir.getAbsolutePath(), e);
+            }
+        }
+        transcriptSpillDir.mkdirs();
+    }
+
+    /** The directory sessions spill their transcripts to, see {@link TerminalSession#setTranscriptSpill(File, int)}. */
+    File getTranscriptSpillDirectory() {
+        return new File(getCacheDir(), "transcripts");
     }
 
     /** Update the shown foreground service notification after making any changes that affect it. */
@@ -271,8 +301,10 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
         stopForeground(true);
 
-        for (int i = 0; i < mTerminalSessions.size(); i++)
+        for (int i = 0; i < mTerminalSessions.size(); i++) {
             mTerminalSessions.get(i).finishIfRunning();
+            mTerminalSessions.get(i).clearTranscript();
+        }
     }
 
     public List<TerminalSession> getSessions() {
@@ -317,6 +349,7 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
         TerminalSession session = new TerminalSession(executablePath, cwd, args, env, this);
         mTerminalSessions.add(session);
+        mSessionsByViewTime.add(0, session);
         updateNotification();
 
         // Make sure that terminal styling is always applied.
@@ -330,6 +363,8 @@ public final class TermuxService extends Service implements SessionChangedCallba
     public int removeTermSession(TerminalSession sessionToRemove) {
         int indexOfRemoved = mTerminalSessions.indexOf(sessionToRemove);
         mTerminalSessions.remove(indexOfRemoved);
+        mSessionsByViewTime.remove(sessionToRemove);
+        sessionToRemove.clearTranscript();
         if (mTerminalSessions.isEmpty() && mWakeLock == null) {
             // Finish if there are no sessions left and the wake lock is not held, otherwise keep the service alive if
             // holding wake lock since there may be daemon processes (e.g. sshd) running.
@@ -354,6 +389,51 @@ public final class TermuxService extends Service implements SessionChangedCallba
     @Override
     public void onTextChanged(TerminalSession changedSession) {
         if (mSessionChangeCallback != null) mSessionChangeCallback.onTextChanged(changedSession);
+        if (SystemClock.uptimeMillis() - mLastTranscriptBudgetCheckTime >= TRANSCRIPT_BUDGET_CHECK_INTERVAL_MILLIS) {
+            shrinkTranscripts(mTranscriptMemoryBudget);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        switch (level) {
+            case TRIM_MEMORY_RUNNING_CRITICAL:
+            case TRIM_MEMORY_COMPLETE:
+                shrinkTranscripts(0);
+                break;
+            case TRIM_MEMORY_RUNNING_LOW:
+            case TRIM_MEMORY_MODERATE:
+                shrinkTranscripts(mTranscriptMemoryBudget / 2);
+                break;
+        }
+    }
+
+    /** Note that a session is shown, so that its transcript is the last one to be shrunk. */
+    void onSessionViewed(TerminalSession session) {
+        if (mSessionsByViewTime.remove(session)) mSessionsByViewTime.add(session);
+    }
+
+    /**
+     * Shrink the transcripts of the least recently viewed sessions until all of them take no more than a number of
+     * bytes of memory, or cannot be shrunk further. The transcript of the session viewed last is left as it is.
+     */
+    private void shrinkTranscripts(long budget) {
+        mLastTranscriptBudgetCheckTime = SystemClock.uptimeMillis();
+        final int sessions = mSessionsByViewTime.size();
+        final long[] sessionMemoryUsage = new long[sessions];
+        long memoryUsage = 0;
+        for (int i = 0; i < sessions; i++) {
+            sessionMemoryUsage[i] = mSessionsByViewTime.get(i).getMemoryUsage();
+            memoryUsage += sessionMemoryUsage[i];
+        }
+        for (int i = 0; i < sessions - 1 && memoryUsage > budget; i++) {
+            final TerminalSession session = mSessionsByViewTime.get(i);
+            while (memoryUsage > budget && session.shrinkTranscript()) {
+                final long shrunkMemoryUsage = session.getMemoryUsage();
+                memoryUsage -= sessionMemoryUsage[i] - shrunkMemoryUsage;
+                sessionMemoryUsage[i] = shrunkMemoryUsage;
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,50 @@
+package com.termux.terminal.benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Runs the benchmarks and prints the throughput of each one in MB/s (10^6 bytes per second) and ns/byte.
+ * <p>
+ * Arguments are passed on to JMH, so for instance "-p workload=CJK -p screenSize=80x24" runs a single configuration
+ * and "WcWidthBenchmark" runs {@link WcWidthBenchmark} instead of {@link EmulatorBenchmark}.
+ */
+public final class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+        if (commandLineOptions.getIncludes().isEmpty()) options.include(EmulatorBenchmark.class.getName());
+
+        Collection<RunResult> results = new Runner(options.build()).run();
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-12s %-9s %10s %12s %10s %10s", "Workload", "Screen",
+            "Transcript", "Bytes", "MB/s", "ns/byte"));
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            if (!params.getBenchmark().startsWith(EmulatorBenchmark.class.getName())) continue;
+            String screenSize = params.getParam("screenSize");
+            int[] size = EmulatorBenchmark.parseScreenSize(screenSize);
+            Workload workload = Workload.valueOf(params.getParam("workload"));
+            long bytes = workload.bytes(size[0], size[1]).length;
+
+            double score = result.getPrimaryResult().getScore();
+            double nanosPerUnit = params.getTimeUnit().toNanos(1);
+            double nanosPerPass = (params.getMode() == Mode.Throughput)
+                ? nanosPerUnit / score : score * nanosPerUnit;
+            double nanosPerByte = nanosPerPass / bytes;
+            System.out.println(String.format(Locale.ROOT, "%-12s %-9s %10s %12d %10.1f %10.2f", workload, screenSize,
+                params.getParam("transcriptRows"), bytes, 1000 / nanosPerByte, nanosPerByte));
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.termux.terminal.benchmarks;
+
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalOutput;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TerminalEmulator#append(byte[], int)} for a {@link Workload}. One operation is a pass over the whole
+ * workload, fed in chunks of the same size as the ones read from the pty by a terminal session. The emulator is kept
+ * between operations, so after warmup the transcript is full and every new line discards the oldest one.
+ * <p>
+ * See {@link BenchmarkMain} for a summary in MB/s and ns/byte.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmulatorBenchmark {
+
+    /** The size of the reads done by the thread reading from the pty. */
+    static final int CHUNK_SIZE = 4096;
+
+    @Param
+    public Workload workload;
+
+    /** The screen size as "columns x rows". */
+    @Param({"80x24", "132x43", "240x67"})
+    public String screenSize;
+
+    @Param({"2000", "10000"})
+    public int transcriptRows;
+
+    private byte[][] mChunks;
+    private TerminalEmulator mEmulator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = parseScreenSize(screenSize);
+        byte[] bytes = workload.bytes(size[0], size[1]);
+        mChunks = new byte[(bytes.length + CHUNK_SIZE - 1) / CHUNK_SIZE][];
+        for (int i = 0; i < mChunks.length; i++) {
+            mChunks[i] = Arrays.copyOfRange(bytes, i * CHUNK_SIZE, Math.min(bytes.length, (i + 1) * CHUNK_SIZE));
+        }
+        mEmulator = new TerminalEmulator(new DiscardingOutput(), size[0], size[1], transcriptRows);
+    }
+
+    @Benchmark
+    public TerminalEmulator append() {
+        for (byte[] chunk : mChunks) {
+            mEmulator.append(chunk, chunk.length);
+        }
+        return mEmulator;
+    }
+
+    /** Parse a screen size such as "80x24" into {columns, rows}. */
+    static int[] parseScreenSize(String screenSize) {
+        int separator = screenSize.indexOf('x');
+        if (separator == -1) throw new IllegalArgumentException("Invalid screen size: " + screenSize);
+        return new int[]{Integer.parseInt(screenSize.substring(0, separator)), Integer.parseInt(screenSize.substring(separator + 1))};
+    }
+
+    /** Discards everything the emulator writes back, such as replies to device status reports. */
+    static final class DiscardingOutput extends TerminalOutput {
+        @Override
+        public void write(byte[] data, int offset, int count) {
+        }
+
+        @Override
+        public void titleChanged(String oldTitle, String newTitle) {
+        }
+
+        @Override
+        public void clipboardText(String text) {
+        }
+
+        @Override
+        public void onBell() {
+        }
+
+        @Override
+        public void onColorsChanged() {
+        }
+    }
+
+}
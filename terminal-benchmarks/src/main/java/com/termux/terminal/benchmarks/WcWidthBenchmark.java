@@ -0,0 +1,95 @@
+package com.termux.terminal.benchmarks;
+
+import com.termux.terminal.WcWidth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link WcWidth#getWidth(int)} with a binary search in tables of code point intervals, as WcWidth did before
+ * using a lookup table, over the code points of a {@link Workload}. One operation sums the widths of all code points in
+ * the workload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WcWidthBenchmark {
+
+    @Param({"ASCII_CAT", "CJK", "EMOJI_ZWJ"})
+    public Workload workload;
+
+    private int[] mCodePoints;
+    private WcWidth mWcWidth;
+    /** The intervals of code points with width 0 and 2 as {first, last}, built from {@link #mWcWidth}. */
+    private int[][] mZeroWidth, mWideWidth;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mCodePoints = new String(workload.bytes(80, 24), StandardCharsets.UTF_8).codePoints().toArray();
+        mWcWidth = WcWidth.getDefault();
+        mZeroWidth = intervalsOfWidth(0);
+        mWideWidth = intervalsOfWidth(2);
+    }
+
+    private int[][] intervalsOfWidth(int width) {
+        List<int[]> intervals = new ArrayList<>();
+        for (int c = 0; c <= Character.MAX_CODE_POINT; c++) {
+            if (mWcWidth.getWidth(c) != width) continue;
+            int first = c;
+            while (c < Character.MAX_CODE_POINT && mWcWidth.getWidth(c + 1) == width) c++;
+            intervals.add(new int[]{first, c});
+        }
+        return intervals.toArray(new int[0][]);
+    }
+
+    private static boolean inTable(int[][] table, int c) {
+        int bottom = 0;
+        int top = table.length - 1;
+        while (top >= bottom) {
+            int middle = (bottom + top) >>> 1;
+            if (table[middle][1] < c) {
+                bottom = middle + 1;
+            } else if (table[middle][0] > c) {
+                top = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public int lookupTable() {
+        int sum = 0;
+        for (int codePoint : mCodePoints) sum += mWcWidth.getWidth(codePoint);
+        return sum;
+    }
+
+    @Benchmark
+    public int binarySearch() {
+        int sum = 0;
+        for (int codePoint : mCodePoints) {
+            sum += inTable(mZeroWidth, codePoint) ? 0 : (inTable(mWideWidth, codePoint) ? 2 : 1);
+        }
+        return sum;
+    }
+
+}
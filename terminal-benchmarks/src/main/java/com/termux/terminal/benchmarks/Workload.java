@@ -0,0 +1,274 @@
+package com.termux.terminal.benchmarks;
+
+import com.termux.terminal.TerminalRecorder;
+import com.termux.terminal.TerminalReplay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The byte streams fed to the emulator by {@link EmulatorBenchmark}.
+ * <p>
+ * Each workload imitates the output of a real program as seen on the pty: line endings are "\r\n" as produced by the
+ * tty with onlcr, and full screen programs address the screen size the stream is generated for. The streams are
+ * generated from a fixed seed so that results are comparable between runs. A captured stream can be used instead by
+ * pointing the "termux.benchmark.corpus" system property to a directory containing a file named after the workload:
+ * either an asciicast recording such as "vim_scroll.cast", as made by {@link TerminalRecorder} or asciinema, or the
+ * raw pty output such as "vim_scroll.bin", as written by e.g. "script -q".
+ */
+public enum Workload {
+
+    /** "cat" of a plain ASCII text file with some lines longer than the screen width. */
+    ASCII_CAT {
+        @Override
+        void generate(Generator out) {
+            while (out.needsMore()) {
+                int words = 1 + out.random.nextInt(out.random.nextInt(10) == 0 ? 40 : 14);
+                for (int i = 0; i < words; i++) {
+                    if (i > 0) out.ascii(" ");
+                    out.ascii(WORDS[out.random.nextInt(WORDS.length)]);
+                }
+                out.ascii(out.random.nextInt(8) == 0 ? "." : ",");
+                out.ascii("\r\n");
+            }
+        }
+    },
+
+    /** "ls -l --color" of directories with a mix of files, directories, links and executables. */
+    LS_COLOR {
+        @Override
+        void generate(Generator out) {
+            String[] colors = {"01;34", "01;32", "01;36", "00;31", "01;35", "40;33;01"};
+            String[] modes = {"drwxr-xr-x", "-rwxr-xr-x", "lrwxrwxrwx", "-rw-r--r--", "-rw-r--r--", "crw-rw----"};
+            while (out.needsMore()) {
+                out.ascii("total " + out.random.nextInt(5000) + "\r\n");
+                int entries = 5 + out.random.nextInt(60);
+                for (int i = 0; i < entries; i++) {
+                    int kind = out.random.nextInt(colors.length + 4);
+                    String name = WORDS[out.random.nextInt(WORDS.length)] + "_" + out.random.nextInt(1000);
+                    out.ascii(String.format(Locale.ROOT, "%s %2d u0_a%03d u0_a%03d %8d Oct %2d %02d:%02d ",
+                        modes[Math.min(kind, modes.length - 1)], 1 + out.random.nextInt(4), out.random.nextInt(300),
+                        out.random.nextInt(300), out.random.nextInt(10_000_000), 1 + out.random.nextInt(31),
+                        out.random.nextInt(24), out.random.nextInt(60)));
+                    if (kind < colors.length) {
+                        out.ascii("\033[" + colors[kind] + "m" + name + "\033[0m");
+                    } else {
+                        out.ascii(name + ".txt");
+                    }
+                    if (kind == 2) out.ascii(" -> \033[01;34m/data/data/com.termux/files/usr/" + name + "\033[0m");
+                    out.ascii("\r\n");
+                }
+                out.ascii("\033[01;32m~\033[0m $ ls -l --color\r\n");
+            }
+        }
+    },
+
+    /** Scrolling line by line through syntax highlighted source in vim, with the ruler updated on each step. */
+    VIM_SCROLL {
+        @Override
+        void generate(Generator out) {
+            int[] syntaxColors = {130, 21, 28, 90, 124, 243};
+            int lineNumber = 1;
+            while (out.needsMore()) {
+                out.ascii("\033[?25l\033[1;" + (out.rows - 1) + "r\033[" + (out.rows - 1) + ";1H\n\033[r");
+                out.ascii("\033[" + (out.rows - 1) + ";1H\033[33m" + String.format(Locale.ROOT, "%4d ", lineNumber) + "\033[m");
+                int column = 5;
+                int indent = 4 * out.random.nextInt(4);
+                for (int i = 0; i < indent; i++) out.ascii(" ");
+                column += indent;
+                while (column < out.columns - 12 && out.random.nextInt(9) != 0) {
+                    String word = WORDS[out.random.nextInt(WORDS.length)];
+                    if (out.random.nextBoolean()) {
+                        out.ascii("\033[38;5;" + syntaxColors[out.random.nextInt(syntaxColors.length)] + "m" + word + "\033[m");
+                    } else {
+                        out.ascii(word);
+                    }
+                    out.ascii(out.random.nextInt(4) == 0 ? "(" : " ");
+                    column += word.length() + 1;
+                }
+                out.ascii("\033[K");
+                out.ascii("\033[" + out.rows + ";" + Math.max(1, out.columns - 17) + "H" + lineNumber + ",1"
+                    + "\033[" + out.rows + ";" + Math.max(1, out.columns - 2) + "HBot\033[" + (out.rows - 1) + ";6H\033[?25h");
+                lineNumber++;
+            }
+        }
+    },
+
+    /** Full screen refreshes of htop, with colored meters and a process list with a highlighted line. */
+    HTOP {
+        @Override
+        void generate(Generator out) {
+            while (out.needsMore()) {
+                out.ascii("\033[?25l\033[H");
+                int cpus = Math.max(1, Math.min(8, out.rows / 6));
+                int barWidth = Math.max(4, out.columns / 2 - 12);
+                for (int cpu = 0; cpu < cpus; cpu++) {
+                    int used = out.random.nextInt(barWidth);
+                    int kernel = used / 3;
+                    out.ascii("\033[" + (cpu + 1) + ";3H\033[36m" + cpu + "\033[39m\033[1m[\033[22;32m");
+                    for (int i = kernel; i < used; i++) out.ascii("|");
+                    out.ascii("\033[31m");
+                    for (int i = 0; i < kernel; i++) out.ascii("|");
+                    out.ascii("\033[90m");
+                    for (int i = used; i < barWidth; i++) out.ascii(" ");
+                    out.ascii(String.format(Locale.ROOT, "%5.1f%%\033[39m\033[1m]\033[m", 100.0 * used / barWidth));
+                }
+                out.ascii("\033[" + (cpus + 2) + ";1H\033[30;42m    PID USER      PRI  NI  VIRT   RES   SHR S CPU% MEM%   TIME+  Command\033[K\033[m");
+                int selected = out.random.nextInt(Math.max(1, out.rows - cpus - 3));
+                for (int row = cpus + 3; row < out.rows; row++) {
+                    boolean isSelected = row - cpus - 3 == selected;
+                    out.ascii("\033[" + row + ";1H" + (isSelected ? "\033[30;46m" : ""));
+                    out.ascii(String.format(Locale.ROOT, "%7d u0_a%03d    20   0 %5dM %5dM %5dM %s %4.1f %4.1f %2d:%02d.%02d ",
+                        1000 + out.random.nextInt(30000), out.random.nextInt(300), out.random.nextInt(9000),
+                        out.random.nextInt(900), out.random.nextInt(90), out.random.nextInt(5) == 0 ? "R" : "S",
+                        out.random.nextDouble() * 100, out.random.nextDouble() * 20, out.random.nextInt(60),
+                        out.random.nextInt(60), out.random.nextInt(100)));
+                    if (!isSelected) out.ascii("\033[32m");
+                    out.ascii("/data/data/com.termux/files/usr/bin/" + WORDS[out.random.nextInt(WORDS.length)]);
+                    out.ascii("\033[K\033[m");
+                }
+                out.ascii("\033[" + out.rows + ";1HF1\033[30;46mHelp  \033[mF2\033[30;46mSetup \033[mF10\033[30;46mQuit\033[K\033[m");
+            }
+        }
+    },
+
+    /** Text in Chinese and Japanese, where most characters occupy two columns. */
+    CJK {
+        @Override
+        void generate(Generator out) {
+            while (out.needsMore()) {
+                int length = 5 + out.random.nextInt(out.columns);
+                for (int i = 0; i < length; i++) {
+                    int choice = out.random.nextInt(20);
+                    if (choice == 0) {
+                        out.codePoint(0x3002); // Ideographic full stop.
+                    } else if (choice < 5) {
+                        out.codePoint(0x3041 + out.random.nextInt(0x56)); // Hiragana.
+                    } else if (choice < 7) {
+                        out.codePoint(0x30A1 + out.random.nextInt(0x5A)); // Katakana.
+                    } else {
+                        out.codePoint(0x4E00 + out.random.nextInt(0x5000)); // CJK unified ideographs.
+                    }
+                }
+                out.ascii("\r\n");
+            }
+        }
+    },
+
+    /** Chat style text with emoji, including skin tone modifiers, flags and ZWJ sequences. */
+    EMOJI_ZWJ {
+        @Override
+        void generate(Generator out) {
+            int[][] sequences = {
+                {0x1F600}, {0x1F44D, 0x1F3FD}, {0x2764, 0xFE0F}, {0x1F1F8, 0x1F1EA},
+                {0x1F468, 0x200D, 0x1F469, 0x200D, 0x1F467, 0x200D, 0x1F466},
+                {0x1F3F3, 0xFE0F, 0x200D, 0x1F308}, {0x1F469, 0x1F3FE, 0x200D, 0x1F4BB},
+                {0x1F9D1, 0x200D, 0x1F91D, 0x200D, 0x1F9D1}, {0x1F408, 0x200D, 0x2B1B},
+            };
+            while (out.needsMore()) {
+                int words = 1 + out.random.nextInt(12);
+                for (int i = 0; i < words; i++) {
+                    if (i > 0) out.ascii(" ");
+                    if (out.random.nextInt(3) == 0) {
+                        for (int codePoint : sequences[out.random.nextInt(sequences.length)]) out.codePoint(codePoint);
+                    } else {
+                        out.ascii(WORDS[out.random.nextInt(WORDS.length)]);
+                    }
+                }
+                out.ascii("\r\n");
+            }
+        }
+    },
+
+    /** Text piped through "lolcat", which sets a 24-bit foreground color for every character. */
+    LOLCAT {
+        @Override
+        void generate(Generator out) {
+            int line = 0;
+            while (out.needsMore()) {
+                int length = 10 + out.random.nextInt(out.columns);
+                for (int i = 0; i < length; i++) {
+                    double position = 0.1 * (line + i);
+                    int red = (int) (Math.sin(position) * 127 + 128);
+                    int green = (int) (Math.sin(position + 2 * Math.PI / 3) * 127 + 128);
+                    int blue = (int) (Math.sin(position + 4 * Math.PI / 3) * 127 + 128);
+                    out.ascii("\033[38;2;" + red + ";" + green + ";" + blue + "m");
+                    out.ascii(String.valueOf((char) ('!' + out.random.nextInt(94))));
+                }
+                out.ascii("\033[0m\r\n");
+                line++;
+            }
+        }
+    };
+
+    /** The approximate number of bytes in a generated stream. */
+    public static final int GENERATED_SIZE = 1024 * 1024;
+
+    static final String[] WORDS = {"the", "terminal", "emulator", "android", "termux", "package", "install", "buffer",
+        "screen", "cursor", "scroll", "region", "if", "else", "return", "for", "while", "int", "byte", "static", "final",
+        "void", "public", "class", "new", "null", "string", "value", "length", "row", "column", "style", "foreground",
+        "background", "a", "is", "of", "to", "in", "that", "it", "with", "as", "was", "on", "be", "at", "by", "this"};
+
+    abstract void generate(Generator out);
+
+    /** The bytes of this workload for a screen of the given size. */
+    public byte[] bytes(int columns, int rows) {
+        String corpusDirectory = System.getProperty("termux.benchmark.corpus");
+        if (corpusDirectory != null) {
+            String name = name().toLowerCase(Locale.ROOT);
+            File recording = new File(corpusDirectory, name + ".cast");
+            File raw = new File(corpusDirectory, name + ".bin");
+            try {
+                if (recording.isFile()) {
+                    try (Reader reader = new InputStreamReader(new FileInputStream(recording), StandardCharsets.UTF_8)) {
+                        return TerminalReplay.read(reader).getOutput();
+                    }
+                } else if (raw.isFile()) {
+                    return Files.readAllBytes(raw.toPath());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read recorded " + name + " from " + corpusDirectory, e);
+            }
+        }
+
+        Generator generator = new Generator(columns, rows, new Random(ordinal() + 31L * columns + 961L * rows));
+        generate(generator);
+        return generator.toByteArray();
+    }
+
+    static final class Generator extends ByteArrayOutputStream {
+        final int columns;
+        final int rows;
+        final Random random;
+
+        Generator(int columns, int rows, Random random) {
+            super(GENERATED_SIZE + 64 * 1024);
+            this.columns = columns;
+            this.rows = rows;
+            this.random = random;
+        }
+
+        boolean needsMore() {
+            return size() < GENERATED_SIZE;
+        }
+
+        void ascii(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+            write(bytes, 0, bytes.length);
+        }
+
+        void codePoint(int codePoint) {
+            byte[] bytes = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.termux.terminal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs the widths.txt file of each Unicode version into the table loaded by {@link WcWidth}, run at build time.
+ * <p>
+ * Usage: WcWidthTableGenerator UNICODE_DIR OUTPUT_DIR, where UNICODE_DIR has a directory named after each Unicode
+ * version containing a widths.txt file. For each version OUTPUT_DIR gets a wcwidth-VERSION.bin file with:
+ * <ul>
+ * <li>The number of distinct blocks of widths as an int.</li>
+ * <li>For each {@link #BLOCK_SIZE} code points the index of its block of widths as a char.</li>
+ * <li>The distinct blocks of widths as longs, each holding 32 widths of 2 bits, lowest code point in the lowest bits.</li>
+ * </ul>
+ * Everything is big endian, as written by {@link DataOutputStream}.
+ * <p>
+ * OUTPUT_DIR also gets an unassigned.bin file in the same format, with one bit per code point set for the code points
+ * unassigned in the {@link Character} data of the JDK running this, see {@link WcWidth#isUnassigned(int)}.
+ */
+public final class WcWidthTableGenerator {
+
+    static final int BLOCK_SHIFT = 8;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    /** Zero width in all versions, in addition to the widths.txt file. */
+    static final int[][] SPECIAL_ZERO_WIDTH = {
+        {0x00000, 0x0001f},  // C0 control characters. Termux change: Width 0 instead of -1.
+        {0x0007f, 0x0009f},  // Delete and C1 control characters
+        {0x0034f, 0x0034f},  // Combining Grapheme Joiner
+        {0x0200b, 0x0200f},  // Zero Width Space        ..Right-to-left Mark
+        {0x02028, 0x0202e},  // Line Separator          ..Right-to-left Override
+        {0x02060, 0x02063},  // Word Joiner             ..Invisible Separator
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) throw new IllegalArgumentException("Usage: WcWidthTableGenerator UNICODE_DIR OUTPUT_DIR");
+        File[] versionDirs = new File(args[0]).listFiles(File::isDirectory);
+        if (versionDirs == null || versionDirs.length == 0) throw new IOException("No Unicode versions in " + args[0]);
+        File outputDir = new File(args[1]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) throw new IOException("Cannot create " + outputDir);
+
+        for (File versionDir : versionDirs) {
+            byte[] widths = readWidths(new File(versionDir, "widths.txt"));
+            File outputFile = new File(outputDir, "wcwidth-" + versionDir.getName() + ".bin");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+                writeTable(widths, 2, out);
+            }
+        }
+
+        File unassignedFile = new File(outputDir, "unassigned.bin");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(unassignedFile)))) {
+            writeTable(readUnassigned(), 1, out);
+        }
+    }
+
+    /** Returns 1 for every code point which is unassigned, as decided by {@link Character#getType(int)}. */
+    static byte[] readUnassigned() {
+        byte[] unassigned = new byte[Character.MAX_CODE_POINT + 1];
+        for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT; codePoint++)
+            if (Character.getType(codePoint) == Character.UNASSIGNED) unassigned[codePoint] = 1;
+        return unassigned;
+    }
+
+    /** Read the width of every code point from a widths.txt file. */
+    static byte[] readWidths(File file) throws IOException {
+        byte[] widths = new byte[Character.MAX_CODE_POINT + 1];
+        Arrays.fill(widths, (byte) 1);
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        // Apply width 2 first as width 0 takes precedence.
+        for (int pass = 2; pass >= 0; pass -= 2) {
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+                int commentStart = line.indexOf('#');
+                if (commentStart != -1) line = line.substring(0, commentStart);
+                if (line.trim().isEmpty()) continue;
+
+                String[] fields = line.split(";");
+                int width;
+                int first, last;
+                try {
+                    if (fields.length != 2) throw new IllegalArgumentException("Expected two fields");
+                    width = Integer.parseInt(fields[1].trim());
+                    if (width != 0 && width != 2) throw new IllegalArgumentException("Invalid width: " + width);
+                    String[] range = fields[0].trim().split("\\.\\.");
+                    first = Integer.parseInt(range[0], 16);
+                    last = (range.length == 1) ? first : Integer.parseInt(range[1], 16);
+                    if (range.length > 2 || first > last || last > Character.MAX_CODE_POINT)
+                        throw new IllegalArgumentException("Invalid range: " + fields[0].trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + (i + 1) + ": " + e.getMessage(), e);
+                }
+                if (width == pass) Arrays.fill(widths, first, last + 1, (byte) width);
+            }
+        }
+
+        for (int[] range : SPECIAL_ZERO_WIDTH)
+            Arrays.fill(widths, range[0], range[1] + 1, (byte) 0);
+        return widths;
+    }
+
+    /** Pack a value of 1 or 2 bits for every code point into the format described in the class comment. */
+    static void writeTable(byte[] values, int bitsPerValue, DataOutputStream out) throws IOException {
+        final int valuesPerLong = 64 / bitsPerValue;
+        final int longsPerBlock = BLOCK_SIZE / valuesPerLong;
+        char[] blockIndex = new char[values.length >> BLOCK_SHIFT];
+        Map<LongBuffer, Character> uniqueBlocks = new HashMap<>();
+        LongBuffer blockWidths = LongBuffer.allocate(blockIndex.length * longsPerBlock);
+        for (int block = 0; block < blockIndex.length; block++) {
+            long[] packed = new long[longsPerBlock];
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                packed[i / valuesPerLong] |= ((long) values[(block << BLOCK_SHIFT) + i]) << ((i % valuesPerLong) * bitsPerValue);
+            }
+            Character index = uniqueBlocks.get(LongBuffer.wrap(packed));
+            if (index == null) {
+                index = (char) uniqueBlocks.size();
+                uniqueBlocks.put(LongBuffer.wrap(packed), index);
+                blockWidths.put(packed);
+            }
+            blockIndex[block] = index;
+        }
+
+        out.writeInt(uniqueBlocks.size());
+        for (char index : blockIndex) out.writeChar(index);
+        blockWidths.flip();
+        while (blockWidths.hasRemaining()) out.writeLong(blockWidths.get());
+    }
+
+}
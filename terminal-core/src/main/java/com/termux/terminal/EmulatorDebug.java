@@ -0,0 +1,37 @@
+package com.termux.terminal;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class EmulatorDebug {
+
+    /** The tag to use when logging. */
+    public static final String LOG_TAG = "termux";
+
+    private static volatile TerminalLogger sLogger = new TerminalLogger() {
+        @Override
+        public void logWarning(String tag, String message) {
+            Logger.getLogger(tag).log(Level.WARNING, message);
+        }
+
+        @Override
+        public void logError(String tag, String message) {
+            Logger.getLogger(tag).log(Level.SEVERE, message);
+        }
+    };
+
+    /** Set where log messages from the terminal emulator should go. */
+    public static void setLogger(TerminalLogger logger) {
+        if (logger == null) throw new IllegalArgumentException("logger is null");
+        sLogger = logger;
+    }
+
+    static void logWarning(String message) {
+        sLogger.logWarning(LOG_TAG, message);
+    }
+
+    static void logError(String message) {
+        sLogger.logError(LOG_TAG, message);
+    }
+
+}
@@ -0,0 +1,530 @@
+package com.termux.terminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The oldest rows of the transcript of a {@link TerminalBuffer}, which will not change again.
+ * <p>
+ * The rows are frozen into blocks of {@link #BLOCK_ROWS} rows, and a block is compressed when full. Compressing takes
+ * longer than emulating the output of the rows, so it is done by a background thread, the rows being kept as they were
+ * until done. If more than {@link #MAX_PENDING_BLOCKS} blocks of all transcripts are waiting for it, as when several
+ * sessions output fast, the thread filling a block compresses it instead, so that the rows waiting stay bounded. A
+ * block is decompressed when its rows are read, as when viewed, selected or searched, and the last few
+ * blocks read are kept decompressed. When full the oldest block is dropped, so the number of rows kept goes down by a
+ * block at a time.
+ * <p>
+ * Rows may also be added as the oldest ones, see {@link #addOldest(TerminalRow)}, which fill blocks from their end.
+ * <p>
+ * Compressed blocks may also be spilled to memory-mapped files, see {@link #spillTo(File, int)}, which are then paged
+ * in by the system when read instead of taking heap space.
+ * <p>
+ * The memory taken by the rows is counted as they are added, compressed, spilled and dropped, so that it may be read
+ * often, see {@link #getMemoryUsage()}.
+ */
+final class FrozenTranscript {
+
+    /** The number of rows in a block. */
+    static final int BLOCK_ROWS = 256;
+    /** The number of decompressed blocks to keep, so that a screen overlapping two blocks is read without inflating. */
+    private static final int CACHED_BLOCKS = 4;
+    /** The size of the files blocks are spilled to. */
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    /** The number of full blocks which may wait for {@link #sCompressor}, each keeping its uncompressed rows. */
+    static final int MAX_PENDING_BLOCKS = 8;
+
+    /** Compresses the full blocks of all transcripts. */
+    static final ExecutorService sCompressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FrozenTranscriptCompressor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /** The number of full blocks given to {@link #sCompressor} and not yet compressed. */
+    static final AtomicInteger sPendingBlocks = new AtomicInteger();
+
+    /** The state for compressing blocks, one for each thread doing so, reset for each block. */
+    private static final ThreadLocal<BlockCompressor> sBlockCompressor = new ThreadLocal<BlockCompressor>() {
+        @Override
+        protected BlockCompressor initialValue() {
+            return new BlockCompressor();
+        }
+    };
+
+    private static final class BlockCompressor {
+        final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+        final BlockOutputStream mBytes = new BlockOutputStream();
+        final DataOutputStream mOut = new DataOutputStream(mBytes);
+    }
+
+    /** A {@link ByteArrayOutputStream} without synchronization, which is not needed as only used by one thread. */
+    private static final class BlockOutputStream extends OutputStream {
+        byte[] mBytes = new byte[BLOCK_ROWS * 64];
+        int mLength;
+
+        @Override
+        public void write(int b) {
+            if (mLength == mBytes.length) mBytes = Arrays.copyOf(mBytes, mLength * 2);
+            mBytes[mLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) {
+            if (mLength + length > mBytes.length) mBytes = Arrays.copyOf(mBytes, Math.max(mLength + length, mLength * 2));
+            System.arraycopy(b, offset, mBytes, mLength, length);
+            mLength += length;
+        }
+    }
+
+    private static final class Block {
+        /** The rows as added, until compressed, or cleared when dropped so that they are not compressed. */
+        volatile TerminalRow[] mRows = new TerminalRow[BLOCK_ROWS];
+        /** The rows written by {@link TerminalRow#writeTo} and deflated, set before {@link #mRows} is cleared. */
+        volatile byte[] mCompressed;
+        /** The length of the rows before deflating. */
+        int mLength;
+        /** The segment holding {@link #mCompressed} if spilled, set before that is cleared. */
+        volatile Segment mSegment;
+        /** Where in {@link #mSegment} the compressed rows are. */
+        int mSegmentOffset, mCompressedLength;
+        /** If all rows have been added, and the block given to the compressor. */
+        boolean mFull;
+        /** If the block has been given to the compressor to spill. */
+        boolean mSpillQueued;
+        /** The bytes counted for the block in the memory usage of the transcript, changed holding its lock once full. */
+        long mMemoryUsage;
+    }
+
+    /** A memory-mapped file blocks are spilled to. Only {@link #mBuffer} is used by other threads than the compressor. */
+    private static final class Segment {
+        final File mFile;
+        /** Read through duplicates, as its position is never changed. */
+        final MappedByteBuffer mBuffer;
+        final ByteBuffer mWriteBuffer;
+        /** The number of bytes written. */
+        int mUsed;
+        /** The number of blocks spilled here which have not been dropped. */
+        int mBlocks;
+
+        Segment(File directory) throws IOException {
+            mFile = File.createTempFile("transcript-", ".bin", directory);
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                // The file is sparse, taking space as written, and the mapping stays valid after closing it.
+                mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            } catch (IOException e) {
+                delete();
+                throw e;
+            }
+            mWriteBuffer = mBuffer.duplicate();
+        }
+
+        void delete() {
+            if (!mFile.delete()) EmulatorDebug.logWarning("Cannot delete transcript file " + mFile);
+        }
+    }
+
+    private final int mColumns;
+    private int mMaxRows;
+    private final WcWidth mWcWidth;
+    /** The blocks, oldest first. All but the last one are full. */
+    private final List<Block> mBlocks = new ArrayList<>();
+    /** The number of rows in {@link #mBlocks}. */
+    private int mRows;
+    /** The index in the first block of the oldest row, which is not 0 if added by {@link #addOldest(TerminalRow)}. */
+    private int mFirstRowOffset;
+    /** The directory to spill blocks to, or null to keep them in memory. */
+    private File mSpillDirectory;
+    /** The number of rows to keep in memory when spilling. */
+    private int mMemoryRows;
+    /** The segment being filled with spilled blocks, only used by the compressor. */
+    private Segment mSpillSegment;
+    /** The rows of the compressed blocks read last, least recently used first. */
+    private final Map<Block, TerminalRow[]> mDecompressed = new LinkedHashMap<Block, TerminalRow[]>(CACHED_BLOCKS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Block, TerminalRow[]> eldest) {
+            if (size() <= CACHED_BLOCKS) return false;
+            mMemoryUsage.addAndGet(-getMemoryUsage(eldest.getValue()));
+            return true;
+        }
+    };
+    /** The bytes of memory taken by the rows, see {@link #getMemoryUsage()}, also updated by the compressor. */
+    private final AtomicLong mMemoryUsage = new AtomicLong();
+
+    /**
+     * @param columns the number of columns of the rows.
+     * @param maxRows the number of rows to keep, a multiple of {@link #BLOCK_ROWS}.
+     * @param wcWidth the widths of characters, given to the rows read.
+     */
+    FrozenTranscript(int columns, int maxRows, WcWidth wcWidth) {
+        if (maxRows <= 0 || maxRows % BLOCK_ROWS != 0) throw new IllegalArgumentException("maxRows=" + maxRows);
+        mColumns = columns;
+        mMaxRows = maxRows;
+        mWcWidth = wcWidth;
+    }
+
+    int getRows() {
+        return mRows;
+    }
+
+    int getMaxRows() {
+        return mMaxRows;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
+    /** Drop the oldest blocks until no more than a number of rows are left, without lowering {@link #getMaxRows()}. */
+    void dropOldestRows(int rowsToKeep) {
+        while (mRows > rowsToKeep)
+            dropOldestBlock();
+    }
+
+    /** Returns an estimate of the bytes of memory taken by the rows, not counting the ones spilled to files. */
+    long getMemoryUsage() {
+        return mMemoryUsage.get();
+    }
+
+    private static long getMemoryUsage(TerminalRow[] rows) {
+        long bytes = 0;
+        for (TerminalRow row : rows)
+            if (row != null) bytes += row.getMemoryUsage();
+        return bytes;
+    }
+
+    /** Change the bytes counted for a block, holding its lock if full, as the compressor may also do so. */
+    private void setMemoryUsage(Block block, long bytes) {
+        mMemoryUsage.addAndGet(bytes - block.mMemoryUsage);
+        block.mMemoryUsage = bytes;
+    }
+
+    /**
+     * Spill the blocks to memory-mapped files in a directory, except for the ones holding the newest memoryRows rows.
+     * The files are deleted as blocks are dropped, and by {@link #clear()}.
+     */
+    void spillTo(File directory, int memoryRows) {
+        if (mSpillDirectory != null) throw new IllegalStateException("Already spilling to " + mSpillDirectory);
+        mSpillDirectory = directory;
+        mMemoryRows = memoryRows;
+        spillBlocks();
+    }
+
+    /** Create an empty transcript with the limits and spill directory of this one, for rows with another width. */
+    FrozenTranscript withColumns(int columns) {
+        FrozenTranscript result = new FrozenTranscript(columns, mMaxRows, mWcWidth);
+        if (mSpillDirectory != null) result.spillTo(mSpillDirectory, mMemoryRows);
+        return result;
+    }
+
+    /**
+     * Add a row as the newest one, dropping the oldest block if full. The row is kept as it is until compressed, so it
+     * must not be modified afterwards.
+     */
+    void add(TerminalRow row) {
+        if (mRows == mMaxRows) dropOldestBlock();
+
+        final int rowInBlock = (mFirstRowOffset + mRows) % BLOCK_ROWS;
+        final Block block;
+        if (rowInBlock == 0) {
+            block = new Block();
+            mBlocks.add(block);
+        } else {
+            block = mBlocks.get(mBlocks.size() - 1);
+        }
+        block.mRows[rowInBlock] = row;
+        setMemoryUsage(block, block.mMemoryUsage + row.getMemoryUsage());
+        mRows++;
+        if (rowInBlock == BLOCK_ROWS - 1) blockFilled(block);
+    }
+
+    /**
+     * Add a row as the oldest one, as when reflowing older rows of the transcript. The row is kept as it is until
+     * compressed, so it must not be modified afterwards.
+     *
+     * @return false if full, in which case the row is not added.
+     */
+    boolean addOldest(TerminalRow row) {
+        if (mRows == mMaxRows) return false;
+        if (mFirstRowOffset == 0) {
+            mBlocks.add(0, new Block());
+            mFirstRowOffset = BLOCK_ROWS;
+        }
+        final Block block = mBlocks.get(0);
+        block.mRows[--mFirstRowOffset] = row;
+        setMemoryUsage(block, block.mMemoryUsage + row.getMemoryUsage());
+        mRows++;
+        if (mFirstRowOffset == 0) blockFilled(block);
+        return true;
+    }
+
+    private void blockFilled(final Block block) {
+        block.mFull = true;
+        if (sPendingBlocks.incrementAndGet() > MAX_PENDING_BLOCKS) {
+            // The compressor is behind, so do not leave it more rows to keep.
+            sPendingBlocks.decrementAndGet();
+            compress(block);
+        } else {
+            sCompressor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compress(block);
+                    } finally {
+                        sPendingBlocks.decrementAndGet();
+                    }
+                }
+            });
+        }
+        spillBlocks();
+    }
+
+    /**
+     * Drop the oldest block, and have the compressor release it if spilled.
+     *
+     * @return the number of rows dropped.
+     */
+    int dropOldestBlock() {
+        final Block droppedBlock = mBlocks.remove(0);
+        final TerminalRow[] decompressed = mDecompressed.remove(droppedBlock);
+        if (decompressed != null) mMemoryUsage.addAndGet(-getMemoryUsage(decompressed));
+        synchronized (droppedBlock) {
+            droppedBlock.mRows = null;
+            setMemoryUsage(droppedBlock, 0);
+        }
+        final int droppedRows = Math.min(mRows, BLOCK_ROWS - mFirstRowOffset);
+        mRows -= droppedRows;
+        mFirstRowOffset = 0;
+        if (droppedBlock.mSpillQueued) {
+            sCompressor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    releaseSpilled(droppedBlock);
+                }
+            });
+        }
+        return droppedRows;
+    }
+
+    /** Have the compressor spill the full blocks not among the newest {@link #mMemoryRows} rows, after compressing them. */
+    private void spillBlocks() {
+        if (mSpillDirectory == null) return;
+        final int memoryBlocks = (mMemoryRows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        int blocksInMemory = 0;
+        for (Block block : mBlocks)
+            if (block.mFull && !block.mSpillQueued) blocksInMemory++;
+        for (int i = 0; blocksInMemory > memoryBlocks; i++) {
+            final Block block = mBlocks.get(i);
+            if (!block.mFull || block.mSpillQueued) continue;
+            block.mSpillQueued = true;
+            blocksInMemory--;
+            sCompressor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    spill(block);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns a row, with 0 being the oldest one. The row is shared with later calls and must not be modified.
+     *
+     * @throws IllegalArgumentException if there is no such row.
+     */
+    TerminalRow getRow(int index) {
+        if (index < 0 || index >= mRows) throw new IllegalArgumentException("index=" + index + ", rows=" + mRows);
+        final int position = mFirstRowOffset + index;
+        Block block = mBlocks.get(position / BLOCK_ROWS);
+        TerminalRow[] rows = block.mRows;
+        if (rows == null) {
+            rows = mDecompressed.get(block);
+            if (rows == null) {
+                rows = decompress(block);
+                mMemoryUsage.addAndGet(getMemoryUsage(rows));
+                mDecompressed.put(block, rows);
+            }
+        }
+        return rows[position % BLOCK_ROWS];
+    }
+
+    /** Drop all rows, deleting any files spilled to. */
+    void clear() {
+        if (mSpillDirectory != null) {
+            final List<Block> spilledBlocks = new ArrayList<>();
+            for (Block block : mBlocks)
+                if (block.mSpillQueued) spilledBlocks.add(block);
+            sCompressor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Block block : spilledBlocks)
+                        releaseSpilled(block);
+                    // The current segment may hold no blocks, and would otherwise be left as is.
+                    if (mSpillSegment != null && mSpillSegment.mBlocks == 0) mSpillSegment.delete();
+                    mSpillSegment = null;
+                }
+            });
+        }
+        for (Block block : mBlocks) {
+            synchronized (block) {
+                block.mRows = null;
+                setMemoryUsage(block, 0);
+            }
+        }
+        mBlocks.clear();
+        for (TerminalRow[] rows : mDecompressed.values())
+            mMemoryUsage.addAndGet(-getMemoryUsage(rows));
+        mDecompressed.clear();
+        mRows = mFirstRowOffset = 0;
+    }
+
+    /** Wait until the blocks full so far are compressed. */
+    static void awaitCompression() throws InterruptedException {
+        try {
+            sCompressor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Compress the rows of a full block, unless dropped before getting to it. */
+    private void compress(Block block) {
+        final TerminalRow[] rows = block.mRows;
+        if (rows == null) return;
+
+        final BlockCompressor compressor = sBlockCompressor.get();
+        final BlockOutputStream bytes = compressor.mBytes;
+        bytes.mLength = 0;
+        try {
+            for (TerminalRow row : rows)
+                row.writeTo(compressor.mOut);
+        } catch (IOException e) {
+            // Not thrown by a BlockOutputStream.
+            throw new IllegalStateException(e);
+        }
+
+        // Speed matters more than size, as output may be scrolling by as fast as this can keep up.
+        final Deflater deflater = compressor.mDeflater;
+        deflater.reset();
+        deflater.setInput(bytes.mBytes, 0, bytes.mLength);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.mLength / 4);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished())
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        synchronized (block) {
+            // Dropped while compressing.
+            if (block.mRows == null) return;
+            block.mLength = bytes.mLength;
+            block.mCompressed = compressed.toByteArray();
+            block.mRows = null;
+            setMemoryUsage(block, block.mCompressed.length);
+        }
+    }
+
+    /** Move the compressed rows of a block to {@link #mSpillSegment}, run by the compressor. */
+    private void spill(Block block) {
+        final byte[] compressed = block.mCompressed;
+        // Left in memory if not compressed due to an error, or too large for a segment.
+        if (compressed == null || compressed.length > SEGMENT_SIZE) return;
+
+        Segment segment = mSpillSegment;
+        if (segment == null || segment.mUsed + compressed.length > SEGMENT_SIZE) {
+            if (segment != null && segment.mBlocks == 0) segment.delete();
+            mSpillSegment = segment = null;
+            try {
+                mSpillSegment = segment = new Segment(mSpillDirectory);
+            } catch (IOException e) {
+                EmulatorDebug.logWarning("Cannot spill transcript to " + mSpillDirectory + ": " + e);
+                return;
+            }
+        }
+        segment.mWriteBuffer.position(segment.mUsed);
+        segment.mWriteBuffer.put(compressed);
+        block.mSegmentOffset = segment.mUsed;
+        block.mCompressedLength = compressed.length;
+        segment.mUsed += compressed.length;
+        segment.mBlocks++;
+        synchronized (block) {
+            block.mSegment = segment;
+            block.mCompressed = null;
+            setMemoryUsage(block, 0);
+        }
+    }
+
+    /** Note that a block spilled by {@link #spill(Block)} has been dropped, run by the compressor. */
+    private void releaseSpilled(Block block) {
+        final Segment segment = block.mSegment;
+        if (segment != null && --segment.mBlocks == 0 && segment != mSpillSegment) segment.delete();
+    }
+
+    private TerminalRow[] decompress(Block block) {
+        byte[] compressed = block.mCompressed;
+        if (compressed == null) {
+            // Spilled, which is done after compressing.
+            final Segment segment = block.mSegment;
+            compressed = new byte[block.mCompressedLength];
+            ByteBuffer segmentBytes = segment.mBuffer.duplicate();
+            segmentBytes.position(block.mSegmentOffset);
+            segmentBytes.get(compressed);
+        }
+
+        byte[] bytes = new byte[block.mLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < bytes.length) {
+                int inflated = inflater.inflate(bytes, length, bytes.length - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new IllegalStateException("Truncated transcript block");
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt transcript block", e);
+        } finally {
+            inflater.end();
+        }
+
+        TerminalRow[] rows = new TerminalRow[BLOCK_ROWS];
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            for (int i = 0; i < rows.length; i++)
+                rows[i] = TerminalRow.readFrom(in, mColumns, mWcWidth);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt transcript block", e);
+        }
+        return rows;
+    }
+
+}
@@ -0,0 +1,974 @@
+package com.termux.terminal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A circular buffer of {@link TerminalRow}:s which keeps notes about what is visible on a logical screen and the scroll
+ * history.
+ * <p>
+ * See {@link #externalToInternalRow(int)} for how to map from logical screen rows to array indices.
+ * <p>
+ * With a large transcript only the most recent {@link #LIVE_TRANSCRIPT_ROWS} rows of the history are kept in the
+ * circular buffer, and older rows are moved to a {@link FrozenTranscript}.
+ * <p>
+ * When the number of columns changes only the rows in the circular buffer are reflowed at once, while frozen rows are
+ * reflowed as needed, see {@link #reflowTranscript(int)}. The layout left is kept, so that resizing back to it before
+ * the buffer is modified, as when rotating the device back and forth, needs no reflowing.
+ */
+public final class TerminalBuffer {
+
+    /** The number of transcript rows to keep in the circular buffer before freezing them. */
+    static final int LIVE_TRANSCRIPT_ROWS = 500;
+
+    TerminalRow[] mLines;
+    /** The length of {@link #mLines}. */
+    int mTotalRows;
+    /** The number of rows and columns visible on the screen. */
+    int mScreenRows, mColumns;
+    /** The number of rows kept in history in {@link #mLines}. */
+    private int mActiveTranscriptRows = 0;
+    /** The rows of history older than those in {@link #mLines}, or null if the transcript is small. */
+    private FrozenTranscript mFrozenTranscript;
+    /**
+     * Rows of history older than those in {@link #mFrozenTranscript}, oldest first, frozen with another number of
+     * columns before resizing and not reflowed yet. They do not count as transcript rows until reflowed.
+     */
+    private final List<UnreflowedRows> mUnreflowedRows = new ArrayList<>();
+    /** The index in the circular buffer where the visible screen starts. */
+    private int mScreenFirstRow = 0;
+    /** The widths of characters, given to the rows of this buffer. */
+    final WcWidth mWcWidth;
+    /** Where rows are allocated from and returned to, which may be shared with other buffers of the emulator. */
+    private final TerminalRowPool mRowPool;
+
+    /** The number of layouts left by resizing to keep in {@link #mLayouts}. */
+    static final int MAX_LAYOUTS = 2;
+    /** Layouts left by resizing to another number of columns, most recently left first. */
+    private final List<Layout> mLayouts = new ArrayList<>();
+    /** Identifies the current layout, to know which of {@link #mLayouts} were left from it. */
+    private int mLayoutId, mLastLayoutId;
+    /** Counts modifications of the rows, after which none of {@link #mLayouts} may be gone back to. */
+    private int mModifications;
+    /**
+     * Counts the times the whole screen has been cleared. Rows of the screen with an older {@link TerminalRow#mClearGeneration}
+     * are blank with {@link #mClearStyle}, and cleared when next used.
+     */
+    private int mClearGeneration;
+    private long mClearStyle = TextStyle.NORMAL;
+
+    /** The oldest {@link #mRows} rows of a frozen transcript with another number of columns, to be reflowed. */
+    private static final class UnreflowedRows {
+        final FrozenTranscript mTranscript;
+        int mRows;
+
+        UnreflowedRows(FrozenTranscript transcript, int rows) {
+            mTranscript = transcript;
+            mRows = rows;
+        }
+    }
+
+    /** The state of the buffer with another number of columns, left by resizing. */
+    private static final class Layout {
+        final TerminalRow[] mLines;
+        final int mTotalRows, mScreenRows, mColumns, mActiveTranscriptRows, mScreenFirstRow;
+        final FrozenTranscript mFrozenTranscript;
+        final List<UnreflowedRows> mUnreflowedRows;
+        final int mCursorColumn, mCursorRow, mLayoutId;
+        /** The bytes of memory taken by {@link #mLines}, which are not modified while left. */
+        final long mMemoryUsage;
+        /** What the buffer was left as, which it must still be to go back to this layout. */
+        int mNextLayoutId, mNextCursorColumn, mNextCursorRow, mNextModifications;
+
+        Layout(TerminalRow[] lines, int totalRows, int screenRows, int columns, int activeTranscriptRows, int screenFirstRow,
+               FrozenTranscript frozenTranscript, List<UnreflowedRows> unreflowedRows, int cursorColumn, int cursorRow, int layoutId) {
+            mLines = lines;
+            mTotalRows = totalRows;
+            mScreenRows = screenRows;
+            mColumns = columns;
+            mActiveTranscriptRows = activeTranscriptRows;
+            mScreenFirstRow = screenFirstRow;
+            mFrozenTranscript = frozenTranscript;
+            mUnreflowedRows = new ArrayList<>(unreflowedRows);
+            mCursorColumn = cursorColumn;
+            mCursorRow = cursorRow;
+            mLayoutId = layoutId;
+            long memoryUsage = 0;
+            for (TerminalRow row : lines)
+                if (row != null) memoryUsage += row.getMemoryUsage();
+            mMemoryUsage = memoryUsage;
+        }
+    }
+
+    /**
+     * Create a transcript screen.
+     *
+     * @param columns    the width of the screen in characters.
+     * @param totalRows  the height of the entire text area, in rows of text. Rows not fitting in
+     *                   {@link #LIVE_TRANSCRIPT_ROWS} are frozen, in whole blocks of {@link FrozenTranscript#BLOCK_ROWS}.
+     * @param screenRows the height of just the screen, not including the transcript that holds lines that have scrolled off
+     *                   the top of the screen.
+     * @param wcWidth    the widths of characters.
+     */
+    public TerminalBuffer(int columns, int totalRows, int screenRows, WcWidth wcWidth) {
+        this(columns, totalRows, screenRows, wcWidth, new TerminalRowPool(wcWidth));
+    }
+
+    /** @param rowPool the pool to allocate rows from, with the same widths of characters. */
+    TerminalBuffer(int columns, int totalRows, int screenRows, WcWidth wcWidth, TerminalRowPool rowPool) {
+        mColumns = columns;
+        mWcWidth = wcWidth;
+        mRowPool = rowPool;
+        mScreenRows = screenRows;
+        int frozenRows = (totalRows - screenRows - LIVE_TRANSCRIPT_ROWS) / FrozenTranscript.BLOCK_ROWS * FrozenTranscript.BLOCK_ROWS;
+        if (frozenRows > 0) {
+            mFrozenTranscript = new FrozenTranscript(columns, frozenRows, wcWidth);
+            totalRows -= frozenRows;
+        }
+        mTotalRows = totalRows;
+        mLines = new TerminalRow[totalRows];
+
+        blockSet(0, 0, columns, screenRows, ' ', TextStyle.NORMAL);
+    }
+
+    /** Returns the text of the whole transcript, reflowing any rows left to reflow, as do the methods below. */
+    public String getTranscriptText() {
+        reflowTranscript(Integer.MAX_VALUE);
+        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows).trim();
+    }
+
+    public String getTranscriptTextWithoutJoinedLines() {
+        reflowTranscript(Integer.MAX_VALUE);
+        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, false).trim();
+    }
+
+    public String getTranscriptTextWithFullLinesJoined() {
+        reflowTranscript(Integer.MAX_VALUE);
+        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, true, true).trim();
+    }
+
+    public String getSelectedText(int selX1, int selY1, int selX2, int selY2) {
+        return getSelectedText(selX1, selY1, selX2, selY2, true);
+    }
+
+    public String getSelectedText(int selX1, int selY1, int selX2, int selY2, boolean joinBackLines) {
+        return getSelectedText(selX1, selY1, selX2, selY2, true, false);
+    }
+
+    public String getSelectedText(int selX1, int selY1, int selX2, int selY2, boolean joinBackLines, boolean joinFullLines) {
+        final StringBuilder builder = new StringBuilder();
+        final int columns = mColumns;
+        // For the text of compact rows.
+        final char[] textBuffer = new char[columns];
+
+        if (selY1 < -getActiveTranscriptRows()) selY1 = -getActiveTranscriptRows();
+        if (selY2 >= mScreenRows) selY2 = mScreenRows - 1;
+
+        for (int row = selY1; row <= selY2; row++) {
+            int x1 = (row == selY1) ? selX1 : 0;
+            int x2;
+            if (row == selY2) {
+                x2 = selX2 + 1;
+                if (x2 > columns) x2 = columns;
+            } else {
+                x2 = columns;
+            }
+            TerminalRow lineObject = getRow(row);
+            int x1Index = lineObject.findStartOfColumn(x1);
+            int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
+            if (x2Index == x1Index) {
+                // Selected the start of a wide character.
+                x2Index = lineObject.findStartOfColumn(x2 + 1);
+            }
+            char[] line = lineObject.getText(textBuffer);
+            int lastPrintingCharIndex = -1;
+            int i;
+            boolean rowLineWrap = lineObject.mLineWrap;
+            if (rowLineWrap && x2 == columns) {
+                // If the line was wrapped, we shouldn't lose trailing space:
+                lastPrintingCharIndex = x2Index - 1;
+            } else {
+                for (i = x1Index; i < x2Index; ++i) {
+                    char c = line[i];
+                    if (c != ' ') lastPrintingCharIndex = i;
+                }
+            }
+            if (lastPrintingCharIndex != -1)
+                builder.append(line, x1Index, lastPrintingCharIndex - x1Index + 1);
+            boolean lineFillsWidth = lastPrintingCharIndex == x2Index - 1;
+            if ((!joinBackLines || !rowLineWrap) && (!joinFullLines || !lineFillsWidth)
+                && row < selY2 && row < mScreenRows - 1) builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    public int getActiveTranscriptRows() {
+        return mActiveTranscriptRows + (mFrozenTranscript == null ? 0 : mFrozenTranscript.getRows());
+    }
+
+    public int getActiveRows() {
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    /**
+     * Returns the row at a row in the external coordinate system, see {@link #externalToInternalRow(int)}, which may
+     * also be a frozen row of the transcript. Rows of the transcript are only to be read.
+     */
+    public TerminalRow getRow(int externalRow) {
+        if (externalRow < -mActiveTranscriptRows && mFrozenTranscript != null)
+            return mFrozenTranscript.getRow(mFrozenTranscript.getRows() + mActiveTranscriptRows + externalRow);
+        final int internalRow = externalToInternalRow(externalRow);
+        // Rows of the transcript are not left to clear, as they were cleared when scrolling into it.
+        if (externalRow < 0 && mLines[internalRow] != null) return mLines[internalRow];
+        return allocateFullLineIfNecessary(internalRow);
+    }
+
+    /**
+     * Convert a row value from the public external coordinate system to our internal private coordinate system.
+     *
+     * <pre>
+     * - External coordinate system: -mActiveTranscriptRows to mScreenRows-1, with the screen being 0..mScreenRows-1.
+     *   Rows of a {@link FrozenTranscript} come before these, see {@link #getRow(int)}.
+     * - Internal coordinate system: the mScreenRows lines starting at mScreenFirstRow comprise the screen, while the
+     *   mActiveTranscriptRows lines ending at mScreenFirstRow-1 form the transcript (as a circular buffer).
+     *
+     * External ↔ Internal:
+     *
+     * [ ...                            ]     [ ...                                     ]
+     * [ -mActiveTranscriptRows         ]     [ mScreenFirstRow - mActiveTranscriptRows ]
+     * [ ...                            ]     [ ...                                     ]
+     * [ 0 (visible screen starts here) ]  ↔  [ mScreenFirstRow                         ]
+     * [ ...                            ]     [ ...                                     ]
+     * [ mScreenRows-1                  ]     [ mScreenFirstRow + mScreenRows-1         ]
+     * </pre>
+     *
+     * @param externalRow a row in the external coordinate system.
+     * @return The row corresponding to the input argument in the private coordinate system.
+     */
+    public int externalToInternalRow(int externalRow) {
+        if (externalRow < -mActiveTranscriptRows || externalRow > mScreenRows)
+            throw new IllegalArgumentException("extRow=" + externalRow + ", mScreenRows=" + mScreenRows + ", mActiveTranscriptRows=" + mActiveTranscriptRows);
+        final int internalRow = mScreenFirstRow + externalRow;
+        return (internalRow < 0) ? (mTotalRows + internalRow) : (internalRow % mTotalRows);
+    }
+
+    public void setLineWrap(int row) {
+        mModifications++;
+        allocateFullLineIfNecessary(externalToInternalRow(row)).mLineWrap = true;
+    }
+
+    public boolean getLineWrap(int row) {
+        return getRow(row).mLineWrap;
+    }
+
+    public void clearLineWrap(int row) {
+        mModifications++;
+        allocateFullLineIfNecessary(externalToInternalRow(row)).mLineWrap = false;
+    }
+
+    /**
+     * Resize the screen which this transcript backs. Currently, this only works if the number of columns does not
+     * change or the rows expand (that is, it only works when shrinking the number of rows).
+     *
+     * @param newColumns The number of columns the screen should have.
+     * @param newRows    The number of rows the screen should have.
+     * @param cursor     An int[2] containing the (column, row) cursor location.
+     */
+    public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        dropInvalidLayouts();
+        // Rows of the screen may scroll into the transcript, or be reflowed, so clear those left to clear first.
+        for (int row = 0; row < mScreenRows; row++)
+            allocateFullLineIfNecessary(externalToInternalRow(row));
+        Layout leftLayout = null;
+        // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
+        if (newColumns == mColumns && newRows <= mTotalRows) {
+            mModifications++;
+            // Fast resize where just the rows changed.
+            int shiftDownOfTopRow = mScreenRows - newRows;
+            if (shiftDownOfTopRow > 0 && shiftDownOfTopRow < mScreenRows) {
+                // Shrinking. Check if we can skip blank rows at bottom below cursor.
+                for (int i = mScreenRows - 1; i > 0; i--) {
+                    if (cursor[1] >= i) break;
+                    int r = externalToInternalRow(i);
+                    if (mLines[r] == null || mLines[r].isBlank()) {
+                        if (--shiftDownOfTopRow == 0) break;
+                    }
+                }
+            } else if (shiftDownOfTopRow < 0) {
+                // Negative shift down = expanding. Only move screen up if there is transcript to show:
+                int actualShift = Math.max(shiftDownOfTopRow, -mActiveTranscriptRows);
+                // Rows of the transcript on the screen again are as written now.
+                for (int i = actualShift; i < 0; i++) {
+                    TerminalRow line = mLines[externalToInternalRow(i)];
+                    if (line != null) line.mClearGeneration = mClearGeneration;
+                }
+                if (shiftDownOfTopRow != actualShift) {
+                    // The new lines revealed by the resizing are not all from the transcript. Blank the below ones.
+                    for (int i = 0; i < actualShift - shiftDownOfTopRow; i++)
+                        allocateFullLineIfNecessary((mScreenFirstRow + mScreenRows + i) % mTotalRows).clear(currentStyle);
+                    shiftDownOfTopRow = actualShift;
+                }
+            }
+            mScreenFirstRow += shiftDownOfTopRow;
+            mScreenFirstRow = (mScreenFirstRow < 0) ? (mScreenFirstRow + mTotalRows) : (mScreenFirstRow % mTotalRows);
+            mTotalRows = newTotalRows;
+            mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
+            cursor[1] -= shiftDownOfTopRow;
+            mScreenRows = newRows;
+        } else if ((leftLayout = restoreLayout(newColumns, newRows, newTotalRows, cursor)) == null) {
+            // Copy away old state and update new:
+            TerminalRow[] oldLines = mLines;
+            mLines = new TerminalRow[newTotalRows];
+            // Rows below the screen are allocated when scrolled to, as they may never be used.
+            for (int i = 0; i < Math.min(newRows, newTotalRows); i++)
+                mLines[i] = obtainRow(newColumns, currentStyle);
+
+            final int oldActiveTranscriptRows = mActiveTranscriptRows;
+            final int oldScreenFirstRow = mScreenFirstRow;
+            final int oldScreenRows = mScreenRows;
+            final int oldTotalRows = mTotalRows;
+            final int oldColumns = mColumns;
+            final List<UnreflowedRows> oldUnreflowedRows = new ArrayList<>(mUnreflowedRows);
+            mTotalRows = newTotalRows;
+            mScreenRows = newRows;
+            mActiveTranscriptRows = mScreenFirstRow = 0;
+            mColumns = newColumns;
+            // Frozen rows are left to reflow when needed, except for those of a line wrapped into the circular buffer.
+            final FrozenTranscript oldFrozenTranscript = mFrozenTranscript;
+            final int oldFrozenRows = (oldFrozenTranscript == null) ? 0 : oldFrozenTranscript.getRows();
+            int unreflowedFrozenRows = oldFrozenRows;
+            while (unreflowedFrozenRows > 0 && oldFrozenTranscript.getRow(unreflowedFrozenRows - 1).mLineWrap)
+                unreflowedFrozenRows--;
+            if (oldFrozenTranscript != null) mFrozenTranscript = oldFrozenTranscript.withColumns(newColumns);
+
+            int newCursorRow = -1;
+            int newCursorColumn = -1;
+            int oldCursorRow = cursor[1];
+            int oldCursorColumn = cursor[0];
+            boolean newCursorPlaced = false;
+
+            int currentOutputExternalRow = 0;
+            int currentOutputExternalColumn = 0;
+
+            // Loop over every character in the initial state.
+            // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
+            // keep track how many blank lines we have skipped if we later on find a non-blank line.
+            int skippedBlankLines = 0;
+            // For the text of compact rows.
+            final char[] oldTextBuffer = new char[oldColumns];
+            for (int externalOldRow = -oldActiveTranscriptRows - oldFrozenRows + unreflowedFrozenRows; externalOldRow < oldScreenRows; externalOldRow++) {
+                TerminalRow oldLine;
+                if (externalOldRow < -oldActiveTranscriptRows) {
+                    oldLine = oldFrozenTranscript.getRow(oldFrozenRows + oldActiveTranscriptRows + externalOldRow);
+                } else {
+                    // Do what externalToInternalRow() does but for the old state:
+                    int internalOldRow = oldScreenFirstRow + externalOldRow;
+                    internalOldRow = (internalOldRow < 0) ? (oldTotalRows + internalOldRow) : (internalOldRow % oldTotalRows);
+                    oldLine = oldLines[internalOldRow];
+                }
+                boolean cursorAtThisRow = externalOldRow == oldCursorRow;
+                // The cursor may only be on a non-null line, which we should not skip:
+                if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
+                    skippedBlankLines++;
+                    continue;
+                } else if (skippedBlankLines > 0) {
+                    // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
+                    for (int i = 0; i < skippedBlankLines; i++) {
+                        if (currentOutputExternalRow == mScreenRows - 1) {
+                            scrollDownOneLine(0, mScreenRows, currentStyle);
+                        } else {
+                            currentOutputExternalRow++;
+                        }
+                        currentOutputExternalColumn = 0;
+                    }
+                    skippedBlankLines = 0;
+                }
+
+                final char[] oldText = oldLine.getText(oldTextBuffer);
+                int lastNonSpaceIndex = 0;
+                boolean justToCursor = false;
+                if (cursorAtThisRow || oldLine.mLineWrap) {
+                    // Take the whole line, either because of cursor on it, or if line wrapping.
+                    lastNonSpaceIndex = oldLine.getSpaceUsed();
+                    if (cursorAtThisRow) justToCursor = true;
+                } else {
+                    for (int i = 0; i < oldLine.getSpaceUsed(); i++)
+                        // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
+                        if (oldText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
+                            lastNonSpaceIndex = i + 1;
+                }
+
+                int currentOldCol = 0;
+                long styleAtCol = 0;
+                for (int i = 0; i < lastNonSpaceIndex; i++) {
+                    // Note that looping over java character, not cells.
+                    char c = oldText[i];
+                    int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldText[++i]) : c;
+                    int displayWidth = mWcWidth.getWidth(codePoint);
+                    // Use the last style if this is a zero-width character:
+                    if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
+
+                    // Line wrap as necessary:
+                    if (currentOutputExternalColumn + displayWidth > mColumns) {
+                        setLineWrap(currentOutputExternalRow);
+                        if (currentOutputExternalRow == mScreenRows - 1) {
+                            if (newCursorPlaced) newCursorRow--;
+                            scrollDownOneLine(0, mScreenRows, currentStyle);
+                        } else {
+                            currentOutputExternalRow++;
+                        }
+                        currentOutputExternalColumn = 0;
+                    }
+
+                    int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputExternalColumn > 0) ? 1 : 0);
+                    int outputColumn = currentOutputExternalColumn - offsetDueToCombiningChar;
+                    setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
+
+                    if (displayWidth > 0) {
+                        if (oldCursorRow == externalOldRow && oldCursorColumn == currentOldCol) {
+                            newCursorColumn = currentOutputExternalColumn;
+                            newCursorRow = currentOutputExternalRow;
+                            newCursorPlaced = true;
+                        }
+                        currentOldCol += displayWidth;
+                        currentOutputExternalColumn += displayWidth;
+                        if (justToCursor && newCursorPlaced) break;
+                    }
+                }
+                // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
+                if (externalOldRow != (oldScreenRows - 1) && !oldLine.mLineWrap) {
+                    if (currentOutputExternalRow == mScreenRows - 1) {
+                        if (newCursorPlaced) newCursorRow--;
+                        scrollDownOneLine(0, mScreenRows, currentStyle);
+                    } else {
+                        currentOutputExternalRow++;
+                    }
+                    currentOutputExternalColumn = 0;
+                }
+            }
+
+            cursor[0] = newCursorColumn;
+            cursor[1] = newCursorRow;
+            // The old rows and frozen transcript are kept with the layout left, and released when it is dropped.
+            leftLayout = new Layout(oldLines, oldTotalRows, oldScreenRows, oldColumns, oldActiveTranscriptRows, oldScreenFirstRow,
+                oldFrozenTranscript, oldUnreflowedRows, oldCursorColumn, oldCursorRow, mLayoutId);
+            mLayoutId = ++mLastLayoutId;
+            if (unreflowedFrozenRows > 0) {
+                mUnreflowedRows.add(new UnreflowedRows(oldFrozenTranscript, unreflowedFrozenRows));
+                dropUnreflowedRows();
+            }
+        }
+
+        // Handle cursor scrolling off screen:
+        if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
+
+        if (leftLayout != null) {
+            leftLayout.mNextLayoutId = mLayoutId;
+            leftLayout.mNextCursorColumn = cursor[0];
+            leftLayout.mNextCursorRow = cursor[1];
+            leftLayout.mNextModifications = mModifications;
+            mLayouts.add(0, leftLayout);
+            while (mLayouts.size() > MAX_LAYOUTS)
+                dropLayout(mLayouts.remove(mLayouts.size() - 1));
+        }
+    }
+
+    /**
+     * Go back to a layout with the new size if the buffer is as it was left from it.
+     *
+     * @return the layout left for it, or null if there was none to go back to.
+     */
+    private Layout restoreLayout(int newColumns, int newRows, int newTotalRows, int[] cursor) {
+        for (int i = 0; i < mLayouts.size(); i++) {
+            final Layout layout = mLayouts.get(i);
+            if (layout.mColumns != newColumns || layout.mScreenRows != newRows || layout.mTotalRows != newTotalRows
+                || layout.mNextLayoutId != mLayoutId || layout.mNextModifications != mModifications
+                || layout.mNextCursorColumn != cursor[0] || layout.mNextCursorRow != cursor[1]) continue;
+
+            mLayouts.remove(i);
+            final Layout leftLayout = new Layout(mLines, mTotalRows, mScreenRows, mColumns, mActiveTranscriptRows, mScreenFirstRow,
+                mFrozenTranscript, mUnreflowedRows, cursor[0], cursor[1], mLayoutId);
+            mLines = layout.mLines;
+            mTotalRows = layout.mTotalRows;
+            mScreenRows = layout.mScreenRows;
+            mColumns = layout.mColumns;
+            mActiveTranscriptRows = layout.mActiveTranscriptRows;
+            mScreenFirstRow = layout.mScreenFirstRow;
+            mFrozenTranscript = layout.mFrozenTranscript;
+            mUnreflowedRows.clear();
+            // Unreflowed rows may have been dropped since, for newer frozen rows.
+            for (UnreflowedRows unreflowed : layout.mUnreflowedRows)
+                if (unreflowed.mRows > 0) mUnreflowedRows.add(unreflowed);
+            mLayoutId = layout.mLayoutId;
+            cursor[0] = layout.mCursorColumn;
+            cursor[1] = layout.mCursorRow;
+            return leftLayout;
+        }
+        return null;
+    }
+
+    private void dropInvalidLayouts() {
+        for (int i = mLayouts.size() - 1; i >= 0; i--)
+            if (mLayouts.get(i).mNextModifications != mModifications) dropLayout(mLayouts.remove(i));
+    }
+
+    private void dropLayouts() {
+        while (!mLayouts.isEmpty())
+            dropLayout(mLayouts.remove(mLayouts.size() - 1));
+    }
+
+    /** Release the rows of a layout removed from {@link #mLayouts}, and the frozen transcripts nothing else holds. */
+    private void dropLayout(Layout layout) {
+        for (TerminalRow row : layout.mLines)
+            if (row != null) mRowPool.recycle(row);
+        if (layout.mFrozenTranscript != null && !isTranscriptHeld(layout.mFrozenTranscript)) layout.mFrozenTranscript.clear();
+        for (UnreflowedRows unreflowed : layout.mUnreflowedRows)
+            if (!isTranscriptHeld(unreflowed.mTranscript)) unreflowed.mTranscript.clear();
+    }
+
+    /** Whether a frozen transcript is held by the current layout, or by one of {@link #mLayouts}. */
+    private boolean isTranscriptHeld(FrozenTranscript transcript) {
+        if (transcript == mFrozenTranscript || holds(mUnreflowedRows, transcript)) return true;
+        for (Layout layout : mLayouts)
+            if (transcript == layout.mFrozenTranscript || holds(layout.mUnreflowedRows, transcript)) return true;
+        return false;
+    }
+
+    private static boolean holds(List<UnreflowedRows> unreflowedRows, FrozenTranscript transcript) {
+        for (UnreflowedRows unreflowed : unreflowedRows)
+            if (unreflowed.mTranscript == transcript) return true;
+        return false;
+    }
+
+    /**
+     * Block copy lines and associated metadata from one location to another in the circular buffer, taking wraparound
+     * into account.
+     *
+     * @param srcInternal The first line to be copied.
+     * @param len         The number of lines to be copied.
+     */
+    private void blockCopyLinesDown(int srcInternal, int len) {
+        if (len == 0) return;
+        int totalRows = mTotalRows;
+
+        int start = len - 1;
+        // Save away line to be overwritten:
+        TerminalRow lineToBeOverWritten = mLines[(srcInternal + start + 1) % totalRows];
+        // Do the copy from bottom to top.
+        for (int i = start; i >= 0; --i)
+            mLines[(srcInternal + i + 1) % totalRows] = mLines[(srcInternal + i) % totalRows];
+        // Put back overwritten line, now above the block:
+        mLines[(srcInternal) % totalRows] = lineToBeOverWritten;
+    }
+
+    /**
+     * Scroll the screen down one line. To scroll the whole screen of a 24 line screen, the arguments would be (0, 24).
+     *
+     * @param topMargin    First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param style        the style for the newly exposed line.
+     */
+    public void scrollDownOneLine(int topMargin, int bottomMargin, long style) {
+        if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows)
+            throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", mScreenRows=" + mScreenRows);
+        mModifications++;
+
+        // Copy the fixed topMargin lines one line down so that they remain on screen in same position:
+        blockCopyLinesDown(mScreenFirstRow, topMargin);
+        // Copy the fixed mScreenRows-bottomMargin lines one line down so that they remain on screen in same
+        // position:
+        blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin);
+
+        // Update the screen location in the ring buffer:
+        mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
+        // Note that the history has grown if not already full:
+        final boolean transcriptFull = mActiveTranscriptRows == mTotalRows - mScreenRows;
+        if (!transcriptFull) mActiveTranscriptRows++;
+
+        // Blank the newly revealed line above the bottom margin:
+        int blankRow = externalToInternalRow(bottomMargin - 1);
+        // Which, if the history is full, holds its oldest row. Freeze that if having more history than fits here, and
+        // put a compact row in its place to take the arrays of the row compacted below:
+        if (transcriptFull && mFrozenTranscript != null && mLines[blankRow] != null) {
+            mFrozenTranscript.add(mLines[blankRow]);
+            if (!mUnreflowedRows.isEmpty()) dropUnreflowedRows();
+            mLines[blankRow] = TerminalRow.createCompact(mColumns, style, mWcWidth);
+        }
+        // The line which scrolled into the transcript will most likely not change again:
+        if (mTotalRows > mScreenRows) {
+            TerminalRow transcriptRow = mLines[externalToInternalRow(-1)];
+            if (transcriptRow != null) clearIfLeftToClear(transcriptRow).compact(mLines[blankRow]);
+        }
+        if (mLines[blankRow] == null) {
+            mLines[blankRow] = obtainRow(mColumns, style);
+        } else {
+            mLines[blankRow].clear(style);
+            mLines[blankRow].mClearGeneration = mClearGeneration;
+        }
+    }
+
+    /**
+     * Block copy characters from one position in the screen to another. The two positions can overlap. All characters
+     * of the source and destination must be within the bounds of the screen, or else an InvalidParameterException will
+     * be thrown.
+     *
+     * @param sx source X coordinate
+     * @param sy source Y coordinate
+     * @param w  width
+     * @param h  height
+     * @param dx destination X coordinate
+     * @param dy destination Y coordinate
+     */
+    public void blockCopy(int sx, int sy, int w, int h, int dx, int dy) {
+        if (w == 0) return;
+        if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows || dx < 0 || dx + w > mColumns || dy < 0 || dy + h > mScreenRows)
+            throw new IllegalArgumentException();
+        mModifications++;
+        boolean copyingUp = sy > dy;
+        for (int y = 0; y < h; y++) {
+            int y2 = copyingUp ? y : (h - (y + 1));
+            TerminalRow sourceRow = allocateFullLineIfNecessary(externalToInternalRow(sy + y2));
+            allocateFullLineIfNecessary(externalToInternalRow(dy + y2)).copyInterval(sourceRow, sx, sx + w, dx);
+        }
+    }
+
+    /**
+     * Shift the full rows from topRow up to bottomRow down by a number of rows, or up if negative, and blank the rows
+     * shifted in. This gives the same text as {@link #blockCopy} of the rows followed by {@link #blockSet} of the new
+     * ones, but rotates the rows themselves, which keep their line wrapping, instead of copying every cell.
+     *
+     * @param topRow    the first row to shift.
+     * @param bottomRow one row after the last row to shift.
+     * @param shift     the number of rows to shift the rows down, or up if negative, at most bottomRow - topRow.
+     * @param style     the style for the blanked rows.
+     */
+    public void shiftRows(int topRow, int bottomRow, int shift, long style) {
+        if (topRow < 0 || bottomRow > mScreenRows || topRow > bottomRow || Math.abs(shift) > bottomRow - topRow)
+            throw new IllegalArgumentException("topRow=" + topRow + ", bottomRow=" + bottomRow + ", shift=" + shift + ", mScreenRows=" + mScreenRows);
+        if (shift == 0) return;
+        mModifications++;
+        // Rotate by reversing the rows ending up first and last separately, and then all of them:
+        final int split = (shift > 0) ? bottomRow - shift : topRow - shift;
+        reverseRows(topRow, split);
+        reverseRows(split, bottomRow);
+        reverseRows(topRow, bottomRow);
+        final int blankTop = (shift > 0) ? topRow : bottomRow + shift;
+        for (int row = blankTop; row < blankTop + Math.abs(shift); row++) {
+            TerminalRow line = allocateFullLineIfNecessary(externalToInternalRow(row));
+            line.clear(style);
+            line.mLineWrap = false;
+        }
+    }
+
+    private void reverseRows(int topRow, int bottomRow) {
+        for (int top = topRow, bottom = bottomRow - 1; top < bottom; top++, bottom--) {
+            final int topIndex = externalToInternalRow(top);
+            final int bottomIndex = externalToInternalRow(bottom);
+            final TerminalRow line = mLines[topIndex];
+            mLines[topIndex] = mLines[bottomIndex];
+            mLines[bottomIndex] = line;
+        }
+    }
+
+    /**
+     * Block set characters. All characters must be within the bounds of the screen, or else and
+     * InvalidParemeterException will be thrown. Typically this is called with a "val" argument of 32 to clear a block
+     * of characters. Each row is filled at once, see {@link TerminalRow#fillChars(int, int, int, long)}.
+     * <p>
+     * Clearing the whole screen, as on "clear" or when switching to the alternate buffer, only starts a new clear
+     * generation, and its rows are cleared as they are next used, see {@link #allocateFullLineIfNecessary(int)}.
+     */
+    public void blockSet(int sx, int sy, int w, int h, int val, long style) {
+        if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows) {
+            throw new IllegalArgumentException(
+                "Illegal arguments! blockSet(" + sx + ", " + sy + ", " + w + ", " + h + ", " + val + ", " + mColumns + ", " + mScreenRows + ")");
+        }
+        if (w == 0) return;
+        mModifications++;
+        if (sx == 0 && sy == 0 && w == mColumns && h == mScreenRows && val == ' ') {
+            mClearGeneration++;
+            mClearStyle = style;
+            return;
+        }
+        for (int y = 0; y < h; y++)
+            allocateFullLineIfNecessary(externalToInternalRow(sy + y)).fillChars(sx, w, val, style);
+    }
+
+    /** Returns a row of the screen, allocating it if not done yet, and clearing it if left to clear, see {@link #blockSet}. */
+    public TerminalRow allocateFullLineIfNecessary(int row) {
+        final TerminalRow line = mLines[row];
+        if (line == null) return mLines[row] = obtainRow(mColumns, mClearStyle);
+        return (line.mClearGeneration == mClearGeneration) ? line : clearIfLeftToClear(line);
+    }
+
+    private TerminalRow clearIfLeftToClear(TerminalRow line) {
+        if (line.mClearGeneration != mClearGeneration) {
+            line.clear(mClearStyle);
+            line.mClearGeneration = mClearGeneration;
+        }
+        return line;
+    }
+
+    private TerminalRow obtainRow(int columns, long style) {
+        final TerminalRow line = mRowPool.obtain(columns, style);
+        line.mClearGeneration = mClearGeneration;
+        return line;
+    }
+
+    public void setChar(int column, int row, int codePoint, long style) {
+        if (row >= mScreenRows || column >= mColumns)
+            throw new IllegalArgumentException("row=" + row + ", column=" + column + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        mModifications++;
+        row = externalToInternalRow(row);
+        allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
+    }
+
+    /**
+     * Set a run of printable ASCII characters, all having a display width of one, starting at the specified column.
+     * The run must fit within the row.
+     */
+    public void setChars(int column, int row, int[] asciiChars, int offset, int count, long style) {
+        if (row >= mScreenRows || column + count > mColumns)
+            throw new IllegalArgumentException("row=" + row + ", column=" + column + ", count=" + count + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        mModifications++;
+        row = externalToInternalRow(row);
+        allocateFullLineIfNecessary(row).setChars(column, asciiChars, offset, count, style);
+    }
+
+    public long getStyleAt(int externalRow, int column) {
+        return getRow(externalRow).getStyle(column);
+    }
+
+    /** Support for http://vt100.net/docs/vt510-rm/DECCARA and http://vt100.net/docs/vt510-rm/DECCARA */
+    public void setOrClearEffect(int bits, boolean setOrClear, boolean reverse, boolean rectangular, int leftMargin, int rightMargin, int top, int left,
+                                 int bottom, int right) {
+        mModifications++;
+        for (int y = top; y < bottom; y++) {
+            TerminalRow line = allocateFullLineIfNecessary(externalToInternalRow(y));
+            int startOfLine = (rectangular || y == top) ? left : leftMargin;
+            int endOfLine = (rectangular || y + 1 == bottom) ? right : rightMargin;
+            for (int x = startOfLine; x < endOfLine; x++) {
+                long currentStyle = line.getStyle(x);
+                int foreColor = TextStyle.decodeForeColor(currentStyle);
+                int backColor = TextStyle.decodeBackColor(currentStyle);
+                int effect = TextStyle.decodeEffect(currentStyle);
+                if (reverse) {
+                    // Clear out the bits to reverse and add them back in reversed:
+                    effect = (effect & ~bits) | (bits & ~effect);
+                } else if (setOrClear) {
+                    effect |= bits;
+                } else {
+                    effect &= ~bits;
+                }
+                line.setStyle(x, TextStyle.encode(foreColor, backColor, effect));
+            }
+        }
+    }
+
+    /**
+     * Spill the frozen rows of the transcript to memory-mapped files in a directory, keeping about memoryRows rows of
+     * the transcript in memory. Does nothing if the transcript is too small to have frozen rows.
+     */
+    public void spillTranscript(File directory, int memoryRows) {
+        if (mFrozenTranscript != null) mFrozenTranscript.spillTo(directory, Math.max(0, memoryRows - LIVE_TRANSCRIPT_ROWS));
+    }
+
+    /**
+     * Halve the number of rows kept in the transcript by dropping the oldest frozen rows, which new output may fill up
+     * again. The rows in the circular buffer are always kept. Layouts kept to resize back to are dropped first.
+     *
+     * @return false if there were no frozen rows to drop.
+     */
+    public boolean shrinkTranscript() {
+        mModifications++;
+        if (!mLayouts.isEmpty()) {
+            dropLayouts();
+            return true;
+        }
+        if (!mUnreflowedRows.isEmpty()) {
+            clearUnreflowedRows();
+            return true;
+        }
+        if (mFrozenTranscript == null || mFrozenTranscript.getRows() == 0) return false;
+        mFrozenTranscript.dropOldestRows(mFrozenTranscript.getRows() / 2);
+        return true;
+    }
+
+    /**
+     * Returns an estimate of the bytes of memory taken by the rows of this buffer, including the frozen ones. Only the
+     * rows of the circular buffer are summed, the other ones being counted as they change.
+     */
+    public long getMemoryUsage() {
+        long bytes = 0;
+        for (TerminalRow row : mLines)
+            if (row != null) bytes += row.getMemoryUsage();
+        final List<FrozenTranscript> transcripts = new ArrayList<>();
+        if (mFrozenTranscript != null) transcripts.add(mFrozenTranscript);
+        for (UnreflowedRows unreflowed : mUnreflowedRows)
+            transcripts.add(unreflowed.mTranscript);
+        for (Layout layout : mLayouts) {
+            bytes += layout.mMemoryUsage;
+            if (layout.mFrozenTranscript != null) transcripts.add(layout.mFrozenTranscript);
+            for (UnreflowedRows unreflowed : layout.mUnreflowedRows)
+                transcripts.add(unreflowed.mTranscript);
+        }
+        final List<FrozenTranscript> counted = new ArrayList<>();
+        for (FrozenTranscript transcript : transcripts) {
+            if (counted.contains(transcript)) continue;
+            counted.add(transcript);
+            bytes += transcript.getMemoryUsage();
+        }
+        return bytes;
+    }
+
+    /** Return all rows to the pool, as when the alternate buffer is left. Rows are allocated again when used. */
+    void releaseRows() {
+        mModifications++;
+        dropLayouts();
+        releaseRows(0, mTotalRows);
+    }
+
+    private void releaseRows(int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (mLines[i] != null) {
+                mRowPool.recycle(mLines[i]);
+                mLines[i] = null;
+            }
+        }
+    }
+
+    public void clearTranscript() {
+        mModifications++;
+        dropLayouts();
+        if (mScreenFirstRow < mActiveTranscriptRows) {
+            releaseRows(mTotalRows + mScreenFirstRow - mActiveTranscriptRows, mTotalRows);
+            releaseRows(0, mScreenFirstRow);
+        } else {
+            releaseRows(mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow);
+        }
+        mActiveTranscriptRows = 0;
+        if (mFrozenTranscript != null) mFrozenTranscript.clear();
+        clearUnreflowedRows();
+    }
+
+    /**
+     * Reflow frozen rows left with another number of columns by resizing, from the newest ones, adding them to the
+     * transcript. This is done as they are needed, as when scrolling to the top of the transcript.
+     *
+     * @param rows the number of rows wanted, after reflowing. Whole lines are reflowed, so there may be more.
+     * @return false if there were no rows left to reflow.
+     */
+    public boolean reflowTranscript(int rows) {
+        if (mUnreflowedRows.isEmpty()) return false;
+        mModifications++;
+        final List<TerminalRow> lineRows = new ArrayList<>();
+        int reflowedRows = 0;
+        while (reflowedRows < rows && !mUnreflowedRows.isEmpty()) {
+            final UnreflowedRows unreflowed = mUnreflowedRows.get(mUnreflowedRows.size() - 1);
+            final FrozenTranscript transcript = unreflowed.mTranscript;
+            // The rows of the newest line, joined by line wrapping.
+            final int lineEnd = unreflowed.mRows;
+            int lineStart = lineEnd - 1;
+            while (lineStart > 0 && transcript.getRow(lineStart - 1).mLineWrap)
+                lineStart--;
+
+            lineRows.clear();
+            reflowLine(transcript, lineStart, lineEnd, lineRows);
+            for (int i = lineRows.size() - 1; i >= 0; i--) {
+                if (!mFrozenTranscript.addOldest(lineRows.get(i))) {
+                    // No room for older rows.
+                    clearUnreflowedRows();
+                    return true;
+                }
+            }
+            reflowedRows += lineRows.size();
+
+            unreflowed.mRows = lineStart;
+            if (lineStart == 0) {
+                transcript.clear();
+                mUnreflowedRows.remove(mUnreflowedRows.size() - 1);
+            }
+            dropUnreflowedRows();
+        }
+        return true;
+    }
+
+    /**
+     * Reflow rows of a frozen transcript to rows of the current number of columns, the same way as {@link #resize}
+     * does for the rows of a line.
+     */
+    private void reflowLine(FrozenTranscript transcript, int firstRow, int endRow, List<TerminalRow> newRows) {
+        if (transcript.getColumns() == mColumns) {
+            // As when resizing back before the rows were needed. The rows are only read, so they can be shared.
+            for (int row = firstRow; row < endRow; row++)
+                newRows.add(transcript.getRow(row));
+            return;
+        }
+
+        // For the text of compact rows.
+        final char[] textBuffer = new char[transcript.getColumns()];
+        TerminalRow newRow = mRowPool.obtain(mColumns, TextStyle.NORMAL);
+        newRows.add(newRow);
+        int newColumn = 0;
+        for (int row = firstRow; row < endRow; row++) {
+            final TerminalRow oldRow = transcript.getRow(row);
+            final char[] oldText = oldRow.getText(textBuffer);
+            int oldTextEnd = 0;
+            if (oldRow.mLineWrap) {
+                oldTextEnd = oldRow.getSpaceUsed();
+            } else {
+                for (int i = 0; i < oldRow.getSpaceUsed(); i++)
+                    if (oldText[i] != ' ') oldTextEnd = i + 1;
+            }
+
+            int oldColumn = 0;
+            long style = 0;
+            for (int i = 0; i < oldTextEnd; i++) {
+                char c = oldText[i];
+                int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldText[++i]) : c;
+                int displayWidth = mWcWidth.getWidth(codePoint);
+                // Use the last style if this is a zero-width character:
+                if (displayWidth > 0) style = oldRow.getStyle(oldColumn);
+
+                if (newColumn + displayWidth > mColumns) {
+                    newRow.mLineWrap = true;
+                    newRow = mRowPool.obtain(mColumns, TextStyle.NORMAL);
+                    newRows.add(newRow);
+                    newColumn = 0;
+                }
+
+                int offsetDueToCombiningChar = ((displayWidth <= 0 && newColumn > 0) ? 1 : 0);
+                newRow.setChar(newColumn - offsetDueToCombiningChar, codePoint, style);
+                if (displayWidth > 0) {
+                    oldColumn += displayWidth;
+                    newColumn += displayWidth;
+                }
+            }
+        }
+    }
+
+    /** Drop the oldest unreflowed rows which, with the frozen rows, do not fit in {@link #mFrozenTranscript}. */
+    private void dropUnreflowedRows() {
+        while (!mUnreflowedRows.isEmpty()) {
+            int rows = mFrozenTranscript.getRows();
+            for (UnreflowedRows unreflowed : mUnreflowedRows)
+                rows += unreflowed.mRows;
+            if (rows <= mFrozenTranscript.getMaxRows()) return;
+
+            final UnreflowedRows oldest = mUnreflowedRows.get(0);
+            oldest.mRows -= oldest.mTranscript.dropOldestBlock();
+            if (oldest.mRows <= 0) {
+                oldest.mTranscript.clear();
+                mUnreflowedRows.remove(0);
+            }
+        }
+    }
+
+    private void clearUnreflowedRows() {
+        for (UnreflowedRows unreflowed : mUnreflowedRows)
+            unreflowed.mTranscript.clear();
+        mUnreflowedRows.clear();
+    }
+
+}
@@ -1,8 +1,7 @@
 package com.termux.terminal;
 
-import android.util.Base64;
-import android.util.Log;
-
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Locale;
@@ -46,51 +45,15 @@ public final class TerminalEmulator {
     /** Used for invalid data - http://en.wikipedia.org/wiki/Replacement_character#Replacement_character */
     public static final int UNICODE_REPLACEMENT_CHAR = 0xFFFD;
 
-    /** Escape processing: Not currently in an escape sequence. */
-    private static final int ESC_NONE = 0;
-    /** Escape processing: Have seen an ESC character - proceed to {@link #doEsc(int)} */
-    private static final int ESC = 1;
-    /** Escape processing: Have seen ESC POUND */
-    private static final int ESC_POUND = 2;
-    /** Escape processing: Have seen ESC and a character-set-select ( char */
-    private static final int ESC_SELECT_LEFT_PAREN = 3;
-    /** Escape processing: Have seen ESC and a character-set-select ) char */
-    private static final int ESC_SELECT_RIGHT_PAREN = 4;
-    /** Escape processing: "ESC [" or CSI (Control Sequence Introducer). */
-    private static final int ESC_CSI = 6;
-    /** Escape processing: ESC [ ? */
-    private static final int ESC_CSI_QUESTIONMARK = 7;
-    /** Escape processing: ESC [ $ */
-    private static final int ESC_CSI_DOLLAR = 8;
-    /** Escape processing: ESC % */
-    private static final int ESC_PERCENT = 9;
-    /** Escape processing: ESC ] (AKA OSC - Operating System Controls) */
-    private static final int ESC_OSC = 10;
-    /** Escape processing: ESC ] (AKA OSC - Operating System Controls) ESC */
-    private static final int ESC_OSC_ESC = 11;
-    /** Escape processing: ESC [ > */
-    private static final int ESC_CSI_BIGGERTHAN = 12;
-    /** Escape procession: "ESC P" or Device Control String (DCS) */
-    private static final int ESC_P = 13;
-    /** Escape processing: CSI > */
-    private static final int ESC_CSI_QUESTIONMARK_ARG_DOLLAR = 14;
-    /** Escape processing: CSI $ARGS ' ' */
-    private static final int ESC_CSI_ARGS_SPACE = 15;
-    /** Escape processing: CSI $ARGS '*' */
-    private static final int ESC_CSI_ARGS_ASTERIX = 16;
-    /** Escape processing: CSI " */
-    private static final int ESC_CSI_DOUBLE_QUOTE = 17;
-    /** Escape processing: CSI ' */
-    private static final int ESC_CSI_SINGLE_QUOTE = 18;
-    /** Escape processing: CSI ! */
-    private static final int ESC_CSI_EXCLAMATION = 19;
-
     /** The number of parameter arguments. This name comes from the ANSI standard for terminal escape codes. */
     private static final int MAX_ESCAPE_PARAMETERS = 16;
 
     /** Needs to be large enough to contain reasonable OSC 52 pastes. */
     private static final int MAX_OSC_STRING_LENGTH = 8192;
 
+    /** The most times REP repeats a character, so that a huge count does not keep the emulator busy. */
+    private static final int MAX_REPEAT = 65535;
+
     /** DECSET 1 - application cursor keys. */
     private static final int DECSET_BIT_APPLICATION_CURSOR_KEYS = 1;
     private static final int DECSET_BIT_REVERSE_VIDEO = 1 << 1;
@@ -126,6 +89,11 @@ public final class TerminalEmulator {
     private static final int DECSET_BIT_LEFTRIGHT_MARGIN_MODE = 1 << 11;
     /** Not really DECSET bit... - http://www.vt100.net/docs/vt510-rm/DECSACE */
     private static final int DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE = 1 << 12;
+    /**
+     * DECSET 2026 - synchronized output. The application is updating the screen and the result should not be shown
+     * until the mode is reset.
+     */
+    private static final int DECSET_BIT_SYNCHRONIZED_OUTPUT = 1 << 13;
 
     private String mTitle;
     private final Stack<String> mTitleStack = new Stack<>();
@@ -145,30 +113,39 @@ public final class TerminalEmulator {
      * the alternate screen buffer is active, you cannot scroll back to view saved lines).
      * <p>
      * See http://www.xfree86.org/current/ctlseqs.html#The%20Alternate%20Screen%20Buffer
+     * <p>
+     * Null until first used, as most sessions never use it, and again after {@link #releaseAlternateBuffer()}.
      */
-    final TerminalBuffer mAltBuffer;
+    TerminalBuffer mAltBuffer;
+    /** If the alternate screen buffer has been left since last calling {@link #checkAlternateBufferLeft()}. */
+    private boolean mAlternateBufferLeft;
     /** The current screen buffer, pointing at either {@link #mMainBuffer} or {@link #mAltBuffer}. */
     private TerminalBuffer mScreen;
+    /** The rows no longer used by the screen buffers, shared by them. */
+    private final TerminalRowPool mRowPool;
 
     /** The terminal session this emulator is bound to. */
     private final TerminalOutput mSession;
 
+    /** The widths of characters, in the Unicode version chosen for the session. */
+    private final WcWidth mWcWidth;
+
     /** Keeps track of the current argument of the current escape sequence. Ranges from 0 to MAX_ESCAPE_PARAMETERS-1. */
     private int mArgIndex;
     /** Holds the arguments of the current escape sequence. */
     private final int[] mArgs = new int[MAX_ESCAPE_PARAMETERS];
+    /** Bit i is set if {@code mArgs[i]} is a sub-parameter, that is preceded by ':' instead of ';'. */
+    private int mSubParameters;
+    /** The private marker ('<', '=', '>' or '?') of the current escape sequence, or 0 if none. */
+    private int mPrivateMarker;
+    /** The intermediate characters (0x20-0x2F) of the current escape sequence, packed with the last one lowest. */
+    private int mIntermediates;
 
     /** Holds OSC and device control arguments, which can be strings. */
     private final StringBuilder mOSCOrDeviceControlArgs = new StringBuilder();
 
-    /**
-     * True if the current escape sequence should continue, false if the current escape sequence should be terminated.
-     * Used when parsing a single character.
-     */
-    private boolean mContinueSequence;
-
-    /** The current state of the escape sequence state machine. One of the ESC_* constants. */
-    private int mEscapeState;
+    /** The current state of the escape sequence parser. One of the {@link TerminalParser} STATE_* constants. */
+    private int mParserState = TerminalParser.STATE_GROUND;
 
     private final SavedScreenState mSavedStateMain = new SavedScreenState();
     private final SavedScreenState mSavedStateAlt = new SavedScreenState();
@@ -221,8 +198,9 @@ public final class TerminalEmulator {
      */
     private int mScrollCounter = 0;
 
-    private byte mUtf8ToFollow, mUtf8Index;
-    private final byte[] mUtf8InputBuffer = new byte[4];
+    private final Utf8Decoder mUtf8Decoder = new Utf8Decoder();
+    /** Code points decoded from the bytes passed to {@link #append(byte[], int)}, grown as needed. */
+    private int[] mCodePoints = new int[0];
     private int mLastEmittedCodePoint = -1;
 
     public final TerminalColors mColors = new TerminalColors();
@@ -273,6 +251,8 @@ public final class TerminalEmulator {
                 return DECSET_BIT_MOUSE_PROTOCOL_SGR;
             case 2004:
                 return DECSET_BIT_BRACKETED_PASTE_MODE;
+            case 2026:
+                return DECSET_BIT_SYNCHRONIZED_OUTPUT;
             default:
                 return -1;
             // throw new IllegalArgumentException("Unsupported decset: " + decsetBit);
@@ -280,9 +260,15 @@ public final class TerminalEmulator {
     }
 
     public TerminalEmulator(TerminalOutput session, int columns, int rows, int transcriptRows) {
+        this(session, columns, rows, transcriptRows, WcWidth.getDefault());
+    }
+
+    /** @param wcWidth the widths of characters, which should match the ones used by programs in the terminal. */
+    public TerminalEmulator(TerminalOutput session, int columns, int rows, int transcriptRows, WcWidth wcWidth) {
         mSession = session;
-        mScreen = mMainBuffer = new TerminalBuffer(columns, transcriptRows, rows);
-        mAltBuffer = new TerminalBuffer(columns, rows, rows);
+        mWcWidth = wcWidth;
+        mRowPool = new TerminalRowPool(wcWidth);
+        mScreen = mMainBuffer = new TerminalBuffer(columns, transcriptRows, rows, wcWidth, mRowPool);
         mRows = rows;
         mColumns = columns;
         mTabStop = new boolean[mColumns];
@@ -293,6 +279,54 @@ public final class TerminalEmulator {
         return mScreen;
     }
 
+    /** See {@link TerminalBuffer#spillTranscript(File, int)}, for the transcript of the main screen buffer. */
+    public void spillTranscript(File directory, int memoryRows) {
+        mMainBuffer.spillTranscript(directory, memoryRows);
+    }
+
+    /** See {@link TerminalBuffer#shrinkTranscript()}, for the transcript of the main screen buffer. Also drops pooled rows. */
+    public boolean shrinkTranscript() {
+        mRowPool.clear();
+        return mMainBuffer.shrinkTranscript();
+    }
+
+    /** Returns an estimate of the bytes of memory taken by the rows of both screen buffers, and the pooled ones. */
+    public long getMemoryUsage() {
+        long memoryUsage = mMainBuffer.getMemoryUsage() + mRowPool.getMemoryUsage();
+        return (mAltBuffer == null) ? memoryUsage : memoryUsage + mAltBuffer.getMemoryUsage();
+    }
+
+    /** If the alternate screen buffer has been used but is not active now, so that it may be released. */
+    public boolean hasInactiveAlternateBuffer() {
+        return mAltBuffer != null && mScreen != mAltBuffer;
+    }
+
+    /**
+     * Returns if the alternate screen buffer has been left since last called, even if entered again since, so that it
+     * may be released later.
+     */
+    public boolean checkAlternateBufferLeft() {
+        final boolean left = mAlternateBufferLeft;
+        mAlternateBufferLeft = false;
+        return left;
+    }
+
+    /** Drop the alternate screen buffer if not active, to be allocated again when next used. */
+    public void releaseAlternateBuffer() {
+        if (!hasInactiveAlternateBuffer()) return;
+        mAltBuffer.releaseRows();
+        mAltBuffer = null;
+    }
+
+    /** Clear the transcript of the main screen buffer, deleting any files it was spilled to. */
+    public void clearTranscript() {
+        mMainBuffer.clearTranscript();
+    }
+
+    public WcWidth getWcWidth() {
+        return mWcWidth;
+    }
+
     public boolean isAlternateBufferActive() {
         return mScreen == mAltBuffer;
     }
@@ -385,6 +419,14 @@ public final class TerminalEmulator {
         return isDecsetInternalBitSet(DECSET_BIT_APPLICATION_CURSOR_KEYS);
     }
 
+    /**
+     * If the application is in the middle of a synchronized update (DECSET 2026), so that the screen is not
+     * consistent and should not be drawn until the mode is reset.
+     */
+    public boolean isSynchronizedOutput() {
+        return isDecsetInternalBitSet(DECSET_BIT_SYNCHRONIZED_OUTPUT);
+    }
+
     /** If mouse events are being sent as escape codes to the terminal. */
     public boolean isMouseTrackingActive() {
         return isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_PRESS_RELEASE) || isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_BUTTON_EVENT);
@@ -402,84 +444,98 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
-    }
-
-    private void processByte(byte byteToProcess) {
-        if (mUtf8ToFollow > 0) {
-            if ((byteToProcess & 0b11000000) == 0b10000000) {
-                // 10xxxxxx, a continuation byte.
-                mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
-                if (--mUtf8ToFollow == 0) {
-                    byte firstByteMask = (byte) (mUtf8Index == 2 ? 0b00011111 : (mUtf8Index == 3 ? 0b00001111 : 0b00000111));
-                    int codePoint = (mUtf8InputBuffer[0] & firstByteMask);
-                    for (int i = 1; i < mUtf8Index; i++)
-                        codePoint = ((codePoint << 6) | (mUtf8InputBuffer[i] & 0b00111111));
-                    if (((codePoint <= 0b1111111) && mUtf8Index > 1) || (codePoint < 0b11111111111 && mUtf8Index > 2)
-                        || (codePoint < 0b1111111111111111 && mUtf8Index > 3)) {
-                        // Overlong encoding.
-                        codePoint = UNICODE_REPLACEMENT_CHAR;
-                    }
-
-                    mUtf8Index = mUtf8ToFollow = 0;
-
-                    if (codePoint >= 0x80 && codePoint <= 0x9F) {
-                        // Sequence decoded to a C1 control character which we ignore. They are
-                        // not used nowadays and increases the risk of messing up the terminal state
-                        // on binary input. XTerm does not allow them in utf-8:
-                        // "It is not possible to use a C1 control obtained from decoding the
-                        // UTF-8 text" - http://invisible-island.net/xterm/ctlseqs/ctlseqs.html
-                    } else {
-                        switch (Character.getType(codePoint)) {
-                            case Character.UNASSIGNED:
-                            case Character.SURROGATE:
-                                codePoint = UNICODE_REPLACEMENT_CHAR;
-                        }
-                        processCodePoint(codePoint);
-                    }
-                }
-            } else {
-                // Not a UTF-8 continuation byte so replace the entire sequence up to now with the replacement char:
-                mUtf8Index = mUtf8ToFollow = 0;
-                emitCodePoint(UNICODE_REPLACEMENT_CHAR);
-                // The Unicode Standard Version 6.2 – Core Specification
-                // (http://www.unicode.org/versions/Unicode6.2.0/ch03.pdf):
-                // "If the converter encounters an ill-formed UTF-8 code unit sequence which starts with a valid first
-                // byte, but which does not continue with valid successor bytes (see Table 3-7), it must not consume the
-                // successor bytes as part of the ill-formed subsequence
-                // whenever those successor bytes themselves constitute part of a well-formed UTF-8 code unit
-                // subsequence."
-                processByte(byteToProcess);
-            }
-        } else {
-            if ((byteToProcess & 0b10000000) == 0) { // The leading bit is not set so it is a 7-bit ASCII character.
-                processCodePoint(byteToProcess);
-                return;
-            } else if ((byteToProcess & 0b11100000) == 0b11000000) { // 110xxxxx, a two-byte sequence.
-                mUtf8ToFollow = 1;
-            } else if ((byteToProcess & 0b11110000) == 0b11100000) { // 1110xxxx, a three-byte sequence.
-                mUtf8ToFollow = 2;
-            } else if ((byteToProcess & 0b11111000) == 0b11110000) { // 11110xxx, a four-byte sequence.
-                mUtf8ToFollow = 3;
+        if (mCodePoints.length < length + 1) mCodePoints = new int[length + 1];
+        final int[] codePoints = mCodePoints;
+        final int codePointCount = mUtf8Decoder.decode(buffer, length, codePoints);
+        for (int i = 0; i < codePointCount; i++) {
+            int codePoint = codePoints[i];
+            if (codePoint >= 32 && codePoint < 127 && mParserState == TerminalParser.STATE_GROUND) {
+                // Fast path for printable ASCII, which is what the bulk of typical program output consists of.
+                int runEnd = i + 1;
+                while (runEnd < codePointCount && codePoints[runEnd] >= 32 && codePoints[runEnd] < 127) runEnd++;
+                emitAsciiRun(codePoints, i, runEnd - i);
+                i = runEnd - 1;
             } else {
-                // Not a valid UTF-8 sequence start, signal invalid data:
-                processCodePoint(UNICODE_REPLACEMENT_CHAR);
-                return;
+                processCodePoint(codePoint);
             }
-            mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
         }
     }
 
     public void processCodePoint(int b) {
-        switch (b) {
-            case 0: // Null character (NUL, ^@). Do nothing.
+        final int transition = TerminalParser.transition(mParserState, b);
+        int nextState = TerminalParser.nextState(transition);
+        switch (TerminalParser.action(transition)) {
+            case TerminalParser.ACTION_IGNORE:
                 break;
-            case 7: // Bell (BEL, ^G, \a). If in an OSC sequence, BEL may terminate a string; otherwise signal bell.
-                if (mEscapeState == ESC_OSC)
-                    doOsc(b);
-                else
-                    mSession.onBell();
+            case TerminalParser.ACTION_PRINT:
+                emitCodePoint(b);
+                break;
+            case TerminalParser.ACTION_EXECUTE:
+                executeControl(b);
+                break;
+            case TerminalParser.ACTION_CLEAR:
+                clearSequence();
+                break;
+            case TerminalParser.ACTION_COLLECT:
+                if (b >= '<') {
+                    mPrivateMarker = b;
+                } else {
+                    mIntermediates = (mIntermediates << 8) | b;
+                }
+                break;
+            case TerminalParser.ACTION_PARAM:
+                parseArg(b);
+                break;
+            case TerminalParser.ACTION_ESC_DISPATCH:
+                dispatchEsc(b);
+                break;
+            case TerminalParser.ACTION_CSI_DISPATCH:
+                dispatchCsi(b);
+                break;
+            case TerminalParser.ACTION_HOOK:
+                // Keep the intermediates and the final character in front of the data, as in "$q" (DECRQSS) and "+q"
+                // (XTGETTCAP), since they select what the string is about.
+                mOSCOrDeviceControlArgs.setLength(0);
+                for (int shift = 24; shift >= 0; shift -= 8) {
+                    int intermediate = (mIntermediates >> shift) & 0xFF;
+                    if (intermediate != 0) mOSCOrDeviceControlArgs.append((char) intermediate);
+                }
+                mOSCOrDeviceControlArgs.appendCodePoint(b);
+                break;
+            case TerminalParser.ACTION_PUT:
+            case TerminalParser.ACTION_OSC_PUT:
+                if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
+                    mOSCOrDeviceControlArgs.appendCodePoint(b);
+                } else {
+                    // Too long, drop the string and continue with the rest of the output as normal text.
+                    logError("Too long OSC or device control string");
+                    mOSCOrDeviceControlArgs.setLength(0);
+                    nextState = TerminalParser.STATE_GROUND;
+                }
+                break;
+            case TerminalParser.ACTION_OSC_START:
+                mOSCOrDeviceControlArgs.setLength(0);
+                break;
+            case TerminalParser.ACTION_OSC_END:
+                doOscSetTextParameters("\007");
+                break;
+            case TerminalParser.ACTION_OSC_END_AND_CLEAR:
+                doOscSetTextParameters("\033\\");
+                clearSequence();
+                break;
+            case TerminalParser.ACTION_UNHOOK_AND_CLEAR:
+                doDeviceControl();
+                clearSequence();
+                break;
+        }
+        mParserState = nextState;
+    }
+
+    /** Execute a C0 control function. */
+    private void executeControl(int b) {
+        switch (b) {
+            case 7: // Bell (BEL, ^G, \a).
+                mSession.onBell();
                 break;
             case 8: // Backspace (BS, ^H).
                 if (mLeftMargin == mCursorCol) {
@@ -517,408 +573,379 @@ public final class TerminalEmulator {
             case 15: // Shift In (Ctrl-O, SI) → Switch to Standard Character Set. This invokes the G0 character set.
                 mUseLineDrawingUsesG0 = true;
                 break;
-            case 24: // CAN.
-            case 26: // SUB.
-                if (mEscapeState != ESC_NONE) {
-                    // FIXME: What is this??
-                    mEscapeState = ESC_NONE;
-                    emitCodePoint(127);
-                }
+        }
+    }
+
+    /** Execute a completed escape sequence, "ESC ${INTERMEDIATES}${FINAL}". */
+    private void dispatchEsc(int b) {
+        switch (mIntermediates) {
+            case 0:
+                doEsc(b);
                 break;
-            case 27: // ESC
-                // Starts an escape sequence unless we're parsing a string
-                if (mEscapeState == ESC_P) {
-                    // XXX: Ignore escape when reading device control sequence, since it may be part of string terminator.
-                    return;
-                } else if (mEscapeState != ESC_OSC) {
-                    startEscapeSequence();
-                } else {
-                    doOsc(b);
-                }
+            case '#':
+                doEscPound(b);
+                break;
+            case '(': // Designate G0 Character Set (ISO 2022, VT100).
+                mUseLineDrawingG0 = (b == '0');
+                break;
+            case ')': // Designate G1 Character Set (ISO 2022, VT100).
+                mUseLineDrawingG1 = (b == '0');
+                break;
+            case '%': // Select character set - ignore.
                 break;
             default:
-                mContinueSequence = false;
-                switch (mEscapeState) {
-                    case ESC_NONE:
-                        if (b >= 32) emitCodePoint(b);
-                        break;
-                    case ESC:
-                        doEsc(b);
-                        break;
-                    case ESC_POUND:
-                        doEscPound(b);
-                        break;
-                    case ESC_SELECT_LEFT_PAREN: // Designate G0 Character Set (ISO 2022, VT100).
-                        mUseLineDrawingG0 = (b == '0');
-                        break;
-                    case ESC_SELECT_RIGHT_PAREN: // Designate G1 Character Set (ISO 2022, VT100).
-                        mUseLineDrawingG1 = (b == '0');
-                        break;
-                    case ESC_CSI:
-                        doCsi(b);
-                        break;
-                    case ESC_CSI_EXCLAMATION:
-                        if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
-                            reset();
-                        } else {
-                            unknownSequence(b);
-                        }
-                        break;
-                    case ESC_CSI_QUESTIONMARK:
-                        doCsiQuestionMark(b);
-                        break;
-                    case ESC_CSI_BIGGERTHAN:
-                        doCsiBiggerThan(b);
-                        break;
-                    case ESC_CSI_DOLLAR:
-                        boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
-                        int effectiveTopMargin = originMode ? mTopMargin : 0;
-                        int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
-                        int effectiveLeftMargin = originMode ? mLeftMargin : 0;
-                        int effectiveRightMargin = originMode ? mRightMargin : mColumns;
-                        switch (b) {
-                            case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
-                                // Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
-                                // "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
-                                // The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
-                                // DECCRA is not affected by the page margins.
-                                // The copied text takes on the line attributes of the destination area.
-                                // If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
-                                // is treated as the width or height of that page.
-                                // If the destination area is partially off the page, then DECCRA clips the off-page data.
-                                // DECCRA does not change the active cursor position."
-                                int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
-                                int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
-                                // Inclusive, so do not subtract one:
-                                int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
-                                int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
-                                // int sourcePage = getArg(4, 1, true);
-                                int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
-                                int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
-                                // int destinationPage = getArg(7, 1, true);
-                                int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
-                                int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
-                                mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
-                                break;
-                            case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
-                                // Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
-                            case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
-                                // Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
-                            case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
-                                // Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
-                                boolean erase = b != 'x';
-                                boolean selective = b == '{';
-                                // Only DECSERA keeps visual attributes, DECERA does not:
-                                boolean keepVisualAttributes = erase && selective;
-                                int argIndex = 0;
-                                int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
-                                // "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
-                                // terminal ignores the DECFRA command":
-                                if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
-                                    // "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
-                                    // is treated as the width or height of that page."
-                                    int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
-                                    int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
-                                    int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
-                                    int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
-                                    long style = getStyle();
-                                    for (int row = top - 1; row < bottom; row++)
-                                        for (int col = left - 1; col < right; col++)
-                                            if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
-                                                mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
-                                }
-                                break;
-                            case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
-                                // Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
-                            case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
-                                // Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
-                                boolean reverse = b == 't';
-                                // FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".
-                                int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
-                                int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
-                                int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
-                                int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
-                                if (mArgIndex >= 4) {
-                                    if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
-                                    for (int i = 4; i <= mArgIndex; i++) {
-                                        int bits = 0;
-                                        boolean setOrClear = true; // True if setting, false if clearing.
-                                        switch (getArg(i, 0, false)) {
-                                            case 0: // Attributes off (no bold, no underline, no blink, positive image).
-                                                bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
-                                                    | TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
-                                                if (!reverse) setOrClear = false;
-                                                break;
-                                            case 1: // Bold.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-                                                break;
-                                            case 4: // Underline.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-                                                break;
-                                            case 5: // Blink.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-                                                break;
-                                            case 7: // Negative image.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-                                                break;
-                                            case 22: // No bold.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-                                                setOrClear = false;
-                                                break;
-                                            case 24: // No underline.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-                                                setOrClear = false;
-                                                break;
-                                            case 25: // No blink.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-                                                setOrClear = false;
-                                                break;
-                                            case 27: // Positive image.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-                                                setOrClear = false;
-                                                break;
-                                        }
-                                        if (reverse && !setOrClear) {
-                                            // Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
-                                        } else {
-                                            mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
-                                                effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
-                                        }
+                unknownSequence(b);
+                break;
+        }
+    }
+
+    /** Execute a completed control sequence, "CSI ${PRIVATE_MARKER}${ARGS}${INTERMEDIATES}${FINAL}". */
+    private void dispatchCsi(int b) {
+        if (mPrivateMarker == 0) {
+            switch (mIntermediates) {
+                case 0:
+                    doCsi(b);
+                    break;
+                case '!':
+                    if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
+                        reset();
+                    } else {
+                        unknownSequence(b);
+                    }
+                    break;
+                case '$':
+                    boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
+                    int effectiveTopMargin = originMode ? mTopMargin : 0;
+                    int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
+                    int effectiveLeftMargin = originMode ? mLeftMargin : 0;
+                    int effectiveRightMargin = originMode ? mRightMargin : mColumns;
+                    switch (b) {
+                        case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
+                            // Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
+                            // "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
+                            // The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
+                            // DECCRA is not affected by the page margins.
+                            // The copied text takes on the line attributes of the destination area.
+                            // If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
+                            // is treated as the width or height of that page.
+                            // If the destination area is partially off the page, then DECCRA clips the off-page data.
+                            // DECCRA does not change the active cursor position."
+                            int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
+                            int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
+                            // Inclusive, so do not subtract one:
+                            int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
+                            int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
+                            // int sourcePage = getArg(4, 1, true);
+                            int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
+                            int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
+                            // int destinationPage = getArg(7, 1, true);
+                            int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
+                            int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
+                            mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
+                            break;
+                        case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
+                            // Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
+                        case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
+                            // Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
+                        case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
+                            // Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
+                            boolean erase = b != 'x';
+                            boolean selective = b == '{';
+                            // Only DECSERA keeps visual attributes, DECERA does not:
+                            boolean keepVisualAttributes = erase && selective;
+                            int argIndex = 0;
+                            int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
+                            // "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
+                            // terminal ignores the DECFRA command":
+                            if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
+                                // "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
+                                // is treated as the width or height of that page."
+                                int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
+                                int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
+                                int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
+                                int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
+                                long style = getStyle();
+                                for (int row = top - 1; row < bottom; row++)
+                                    for (int col = left - 1; col < right; col++)
+                                        if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
+                                            mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
+                            }
+                            break;
+                        case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
+                            // Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
+                        case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
+                            // Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
+                            boolean reverse = b == 't';
+                            // FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".
+                            int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
+                            int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
+                            int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
+                            int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
+                            if (mArgIndex >= 4) {
+                                if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
+                                for (int i = 4; i <= mArgIndex; i++) {
+                                    int bits = 0;
+                                    boolean setOrClear = true; // True if setting, false if clearing.
+                                    switch (getArg(i, 0, false)) {
+                                        case 0: // Attributes off (no bold, no underline, no blink, positive image).
+                                            bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
+                                                | TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
+                                            if (!reverse) setOrClear = false;
+                                            break;
+                                        case 1: // Bold.
+                                            bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+                                            break;
+                                        case 4: // Underline.
+                                            bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                                            break;
+                                        case 5: // Blink.
+                                            bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+                                            break;
+                                        case 7: // Negative image.
+                                            bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+                                            break;
+                                        case 22: // No bold.
+                                            bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+                                            setOrClear = false;
+                                            break;
+                                        case 24: // No underline.
+                                            bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                                            setOrClear = false;
+                                            break;
+                                        case 25: // No blink.
+                                            bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+                                            setOrClear = false;
+                                            break;
+                                        case 27: // Positive image.
+                                            bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+                                            setOrClear = false;
+                                            break;
+                                    }
+                                    if (reverse && !setOrClear) {
+                                        // Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
+                                    } else {
+                                        mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
+                                            effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
                                     }
-                                } else {
-                                    // Do nothing.
                                 }
-                                break;
-                            default:
-                                unknownSequence(b);
-                        }
-                        break;
-                    case ESC_CSI_DOUBLE_QUOTE:
-                        if (b == 'q') {
-                            // http://www.vt100.net/docs/vt510-rm/DECSCA
-                            int arg = getArg0(0);
-                            if (arg == 0 || arg == 2) {
-                                // DECSED and DECSEL can erase characters.
-                                mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
-                            } else if (arg == 1) {
-                                // DECSED and DECSEL cannot erase characters.
-                                mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
                             } else {
-                                unknownSequence(b);
+                                // Do nothing.
                             }
-                        } else {
-                            unknownSequence(b);
-                        }
-                        break;
-                    case ESC_CSI_SINGLE_QUOTE:
-                        if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
-                            int columnsAfterCursor = mRightMargin - mCursorCol;
-                            int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
-                            int columnsToMove = columnsAfterCursor - columnsToInsert;
-                            mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
-                            blockClear(mCursorCol, 0, columnsToInsert, mRows);
-                        } else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
-                            int columnsAfterCursor = mRightMargin - mCursorCol;
-                            int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
-                            int columnsToMove = columnsAfterCursor - columnsToDelete;
-                            mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
-                            blockClear(mCursorRow + columnsToMove, 0, columnsToDelete, mRows);
-                        } else {
-                            unknownSequence(b);
-                        }
-                        break;
-                    case ESC_PERCENT:
-                        break;
-                    case ESC_OSC:
-                        doOsc(b);
-                        break;
-                    case ESC_OSC_ESC:
-                        doOscEsc(b);
-                        break;
-                    case ESC_P:
-                        doDeviceControl(b);
-                        break;
-                    case ESC_CSI_QUESTIONMARK_ARG_DOLLAR:
-                        if (b == 'p') {
-                            // Request DEC private mode (DECRQM).
-                            int mode = getArg0(0);
-                            int value;
-                            if (mode == 47 || mode == 1047 || mode == 1049) {
-                                // This state is carried by mScreen pointer.
-                                value = (mScreen == mAltBuffer) ? 1 : 2;
-                            } else {
-                                int internalBit = mapDecSetBitToInternalBit(mode);
-                                if (internalBit != -1) {
-                                    value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
-                                } else {
-                                    Log.e(EmulatorDebug.LOG_TAG, "Got DECRQM for unrecognized private DEC mode=" + mode);
-                                    value = 0; // 0=not recognized, 3=permanently set, 4=permanently reset
-                                }
-                            }
-                            mSession.write(String.format(Locale.US, "\033[?%d;%d$y", mode, value));
-                        } else {
+                            break;
+                        default:
                             unknownSequence(b);
-                        }
-                        break;
-                    case ESC_CSI_ARGS_SPACE:
+                    }
+                    break;
+                case '"':
+                    if (b == 'q') {
+                        // http://www.vt100.net/docs/vt510-rm/DECSCA
                         int arg = getArg0(0);
-                        switch (b) {
-                            case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
-                                switch (arg) {
-                                    case 0: // Blinking block.
-                                    case 1: // Blinking block.
-                                    case 2: // Steady block.
-                                        mCursorStyle = CURSOR_STYLE_BLOCK;
-                                        break;
-                                    case 3: // Blinking underline.
-                                    case 4: // Steady underline.
-                                        mCursorStyle = CURSOR_STYLE_UNDERLINE;
-                                        break;
-                                    case 5: // Blinking bar (xterm addition).
-                                    case 6: // Steady bar (xterm addition).
-                                        mCursorStyle = CURSOR_STYLE_BAR;
-                                        break;
-                                }
-                                break;
-                            case 't':
-                            case 'u':
-                                // Set margin-bell volume - ignore.
-                                break;
-                            default:
-                                unknownSequence(b);
-                        }
-                        break;
-                    case ESC_CSI_ARGS_ASTERIX:
-                        int attributeChangeExtent = getArg0(0);
-                        if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
-                            // Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
-                            setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
+                        if (arg == 0 || arg == 2) {
+                            // DECSED and DECSEL can erase characters.
+                            mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
+                        } else if (arg == 1) {
+                            // DECSED and DECSEL cannot erase characters.
+                            mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
                         } else {
                             unknownSequence(b);
                         }
-                        break;
-                    default:
+                    } else {
                         unknownSequence(b);
-                        break;
-                }
-                if (!mContinueSequence) mEscapeState = ESC_NONE;
-                break;
-        }
-    }
-
-    /** When in {@link #ESC_P} ("device control") sequence. */
-    private void doDeviceControl(int b) {
-        switch (b) {
-            case (byte) '\\': // End of ESC \ string Terminator
-            {
-                String dcs = mOSCOrDeviceControlArgs.toString();
-                // DCS $ q P t ST. Request Status String (DECRQSS)
-                if (dcs.startsWith("$q")) {
-                    if (dcs.equals("$q\"p")) {
-                        // DECSCL, conformance level, http://www.vt100.net/docs/vt510-rm/DECSCL:
-                        String csiString = "64;1\"p";
-                        mSession.write("\033P1$r" + csiString + "\033\\");
+                    }
+                    break;
+                case '\'':
+                    if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
+                        int columnsAfterCursor = mRightMargin - mCursorCol;
+                        int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
+                        int columnsToMove = columnsAfterCursor - columnsToInsert;
+                        mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
+                        blockClear(mCursorCol, 0, columnsToInsert, mRows);
+                    } else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
+                        int columnsAfterCursor = mRightMargin - mCursorCol;
+                        int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
+                        int columnsToMove = columnsAfterCursor - columnsToDelete;
+                        mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
+                        blockClear(mCursorRow + columnsToMove, 0, columnsToDelete, mRows);
                     } else {
-                        finishSequenceAndLogError("Unrecognized DECRQSS string: '" + dcs + "'");
+                        unknownSequence(b);
                     }
-                } else if (dcs.startsWith("+q")) {
-                    // Request Termcap/Terminfo String. The string following the "q" is a list of names encoded in
-                    // hexadecimal (2 digits per character) separated by ; which correspond to termcap or terminfo key
-                    // names.
-                    // Two special features are also recognized, which are not key names: Co for termcap colors (or colors
-                    // for terminfo colors), and TN for termcap name (or name for terminfo name).
-                    // xterm responds with DCS 1 + r P t ST for valid requests, adding to P t an = , and the value of the
-                    // corresponding string that xterm would send, or DCS 0 + r P t ST for invalid requests. The strings are
-                    // encoded in hexadecimal (2 digits per character).
-                    // Example:
-                    // :kr=\EOC: ks=\E[?1h\E=: ku=\EOA: le=^H:mb=\E[5m:md=\E[1m:\
-                    // where
-                    // kd=down-arrow key
-                    // kl=left-arrow key
-                    // kr=right-arrow key
-                    // ku=up-arrow key
-                    // #2=key_shome, "shifted home"
-                    // #4=key_sleft, "shift arrow left"
-                    // %i=key_sright, "shift arrow right"
-                    // *7=key_send, "shifted end"
-                    // k1=F1 function key
-
-                    // Example: Request for ku is "ESC P + q 6 b 7 5 ESC \", where 6b7d=ku in hexadecimal.
-                    // Xterm response in normal cursor mode:
-                    // "<27> P 1 + r 6 b 7 5 = 1 B 5 B 4 1" where 0x1B 0x5B 0x41 = 27 91 65 = ESC [ A
-                    // Xterm response in application cursor mode:
-                    // "<27> P 1 + r 6 b 7 5 = 1 B 5 B 4 1" where 0x1B 0x4F 0x41 = 27 91 65 = ESC 0 A
-
-                    // #4 is "shift arrow left":
-                    // *** Device Control (DCS) for '#4'- 'ESC P + q 23 34 ESC \'
-                    // Response: <27> P 1 + r 2 3 3 4 = 1 B 5 B 3 1 3 B 3 2 4 4 <27> \
-                    // where 0x1B 0x5B 0x31 0x3B 0x32 0x44 = ESC [ 1 ; 2 D
-                    // which we find in: TermKeyListener.java: KEY_MAP.put(KEYMOD_SHIFT | KEYCODE_DPAD_LEFT, "\033[1;2D");
-
-                    // See http://h30097.www3.hp.com/docs/base_doc/DOCUMENTATION/V40G_HTML/MAN/MAN4/0178____.HTM for what to
-                    // respond, as well as http://www.freebsd.org/cgi/man.cgi?query=termcap&sektion=5#CAPABILITIES for
-                    // the meaning of e.g. "ku", "kd", "kr", "kl"
-
-                    for (String part : dcs.substring(2).split(";")) {
-                        if (part.length() % 2 == 0) {
-                            StringBuilder transBuffer = new StringBuilder();
-                            for (int i = 0; i < part.length(); i += 2) {
-                                char c = (char) Long.decode("0x" + part.charAt(i) + "" + part.charAt(i + 1)).longValue();
-                                transBuffer.append(c);
-                            }
-                            String trans = transBuffer.toString();
-                            String responseValue;
-                            switch (trans) {
-                                case "Co":
-                                case "colors":
-                                    responseValue = "256"; // Number of colors.
+                    break;
+                case ' ':
+                    int arg = getArg0(0);
+                    switch (b) {
+                        case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
+                            switch (arg) {
+                                case 0: // Blinking block.
+                                case 1: // Blinking block.
+                                case 2: // Steady block.
+                                    mCursorStyle = CURSOR_STYLE_BLOCK;
                                     break;
-                                case "TN":
-                                case "name":
-                                    responseValue = "xterm";
+                                case 3: // Blinking underline.
+                                case 4: // Steady underline.
+                                    mCursorStyle = CURSOR_STYLE_UNDERLINE;
                                     break;
-                                default:
-                                    responseValue = KeyHandler.getCodeFromTermcap(trans, isDecsetInternalBitSet(DECSET_BIT_APPLICATION_CURSOR_KEYS),
-                                        isDecsetInternalBitSet(DECSET_BIT_APPLICATION_KEYPAD));
+                                case 5: // Blinking bar (xterm addition).
+                                case 6: // Steady bar (xterm addition).
+                                    mCursorStyle = CURSOR_STYLE_BAR;
                                     break;
                             }
-                            if (responseValue == null) {
-                                switch (trans) {
-                                    case "%1": // Help key - ignore
-                                    case "&8": // Undo key - ignore.
-                                        break;
-                                    default:
-                                        Log.w(EmulatorDebug.LOG_TAG, "Unhandled termcap/terminfo name: '" + trans + "'");
-                                }
-                                // Respond with invalid request:
-                                mSession.write("\033P0+r" + part + "\033\\");
-                            } else {
-                                StringBuilder hexEncoded = new StringBuilder();
-                                for (int j = 0; j < responseValue.length(); j++) {
-                                    hexEncoded.append(String.format("%02X", (int) responseValue.charAt(j)));
-                                }
-                                mSession.write("\033P1+r" + part + "=" + hexEncoded + "\033\\");
-                            }
-                        } else {
-                            Log.e(EmulatorDebug.LOG_TAG, "Invalid device termcap/terminfo name of odd length: " + part);
-                        }
+                            break;
+                        case 't':
+                        case 'u':
+                            // Set margin-bell volume - ignore.
+                            break;
+                        default:
+                            unknownSequence(b);
+                    }
+                    break;
+                case '*':
+                    int attributeChangeExtent = getArg0(0);
+                    if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
+                        // Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
+                        setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
+                    } else {
+                        unknownSequence(b);
                     }
+                    break;
+                default:
+                    unknownSequence(b);
+                    break;
+            }
+        } else if (mIntermediates == 0) {
+            switch (mPrivateMarker) {
+                case '?':
+                    doCsiQuestionMark(b);
+                    break;
+                case '>':
+                    doCsiBiggerThan(b);
+                    break;
+                default:
+                    unknownSequence(b);
+                    break;
+            }
+        } else if (mPrivateMarker == '?' && mIntermediates == '$') {
+            if (b == 'p') {
+                // Request DEC private mode (DECRQM).
+                int mode = getArg0(0);
+                int value;
+                if (mode == 47 || mode == 1047 || mode == 1049) {
+                    // This state is carried by mScreen pointer.
+                    value = (mScreen == mAltBuffer) ? 1 : 2;
                 } else {
-                    if (LOG_ESCAPE_SEQUENCES)
-                        Log.e(EmulatorDebug.LOG_TAG, "Unrecognized device control string: " + dcs);
+                    int internalBit = mapDecSetBitToInternalBit(mode);
+                    if (internalBit != -1) {
+                        value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
+                    } else {
+                        EmulatorDebug.logError("Got DECRQM for unrecognized private DEC mode=" + mode);
+                        value = 0; // 0=not recognized, 3=permanently set, 4=permanently reset
+                    }
                 }
-                finishSequence();
+                mSession.write(String.format(Locale.US, "\033[?%d;%d$y", mode, value));
+            } else {
+                unknownSequence(b);
             }
-            break;
-            default:
-                if (mOSCOrDeviceControlArgs.length() > MAX_OSC_STRING_LENGTH) {
-                    // Too long.
-                    mOSCOrDeviceControlArgs.setLength(0);
-                    finishSequence();
+        } else {
+            unknownSequence(b);
+        }
+    }
+
+    /** A device control string ("ESC P") terminated by "ESC \\". */
+    private void doDeviceControl() {
+        String dcs = mOSCOrDeviceControlArgs.toString();
+        // DCS $ q P t ST. Request Status String (DECRQSS)
+        if (dcs.startsWith("$q")) {
+            if (dcs.equals("$q\"p")) {
+                // DECSCL, conformance level, http://www.vt100.net/docs/vt510-rm/DECSCL:
+                String csiString = "64;1\"p";
+                mSession.write("\033P1$r" + csiString + "\033\\");
+            } else {
+                logSequenceError("Unrecognized DECRQSS string: '" + dcs + "'");
+            }
+        } else if (dcs.startsWith("+q")) {
+            // Request Termcap/Terminfo String. The string following the "q" is a list of names encoded in
+            // hexadecimal (2 digits per character) separated by ; which correspond to termcap or terminfo key
+            // names.
+            // Two special features are also recognized, which are not key names: Co for termcap colors (or colors
+            // for terminfo colors), and TN for termcap name (or name for terminfo name).
+            // xterm responds with DCS 1 + r P t ST for valid requests, adding to P t an = , and the value of the
+            // corresponding string that xterm would send, or DCS 0 + r P t ST for invalid requests. The strings are
+            // encoded in hexadecimal (2 digits per character).
+            // Example:
+            // :kr=\EOC: ks=\E[?1h\E=: ku=\EOA: le=^H:mb=\E[5m:md=\E[1m:\
+            // where
+            // kd=down-arrow key
+            // kl=left-arrow key
+            // kr=right-arrow key
+            // ku=up-arrow key
+            // #2=key_shome, "shifted home"
+            // #4=key_sleft, "shift arrow left"
+            // %i=key_sright, "shift arrow right"
+            // *7=key_send, "shifted end"
+            // k1=F1 function key
+
+            // Example: Request for ku is "ESC P + q 6 b 7 5 ESC \", where 6b7d=ku in hexadecimal.
+            // Xterm response in normal cursor mode:
+            // "<27> P 1 + r 6 b 7 5 = 1 B 5 B 4 1" where 0x1B 0x5B 0x41 = 27 91 65 = ESC [ A
+            // Xterm response in application cursor mode:
+            // "<27> P 1 + r 6 b 7 5 = 1 B 5 B 4 1" where 0x1B 0x4F 0x41 = 27 91 65 = ESC 0 A
+
+            // #4 is "shift arrow left":
+            // *** Device Control (DCS) for '#4'- 'ESC P + q 23 34 ESC \'
+            // Response: <27> P 1 + r 2 3 3 4 = 1 B 5 B 3 1 3 B 3 2 4 4 <27> \
+            // where 0x1B 0x5B 0x31 0x3B 0x32 0x44 = ESC [ 1 ; 2 D
+            // which we find in: TermKeyListener.java: KEY_MAP.put(KEYMOD_SHIFT | KEYCODE_DPAD_LEFT, "\033[1;2D");
+
+            // See http://h30097.www3.hp.com/docs/base_doc/DOCUMENTATION/V40G_HTML/MAN/MAN4/0178____.HTM for what to
+            // respond, as well as http://www.freebsd.org/cgi/man.cgi?query=termcap&sektion=5#CAPABILITIES for
+            // the meaning of e.g. "ku", "kd", "kr", "kl"
+
+            for (String part : dcs.substring(2).split(";")) {
+                if (part.length() % 2 == 0) {
+                    StringBuilder transBuffer = new StringBuilder();
+                    for (int i = 0; i < part.length(); i += 2) {
+                        char c = (char) Long.decode("0x" + part.charAt(i) + "" + part.charAt(i + 1)).longValue();
+                        transBuffer.append(c);
+                    }
+                    String trans = transBuffer.toString();
+                    String responseValue;
+                    switch (trans) {
+                        case "Co":
+                        case "colors":
+                            responseValue = "256"; // Number of colors.
+                            break;
+                        case "TN":
+                        case "name":
+                            responseValue = "xterm";
+                            break;
+                        default:
+                            responseValue = KeyHandler.getCodeFromTermcap(trans, isDecsetInternalBitSet(DECSET_BIT_APPLICATION_CURSOR_KEYS),
+                                isDecsetInternalBitSet(DECSET_BIT_APPLICATION_KEYPAD));
+                            break;
+                    }
+                    if (responseValue == null) {
+                        switch (trans) {
+                            case "%1": // Help key - ignore
+                            case "&8": // Undo key - ignore.
+                                break;
+                            default:
+                                EmulatorDebug.logWarning("Unhandled termcap/terminfo name: '" + trans + "'");
+                        }
+                        // Respond with invalid request:
+                        mSession.write("\033P0+r" + part + "\033\\");
+                    } else {
+                        StringBuilder hexEncoded = new StringBuilder();
+                        for (int j = 0; j < responseValue.length(); j++) {
+                            hexEncoded.append(String.format("%02X", (int) responseValue.charAt(j)));
+                        }
+                        mSession.write("\033P1+r" + part + "=" + hexEncoded + "\033\\");
+                    }
                 } else {
-                    mOSCOrDeviceControlArgs.appendCodePoint(b);
-                    continueSequence(mEscapeState);
+                    EmulatorDebug.logError("Invalid device termcap/terminfo name of odd length: " + part);
                 }
+            }
+        } else {
+            if (LOG_ESCAPE_SEQUENCES)
+                EmulatorDebug.logError("Unrecognized device control string: " + dcs);
         }
     }
 
@@ -928,7 +955,7 @@ public final class TerminalEmulator {
         return mRightMargin - 1;
     }
 
-    /** Process byte while in the {@link #ESC_CSI_QUESTIONMARK} escape state. */
+    /** Execute a "CSI ? ${ARGS}${FINAL}" control sequence. */
     private void doCsiQuestionMark(int b) {
         switch (b) {
             case 'J': // Selective erase in display (DECSED) - http://www.vt100.net/docs/vt510-rm/DECSED.
@@ -984,8 +1011,7 @@ public final class TerminalEmulator {
                         mSession.write(String.format(Locale.US, "\033[?%d;%d;1R", mCursorRow + 1, mCursorCol + 1));
                         break;
                     default:
-                        finishSequence();
-                        return;
+                        break;
                 }
                 break;
             case 'r':
@@ -995,7 +1021,7 @@ public final class TerminalEmulator {
                     int externalBit = mArgs[i];
                     int internalBit = mapDecSetBitToInternalBit(externalBit);
                     if (internalBit == -1) {
-                        Log.w(EmulatorDebug.LOG_TAG, "Ignoring request to save/recall decset bit=" + externalBit);
+                        EmulatorDebug.logWarning("Ignoring request to save/recall decset bit=" + externalBit);
                     } else {
                         if (b == 's') {
                             mSavedDecSetFlags |= internalBit;
@@ -1005,11 +1031,8 @@ public final class TerminalEmulator {
                     }
                 }
                 break;
-            case '$':
-                continueSequence(ESC_CSI_QUESTIONMARK_ARG_DOLLAR);
-                return;
             default:
-                parseArg(b);
+                unknownSequence(b);
         }
     }
 
@@ -1078,6 +1101,7 @@ public final class TerminalEmulator {
             case 1049: {
                 // Set: Save cursor as in DECSC and use Alternate Screen Buffer, clearing it first.
                 // Reset: Use Normal Screen Buffer and restore cursor as in DECRC.
+                if (setting && mAltBuffer == null) mAltBuffer = new TerminalBuffer(mColumns, mRows, mRows, mWcWidth, mRowPool);
                 TerminalBuffer newScreen = setting ? mAltBuffer : mMainBuffer;
                 if (newScreen != mScreen) {
                     boolean resized = !(newScreen.mColumns == mColumns && newScreen.mScreenRows == mRows);
@@ -1095,15 +1119,22 @@ public final class TerminalEmulator {
                     }
                     // Check if buffer size needs to be updated:
                     if (resized) resizeScreen();
-                    // Clear new screen if alt buffer:
-                    if (newScreen == mAltBuffer)
+                    // Clear new screen if alt buffer, or give the rows of the alt buffer back until used again:
+                    if (newScreen == mAltBuffer) {
                         newScreen.blockSet(0, 0, mColumns, mRows, ' ', getStyle());
+                    } else {
+                        mAltBuffer.releaseRows();
+                        mAlternateBufferLeft = true;
+                    }
                 }
                 break;
             }
             case 2004:
                 // Bracketed paste mode - setting bit is enough.
                 break;
+            case 2026:
+                // Synchronized output - setting bit is enough, the session holds back screen updates while set.
+                break;
             default:
                 unknownParameter(externalBit);
                 break;
@@ -1182,18 +1213,21 @@ public final class TerminalEmulator {
                 // (1) enables this feature for keys except for those with well-known behavior, e.g., Tab, Backarrow and
                 // some special control character cases, e.g., Control-Space to make a NUL.
                 // (2) enables this feature for keys including the exceptions listed.
-                Log.e(EmulatorDebug.LOG_TAG, "(ignored) CSI > MODIFY RESOURCE: " + getArg0(-1) + " to " + getArg1(-1));
+                EmulatorDebug.logError("(ignored) CSI > MODIFY RESOURCE: " + getArg0(-1) + " to " + getArg1(-1));
                 break;
             default:
-                parseArg(b);
+                unknownSequence(b);
                 break;
         }
     }
 
-    private void startEscapeSequence() {
-        mEscapeState = ESC;
+    /** Forget the state of the previous escape sequence when starting a new one. */
+    private void clearSequence() {
         mArgIndex = 0;
         Arrays.fill(mArgs, -1);
+        mSubParameters = 0;
+        mPrivateMarker = 0;
+        mIntermediates = 0;
     }
 
     private void doLinefeed() {
@@ -1213,11 +1247,6 @@ public final class TerminalEmulator {
         }
     }
 
-    private void continueSequence(int state) {
-        mEscapeState = state;
-        mContinueSequence = true;
-    }
-
     private void doEscPound(int b) {
         switch (b) {
             case '8': // Esc # 8 - DEC screen alignment test - fill screen with E's.
@@ -1229,18 +1258,9 @@ public final class TerminalEmulator {
         }
     }
 
-    /** Encountering a character in the {@link #ESC} state. */
+    /** Execute a "ESC ${FINAL}" escape sequence without intermediate characters. */
     private void doEsc(int b) {
         switch (b) {
-            case '#':
-                continueSequence(ESC_POUND);
-                break;
-            case '(':
-                continueSequence(ESC_SELECT_LEFT_PAREN);
-                break;
-            case ')':
-                continueSequence(ESC_SELECT_RIGHT_PAREN);
-                break;
             case '6': // Back index (http://www.vt100.net/docs/vt510-rm/DECBI). Move left, insert blank column if start.
                 if (mCursorCol > mLeftMargin) {
                     mCursorCol--;
@@ -1288,8 +1308,7 @@ public final class TerminalEmulator {
                 // http://www.vt100.net/docs/vt100-ug/chapter3.html: "Move the active position to the same horizontal
                 // position on the preceding line. If the active position is at the top margin, a scroll down is performed".
                 if (mCursorRow <= mTopMargin) {
-                    mScreen.blockCopy(0, mTopMargin, mColumns, mBottomMargin - (mTopMargin + 1), 0, mTopMargin + 1);
-                    blockClear(0, mTopMargin, mColumns);
+                    mScreen.shiftRows(mTopMargin, mBottomMargin, 1, getStyle());
                 } else {
                     mCursorRow--;
                 }
@@ -1297,20 +1316,11 @@ public final class TerminalEmulator {
             case 'N': // SS2, ignore.
             case '0': // SS3, ignore.
                 break;
-            case 'P': // Device control string
-                mOSCOrDeviceControlArgs.setLength(0);
-                continueSequence(ESC_P);
-                break;
-            case '[':
-                continueSequence(ESC_CSI);
+            case '\\': // String terminator (ST), ending an OSC or device control string which has already been handled.
                 break;
             case '=': // DECKPAM
                 setDecsetinternalBit(DECSET_BIT_APPLICATION_KEYPAD, true);
                 break;
-            case ']': // OSC
-                mOSCOrDeviceControlArgs.setLength(0);
-                continueSequence(ESC_OSC);
-                break;
             case '>': // DECKPNM
                 setDecsetinternalBit(DECSET_BIT_APPLICATION_KEYPAD, false);
                 break;
@@ -1348,24 +1358,9 @@ public final class TerminalEmulator {
         mUseLineDrawingUsesG0 = state.mUseLineDrawingUsesG0;
     }
 
-    /** Following a CSI - Control Sequence Introducer, "\033[". {@link #ESC_CSI}. */
+    /** Execute a "CSI ${ARGS}${FINAL}" control sequence, where CSI is the Control Sequence Introducer "\033[". */
     private void doCsi(int b) {
         switch (b) {
-            case '!':
-                continueSequence(ESC_CSI_EXCLAMATION);
-                break;
-            case '"':
-                continueSequence(ESC_CSI_DOUBLE_QUOTE);
-                break;
-            case '\'':
-                continueSequence(ESC_CSI_SINGLE_QUOTE);
-                break;
-            case '$':
-                continueSequence(ESC_CSI_DOLLAR);
-                break;
-            case '*':
-                continueSequence(ESC_CSI_ARGS_ASTERIX);
-                break;
             case '@': {
                 // "CSI{n}@" - Insert ${n} space characters (ICH) - http://www.vt100.net/docs/vt510-rm/ICH.
                 mAboutToAutoWrap = false;
@@ -1450,9 +1445,9 @@ public final class TerminalEmulator {
             {
                 int linesAfterCursor = mBottomMargin - mCursorRow;
                 int linesToInsert = Math.min(getArg0(1), linesAfterCursor);
-                int linesToMove = linesAfterCursor - linesToInsert;
-                mScreen.blockCopy(0, mCursorRow, mColumns, linesToMove, 0, mCursorRow + linesToInsert);
-                blockClear(0, mCursorRow, mColumns, linesToInsert);
+                // Nothing to do with the cursor below the bottom margin.
+                if (linesAfterCursor > 0)
+                    mScreen.shiftRows(mCursorRow, mBottomMargin, linesToInsert, getStyle());
             }
             break;
             case 'M': // "${CSI}${N}M" - delete N lines (DL).
@@ -1460,9 +1455,8 @@ public final class TerminalEmulator {
                 mAboutToAutoWrap = false;
                 int linesAfterCursor = mBottomMargin - mCursorRow;
                 int linesToDelete = Math.min(getArg0(1), linesAfterCursor);
-                int linesToMove = linesAfterCursor - linesToDelete;
-                mScreen.blockCopy(0, mCursorRow + linesToDelete, mColumns, linesToMove, 0, mCursorRow);
-                blockClear(0, mCursorRow + linesToMove, mColumns, linesToDelete);
+                if (linesAfterCursor > 0)
+                    mScreen.shiftRows(mCursorRow, mBottomMargin, -linesToDelete, getStyle());
             }
             break;
             case 'P': // "${CSI}{N}P" - delete ${N} characters (DCH).
@@ -1481,7 +1475,8 @@ public final class TerminalEmulator {
             }
             break;
             case 'S': { // "${CSI}${N}S" - scroll up ${N} lines (default = 1) (SU).
-                final int linesToScroll = getArg0(1);
+                // Scrolling more than the rows between the margins only adds blank rows to the transcript.
+                final int linesToScroll = Math.min(getArg0(1), mBottomMargin - mTopMargin);
                 for (int i = 0; i < linesToScroll; i++)
                     scrollDownOneLine();
                 break;
@@ -1495,8 +1490,7 @@ public final class TerminalEmulator {
                     final int linesToScrollArg = getArg0(1);
                     final int linesBetweenTopAndBottomMargins = mBottomMargin - mTopMargin;
                     final int linesToScroll = Math.min(linesBetweenTopAndBottomMargins, linesToScrollArg);
-                    mScreen.blockCopy(0, mTopMargin, mColumns, linesBetweenTopAndBottomMargins - linesToScroll, 0, mTopMargin + linesToScroll);
-                    blockClear(0, mTopMargin, mColumns, linesToScroll);
+                    mScreen.shiftRows(mTopMargin, mBottomMargin, linesToScroll, getStyle());
                 } else {
                     // "${CSI}${func};${startx};${starty};${firstrow};${lastrow}T" - initiate highlight mouse tracking.
                     unimplementedSequence(b);
@@ -1518,19 +1512,20 @@ public final class TerminalEmulator {
                     }
                 mCursorCol = newCol;
                 break;
-            case '?': // Esc [ ? -- start of a private mode set
-                continueSequence(ESC_CSI_QUESTIONMARK);
-                break;
-            case '>': // "Esc [ >" --
-                continueSequence(ESC_CSI_BIGGERTHAN);
-                break;
             case '`': // Horizontal position absolute (HPA - http://www.vt100.net/docs/vt510-rm/HPA).
                 setCursorColRespectingOriginMode(getArg0(1) - 1);
                 break;
             case 'b': // Repeat the preceding graphic character Ps times (REP).
                 if (mLastEmittedCodePoint == -1) break;
-                final int numRepeat = getArg0(1);
-                for (int i = 0; i < numRepeat; i++) emitCodePoint(mLastEmittedCodePoint);
+                final int numRepeat = Math.min(getArg0(1), MAX_REPEAT);
+                final int repeatedCodePoint = (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1)
+                    ? toLineDrawing(mLastEmittedCodePoint) : mLastEmittedCodePoint;
+                final int repeatedWidth = mWcWidth.getWidth(repeatedCodePoint);
+                if (!mInsertMode && mCursorCol < mRightMargin && repeatedWidth > 0 && mRightMargin - mLeftMargin >= repeatedWidth) {
+                    emitRepeatedCodePoint(repeatedCodePoint, repeatedWidth, numRepeat);
+                } else {
+                    for (int i = 0; i < numRepeat; i++) emitCodePoint(mLastEmittedCodePoint);
+                }
                 break;
             case 'c': // Primary Device Attributes (http://www.vt100.net/docs/vt510-rm/DA1) if argument is missing or zero.
                 // The important part that may still be used by some (tmux stores this value but does not currently use it)
@@ -1660,11 +1655,8 @@ public final class TerminalEmulator {
             case 'u': // Restore cursor (ANSI.SYS).
                 restoreCursor();
                 break;
-            case ' ':
-                continueSequence(ESC_CSI_ARGS_SPACE);
-                break;
             default:
-                parseArg(b);
+                unknownSequence(b);
                 break;
         }
     }
@@ -1674,6 +1666,13 @@ public final class TerminalEmulator {
         if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
         for (int i = 0; i <= mArgIndex; i++) {
             int code = mArgs[i];
+            int subParameterCount = 0;
+            while (i + subParameterCount < mArgIndex && isSubParameter(i + subParameterCount + 1)) subParameterCount++;
+            if (subParameterCount > 0) {
+                selectGraphicRenditionWithSubParameters(code, i + 1, subParameterCount);
+                i += subParameterCount;
+                continue;
+            }
             if (code < 0) {
                 if (mArgIndex > 0) {
                     continue;
@@ -1729,11 +1728,11 @@ public final class TerminalEmulator {
                 int firstArg = mArgs[i + 1];
                 if (firstArg == 2) {
                     if (i + 4 > mArgIndex) {
-                        Log.w(EmulatorDebug.LOG_TAG, "Too few CSI" + code + ";2 RGB arguments");
+                        EmulatorDebug.logWarning("Too few CSI" + code + ";2 RGB arguments");
                     } else {
                         int red = mArgs[i + 2], green = mArgs[i + 3], blue = mArgs[i + 4];
                         if (red < 0 || green < 0 || blue < 0 || red > 255 || green > 255 || blue > 255) {
-                            finishSequenceAndLogError("Invalid RGB: " + red + "," + green + "," + blue);
+                            logSequenceError("Invalid RGB: " + red + "," + green + "," + blue);
                         } else {
                             int argbColor = 0xff000000 | (red << 16) | (green << 8) | blue;
                             if (code == 38) {
@@ -1754,10 +1753,10 @@ public final class TerminalEmulator {
                             mBackColor = color;
                         }
                     } else {
-                        if (LOG_ESCAPE_SEQUENCES) Log.w(EmulatorDebug.LOG_TAG, "Invalid color index: " + color);
+                        if (LOG_ESCAPE_SEQUENCES) EmulatorDebug.logWarning("Invalid color index: " + color);
                     }
                 } else {
-                    finishSequenceAndLogError("Invalid ISO-8613-3 SGR first argument: " + firstArg);
+                    logSequenceError("Invalid ISO-8613-3 SGR first argument: " + firstArg);
                 }
             } else if (code == 39) { // Set default foreground color.
                 mForeColor = TextStyle.COLOR_INDEX_FOREGROUND;
@@ -1771,37 +1770,58 @@ public final class TerminalEmulator {
                 mBackColor = code - 100 + 8;
             } else {
                 if (LOG_ESCAPE_SEQUENCES)
-                    Log.w(EmulatorDebug.LOG_TAG, String.format("SGR unknown code %d", code));
+                    EmulatorDebug.logWarning(String.format("SGR unknown code %d", code));
             }
         }
     }
 
-    private void doOsc(int b) {
-        switch (b) {
-            case 7: // Bell.
-                doOscSetTextParameters("\007");
-                break;
-            case 27: // Escape.
-                continueSequence(ESC_OSC_ESC);
-                break;
-            default:
-                collectOSCArgs(b);
-                break;
-        }
-    }
-
-    private void doOscEsc(int b) {
-        switch (b) {
-            case '\\':
-                doOscSetTextParameters("\033\\");
-                break;
-            default:
-                // The ESC character was not followed by a \, so insert the ESC and
-                // the current character in arg buffer.
-                collectOSCArgs(27);
-                collectOSCArgs(b);
-                continueSequence(ESC_OSC);
-                break;
+    /**
+     * Select Graphic Rendition with a code followed by colon separated sub-parameters, as in "38:2::R:G:B" (ITU T.416
+     * form of 24-bit color, where the color space identifier may be left out), "48:5:INDEX" or "4:3" (curly underline).
+     */
+    private void selectGraphicRenditionWithSubParameters(int code, int firstIndex, int count) {
+        if (code == 38 || code == 48) {
+            int color;
+            switch (mArgs[firstIndex]) {
+                case 2:
+                    if (count < 4) {
+                        logSequenceError("Too few CSI" + code + ":2 RGB sub-parameters");
+                        return;
+                    }
+                    int rgbIndex = firstIndex + count - 3;
+                    int red = mArgs[rgbIndex], green = mArgs[rgbIndex + 1], blue = mArgs[rgbIndex + 2];
+                    if (red < 0 || green < 0 || blue < 0 || red > 255 || green > 255 || blue > 255) {
+                        logSequenceError("Invalid RGB: " + red + "," + green + "," + blue);
+                        return;
+                    }
+                    color = 0xff000000 | (red << 16) | (green << 8) | blue;
+                    break;
+                case 5:
+                    color = (count < 2) ? -1 : mArgs[firstIndex + 1];
+                    if (color < 0 || color >= TextStyle.NUM_INDEXED_COLORS) {
+                        if (LOG_ESCAPE_SEQUENCES) EmulatorDebug.logWarning("Invalid color index: " + color);
+                        return;
+                    }
+                    break;
+                default:
+                    logSequenceError("Invalid ISO-8613-3 SGR first sub-parameter: " + mArgs[firstIndex]);
+                    return;
+            }
+            if (code == 38) {
+                mForeColor = color;
+            } else {
+                mBackColor = color;
+            }
+        } else if (code == 4) {
+            // "4:0" is no underline, while the different underline styles of "4:1" to "4:5" are all shown as underline.
+            if (mArgs[firstIndex] == 0) {
+                mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+            } else {
+                mEffect |= TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+            }
+        } else {
+            if (LOG_ESCAPE_SEQUENCES)
+                EmulatorDebug.logWarning(String.format("SGR unknown code %d with sub-parameters", code));
         }
     }
 
@@ -1902,10 +1922,10 @@ public final class TerminalEmulator {
             case 52: // Manipulate Selection Data. Skip the optional first selection parameter(s).
                 int startIndex = textParameter.indexOf(";") + 1;
                 try {
-                    String clipboardText = new String(Base64.decode(textParameter.substring(startIndex), 0), StandardCharsets.UTF_8);
+                    String clipboardText = new String(decodeBase64(textParameter.substring(startIndex)), StandardCharsets.UTF_8);
                     mSession.clipboardText(clipboardText);
                 } catch (Exception e) {
-                    Log.e(EmulatorDebug.LOG_TAG, "OSC Manipulate selection, invalid string '" + textParameter + "");
+                    EmulatorDebug.logError("OSC Manipulate selection, invalid string '" + textParameter + "");
                 }
                 break;
             case 104:
@@ -1947,7 +1967,39 @@ public final class TerminalEmulator {
                 unknownParameter(value);
                 break;
         }
-        finishSequence();
+    }
+
+    /** Decode base64 data, skipping characters outside of the base64 alphabet such as line breaks. */
+    static byte[] decodeBase64(String data) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(data.length() * 3 / 4);
+        int buffer = 0;
+        int bufferedBits = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            int value;
+            if (c >= 'A' && c <= 'Z') {
+                value = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                value = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                value = c - '0' + 52;
+            } else if (c == '+') {
+                value = 62;
+            } else if (c == '/') {
+                value = 63;
+            } else if (c == '=') {
+                break;
+            } else {
+                continue;
+            }
+            buffer = (buffer << 6) | value;
+            bufferedBits += 6;
+            if (bufferedBits >= 8) {
+                bufferedBits -= 8;
+                result.write((buffer >> bufferedBits) & 0xFF);
+            }
+        }
+        return result.toByteArray();
     }
 
     private void blockClear(int sx, int sy, int w) {
@@ -2010,7 +2062,7 @@ public final class TerminalEmulator {
         }
     }
 
-    /** Process the next ASCII character of a parameter. */
+    /** Process the next ASCII character of a parameter: a digit or a parameter (';') or sub-parameter (':') separator. */
     private void parseArg(int b) {
         if (b >= '0' && b <= '9') {
             if (mArgIndex < mArgs.length) {
@@ -2024,17 +2076,16 @@ public final class TerminalEmulator {
                 }
                 mArgs[mArgIndex] = value;
             }
-            continueSequence(mEscapeState);
-        } else if (b == ';') {
-            if (mArgIndex < mArgs.length) {
-                mArgIndex++;
-            }
-            continueSequence(mEscapeState);
-        } else {
-            unknownSequence(b);
+        } else if (mArgIndex < mArgs.length) {
+            mArgIndex++;
+            if (b == ':' && mArgIndex < mArgs.length) mSubParameters |= 1 << mArgIndex;
         }
     }
 
+    private boolean isSubParameter(int index) {
+        return (mSubParameters & (1 << index)) != 0;
+    }
+
     private int getArg0(int defaultValue) {
         return getArg(0, defaultValue, true);
     }
@@ -2051,36 +2102,24 @@ public final class TerminalEmulator {
         return result;
     }
 
-    private void collectOSCArgs(int b) {
-        if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
-            mOSCOrDeviceControlArgs.appendCodePoint(b);
-            continueSequence(mEscapeState);
-        } else {
-            unknownSequence(b);
-        }
-    }
-
     private void unimplementedSequence(int b) {
         logError("Unimplemented sequence char '" + (char) b + "' (U+" + String.format("%04x", b) + ")");
-        finishSequence();
     }
 
     private void unknownSequence(int b) {
         logError("Unknown sequence char '" + (char) b + "' (numeric value=" + b + ")");
-        finishSequence();
     }
 
     private void unknownParameter(int parameter) {
         logError("Unknown parameter: " + parameter);
-        finishSequence();
     }
 
     private void logError(String errorType) {
         if (LOG_ESCAPE_SEQUENCES) {
             StringBuilder buf = new StringBuilder();
             buf.append(errorType);
-            buf.append(", escapeState=");
-            buf.append(mEscapeState);
+            buf.append(", parserState=");
+            buf.append(mParserState);
             boolean firstArg = true;
             if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
             for (int i = 0; i <= mArgIndex; i++) {
@@ -2096,17 +2135,12 @@ public final class TerminalEmulator {
                 }
             }
             if (!firstArg) buf.append('}');
-            finishSequenceAndLogError(buf.toString());
+            logSequenceError(buf.toString());
         }
     }
 
-    private void finishSequenceAndLogError(String error) {
-        if (LOG_ESCAPE_SEQUENCES) Log.w(EmulatorDebug.LOG_TAG, error);
-        finishSequence();
-    }
-
-    private void finishSequence() {
-        mEscapeState = ESC_NONE;
+    private void logSequenceError(String error) {
+        if (LOG_ESCAPE_SEQUENCES) EmulatorDebug.logWarning(error);
     }
 
     /**
@@ -2116,113 +2150,10 @@ public final class TerminalEmulator {
      */
     private void emitCodePoint(int codePoint) {
         mLastEmittedCodePoint = codePoint;
-        if (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1) {
-            // http://www.vt100.net/docs/vt102-ug/table5-15.html.
-            switch (codePoint) {
-                case '_':
-                    codePoint = ' '; // Blank.
-                    break;
-                case '`':
-                    codePoint = '◆'; // Diamond.
-                    break;
-                case '0':
-                    codePoint = '█'; // Solid block;
-                    break;
-                case 'a':
-                    codePoint = '▒'; // Checker board.
-                    break;
-                case 'b':
-                    codePoint = '␉'; // Horizontal tab.
-                    break;
-                case 'c':
-                    codePoint = '␌'; // Form feed.
-                    break;
-                case 'd':
-                    codePoint = '\r'; // Carriage return.
-                    break;
-                case 'e':
-                    codePoint = '␊'; // Linefeed.
-                    break;
-                case 'f':
-                    codePoint = '°'; // Degree.
-                    break;
-                case 'g':
-                    codePoint = '±'; // Plus-minus.
-                    break;
-                case 'h':
-                    codePoint = '\n'; // Newline.
-                    break;
-                case 'i':
-                    codePoint = '␋'; // Vertical tab.
-                    break;
-                case 'j':
-                    codePoint = '┘'; // Lower right corner.
-                    break;
-                case 'k':
-                    codePoint = '┐'; // Upper right corner.
-                    break;
-                case 'l':
-                    codePoint = '┌'; // Upper left corner.
-                    break;
-                case 'm':
-                    codePoint = '└'; // Left left corner.
-                    break;
-                case 'n':
-                    codePoint = '┼'; // Crossing lines.
-                    break;
-                case 'o':
-                    codePoint = '⎺'; // Horizontal line - scan 1.
-                    break;
-                case 'p':
-                    codePoint = '⎻'; // Horizontal line - scan 3.
-                    break;
-                case 'q':
-                    codePoint = '─'; // Horizontal line - scan 5.
-                    break;
-                case 'r':
-                    codePoint = '⎼'; // Horizontal line - scan 7.
-                    break;
-                case 's':
-                    codePoint = '⎽'; // Horizontal line - scan 9.
-                    break;
-                case 't':
-                    codePoint = '├'; // T facing rightwards.
-                    break;
-                case 'u':
-                    codePoint = '┤'; // T facing leftwards.
-                    break;
-                case 'v':
-                    codePoint = '┴'; // T facing upwards.
-                    break;
-                case 'w':
-                    codePoint = '┬'; // T facing downwards.
-                    break;
-                case 'x':
-                    codePoint = '│'; // Vertical line.
-                    break;
-                case 'y':
-                    codePoint = '≤'; // Less than or equal to.
-                    break;
-                case 'z':
-                    codePoint = '≥'; // Greater than or equal to.
-                    break;
-                case '{':
-                    codePoint = 'π'; // Pi.
-                    break;
-                case '|':
-                    codePoint = '≠'; // Not equal to.
-                    break;
-                case '}':
-                    codePoint = '£'; // UK pound.
-                    break;
-                case '~':
-                    codePoint = '·'; // Centered dot.
-                    break;
-            }
-        }
+        if (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1) codePoint = toLineDrawing(codePoint);
 
         final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
-        final int displayWidth = WcWidth.width(codePoint);
+        final int displayWidth = mWcWidth.getWidth(codePoint);
         final boolean cursorInLastColumn = mCursorCol == mRightMargin - 1;
 
         if (autoWrap) {
@@ -2257,6 +2188,167 @@ public final class TerminalEmulator {
         mCursorCol = Math.min(mCursorCol + displayWidth, mRightMargin - 1);
     }
 
+    /** Returns the character of the DEC Special Graphics set replacing a code point when line drawing is active. */
+    private static int toLineDrawing(int codePoint) {
+        // http://www.vt100.net/docs/vt102-ug/table5-15.html.
+        switch (codePoint) {
+            case '_':
+                return ' '; // Blank.
+            case '`':
+                return '◆'; // Diamond.
+            case '0':
+                return '█'; // Solid block;
+            case 'a':
+                return '▒'; // Checker board.
+            case 'b':
+                return '␉'; // Horizontal tab.
+            case 'c':
+                return '␌'; // Form feed.
+            case 'd':
+                return '\r'; // Carriage return.
+            case 'e':
+                return '␊'; // Linefeed.
+            case 'f':
+                return '°'; // Degree.
+            case 'g':
+                return '±'; // Plus-minus.
+            case 'h':
+                return '\n'; // Newline.
+            case 'i':
+                return '␋'; // Vertical tab.
+            case 'j':
+                return '┘'; // Lower right corner.
+            case 'k':
+                return '┐'; // Upper right corner.
+            case 'l':
+                return '┌'; // Upper left corner.
+            case 'm':
+                return '└'; // Left left corner.
+            case 'n':
+                return '┼'; // Crossing lines.
+            case 'o':
+                return '⎺'; // Horizontal line - scan 1.
+            case 'p':
+                return '⎻'; // Horizontal line - scan 3.
+            case 'q':
+                return '─'; // Horizontal line - scan 5.
+            case 'r':
+                return '⎼'; // Horizontal line - scan 7.
+            case 's':
+                return '⎽'; // Horizontal line - scan 9.
+            case 't':
+                return '├'; // T facing rightwards.
+            case 'u':
+                return '┤'; // T facing leftwards.
+            case 'v':
+                return '┴'; // T facing upwards.
+            case 'w':
+                return '┬'; // T facing downwards.
+            case 'x':
+                return '│'; // Vertical line.
+            case 'y':
+                return '≤'; // Less than or equal to.
+            case 'z':
+                return '≥'; // Greater than or equal to.
+            case '{':
+                return 'π'; // Pi.
+            case '|':
+                return '≠'; // Not equal to.
+            case '}':
+                return '£'; // UK pound.
+            case '~':
+                return '·'; // Centered dot.
+            default:
+                return codePoint;
+        }
+    }
+
+    /**
+     * Send a run of printable ASCII characters to the screen. Has the same effect as calling {@link #emitCodePoint(int)}
+     * for each of them, but writes as much as possible of the run into the current row at once.
+     */
+    private void emitAsciiRun(int[] codePoints, int offset, int length) {
+        if (mInsertMode || (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1) || mCursorCol >= mRightMargin) {
+            // Rare cases which needs per-character handling.
+            for (int i = 0; i < length; i++)
+                emitCodePoint(codePoints[offset + i]);
+            return;
+        }
+
+        mLastEmittedCodePoint = codePoints[offset + length - 1];
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final long style = getStyle();
+
+        while (length > 0) {
+            if (autoWrap && mAboutToAutoWrap && mCursorCol == mRightMargin - 1) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = mLeftMargin;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scrollDownOneLine();
+                }
+            }
+
+            final int columnsLeft = mRightMargin - mCursorCol;
+            if (!autoWrap && length > columnsLeft) {
+                // Without autowrap the characters which do not fit all overwrite the last column, where only the last
+                // character of the run will be left.
+                mScreen.setChars(mCursorCol, mCursorRow, codePoints, offset, columnsLeft - 1, style);
+                mScreen.setChar(mRightMargin - 1, mCursorRow, codePoints[offset + length - 1], style);
+                mCursorCol = mRightMargin - 1;
+                return;
+            }
+
+            final int charsToWrite = Math.min(length, columnsLeft);
+            mScreen.setChars(mCursorCol, mCursorRow, codePoints, offset, charsToWrite, style);
+            offset += charsToWrite;
+            length -= charsToWrite;
+
+            final int newCursorCol = mCursorCol + charsToWrite;
+            if (autoWrap) mAboutToAutoWrap = (newCursorCol == mRightMargin);
+            mCursorCol = Math.min(newCursorCol, mRightMargin - 1);
+        }
+    }
+
+    /**
+     * Repeat a character with a display width of one or two, already mapped for line drawing, as REP does. Has the same
+     * effect as calling {@link #emitCodePoint(int)} count times, but fills as much as possible of the current row at once.
+     */
+    private void emitRepeatedCodePoint(int codePoint, int width, int count) {
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final long style = getStyle();
+
+        while (count > 0) {
+            // A wide character does not fit in the last column, so wraps even if not about to.
+            if (autoWrap && (mAboutToAutoWrap || width == 2) && mCursorCol == mRightMargin - 1) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = mLeftMargin;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scrollDownOneLine();
+                }
+            }
+
+            final int charsFitting = (mRightMargin - mCursorCol) / width;
+            if (!autoWrap && count > charsFitting) {
+                // Without autowrap the characters which do not fit all overwrite the last column, or are ignored if wide.
+                mScreen.blockSet(mCursorCol, mCursorRow, charsFitting * width, 1, codePoint, style);
+                mCursorCol = mRightMargin - 1;
+                return;
+            }
+
+            final int charsToWrite = Math.min(count, charsFitting);
+            mScreen.blockSet(mCursorCol, mCursorRow, charsToWrite * width, 1, codePoint, style);
+            count -= charsToWrite;
+
+            final int newCursorCol = mCursorCol + charsToWrite * width;
+            if (autoWrap) mAboutToAutoWrap = (newCursorCol == mRightMargin);
+            mCursorCol = Math.min(newCursorCol, mRightMargin - 1);
+        }
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -2291,8 +2383,7 @@ public final class TerminalEmulator {
     public void reset() {
         mCursorStyle = CURSOR_STYLE_BLOCK;
         mArgIndex = 0;
-        mContinueSequence = false;
-        mEscapeState = ESC_NONE;
+        mParserState = TerminalParser.STATE_GROUND;
         mInsertMode = false;
         mTopMargin = mLeftMargin = 0;
         mBottomMargin = mRows;
@@ -2314,7 +2405,7 @@ public final class TerminalEmulator {
         mSavedDecSetFlags = mSavedStateMain.mSavedDecFlags = mSavedStateAlt.mSavedDecFlags = mCurrentDecSetFlags;
 
         // XXX: Should we set terminal driver back to IUTF8 with termios?
-        mUtf8Index = mUtf8ToFollow = 0;
+        mUtf8Decoder.reset();
 
         mColors.reset();
         mSession.onColorsChanged();
@@ -0,0 +1,13 @@
+package com.termux.terminal;
+
+/**
+ * Receives log messages from the terminal emulator. The default implementation uses {@link java.util.logging}, use
+ * {@link EmulatorDebug#setLogger(TerminalLogger)} to log elsewhere.
+ */
+public interface TerminalLogger {
+
+    void logWarning(String tag, String message);
+
+    void logError(String tag, String message);
+
+}
@@ -0,0 +1,180 @@
+package com.termux.terminal;
+
+/**
+ * The state table for parsing escape sequences, following the DEC ANSI parser of Paul Williams
+ * (https://vt100.net/emu/dec_ansi_parser).
+ * <p>
+ * Each table entry gives the action to perform for a code point in a state together with the next state, so that the
+ * emulator needs a single table lookup per code point. The entry and exit actions of the original state diagram are
+ * folded into the transition actions when the table is built. Deviations from the original diagram:
+ * <ul>
+ * <li>':' collects sub-parameters in control sequences (as in "CSI 38:2::255:0:0 m") instead of ignoring them.</li>
+ * <li>BEL terminates an OSC string, as in xterm.</li>
+ * <li>CAN and SUB abort strings without dispatching them.</li>
+ * <li>Code points outside ASCII are printed in the ground state, become part of OSC and DCS strings and cause
+ * other sequences to be ignored.</li>
+ * </ul>
+ */
+final class TerminalParser {
+
+    static final int STATE_GROUND = 0;
+    static final int STATE_ESCAPE = 1;
+    static final int STATE_ESCAPE_INTERMEDIATE = 2;
+    static final int STATE_CSI_ENTRY = 3;
+    static final int STATE_CSI_PARAM = 4;
+    static final int STATE_CSI_INTERMEDIATE = 5;
+    static final int STATE_CSI_IGNORE = 6;
+    static final int STATE_DCS_ENTRY = 7;
+    static final int STATE_DCS_PARAM = 8;
+    static final int STATE_DCS_INTERMEDIATE = 9;
+    static final int STATE_DCS_PASSTHROUGH = 10;
+    static final int STATE_DCS_IGNORE = 11;
+    static final int STATE_OSC_STRING = 12;
+    static final int STATE_SOS_PM_APC_STRING = 13;
+    private static final int STATE_COUNT = 14;
+
+    /** Do nothing with the code point. */
+    static final int ACTION_IGNORE = 0;
+    /** Display the code point on the screen. */
+    static final int ACTION_PRINT = 1;
+    /** Execute a C0 control function. */
+    static final int ACTION_EXECUTE = 2;
+    /** Forget parameters, private marker and intermediates of a new sequence. */
+    static final int ACTION_CLEAR = 3;
+    /** Store a private marker or intermediate character. */
+    static final int ACTION_COLLECT = 4;
+    /** Collect a parameter digit or a parameter separator. */
+    static final int ACTION_PARAM = 5;
+    /** Execute the completed escape sequence. */
+    static final int ACTION_ESC_DISPATCH = 6;
+    /** Execute the completed control sequence. */
+    static final int ACTION_CSI_DISPATCH = 7;
+    /** The final character of a device control string has been seen, start collecting its data. */
+    static final int ACTION_HOOK = 8;
+    /** Collect a code point of device control string data. */
+    static final int ACTION_PUT = 9;
+    /** Start collecting an operating system command. */
+    static final int ACTION_OSC_START = 10;
+    /** Collect a code point of an operating system command. */
+    static final int ACTION_OSC_PUT = 11;
+    /** Execute an operating system command terminated by BEL. */
+    static final int ACTION_OSC_END = 12;
+    /** Execute an operating system command terminated by ESC, followed by {@link #ACTION_CLEAR}. */
+    static final int ACTION_OSC_END_AND_CLEAR = 13;
+    /** Execute a device control string terminated by ESC, followed by {@link #ACTION_CLEAR}. */
+    static final int ACTION_UNHOOK_AND_CLEAR = 14;
+
+    /** Column in {@link #TRANSITIONS} used for all code points outside ASCII. */
+    private static final int NON_ASCII_COLUMN = 128;
+    private static final int COLUMNS = NON_ASCII_COLUMN + 1;
+
+    /** Entries of {@code (action << 4) | nextState}, indexed by {@code state * COLUMNS + column}. */
+    private static final byte[] TRANSITIONS = new byte[STATE_COUNT * COLUMNS];
+
+    static {
+        // Within a state everything defaults to being ignored.
+        for (int state = 0; state < STATE_COUNT; state++)
+            set(state, 0, NON_ASCII_COLUMN, ACTION_IGNORE, state);
+
+        for (int state = 0; state < STATE_COUNT; state++) {
+            // C0 control functions are executed in the middle of sequences but are part of strings.
+            if (state != STATE_DCS_PASSTHROUGH && state != STATE_OSC_STRING && state != STATE_SOS_PM_APC_STRING
+                && state != STATE_DCS_ENTRY && state != STATE_DCS_PARAM && state != STATE_DCS_INTERMEDIATE && state != STATE_DCS_IGNORE) {
+                set(state, 0x00, 0x17, ACTION_EXECUTE, state);
+                set(state, 0x19, 0x19, ACTION_EXECUTE, state);
+                set(state, 0x1C, 0x1F, ACTION_EXECUTE, state);
+            }
+            // CAN and SUB cancel sequences, ESC starts a new one from anywhere:
+            set(state, 0x18, 0x18, ACTION_IGNORE, STATE_GROUND);
+            set(state, 0x1A, 0x1A, ACTION_IGNORE, STATE_GROUND);
+            set(state, 0x1B, 0x1B, ACTION_CLEAR, STATE_ESCAPE);
+        }
+        set(STATE_OSC_STRING, 0x1B, 0x1B, ACTION_OSC_END_AND_CLEAR, STATE_ESCAPE);
+        set(STATE_DCS_PASSTHROUGH, 0x1B, 0x1B, ACTION_UNHOOK_AND_CLEAR, STATE_ESCAPE);
+
+        set(STATE_GROUND, 0x20, 0x7E, ACTION_PRINT, STATE_GROUND);
+        set(STATE_GROUND, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_PRINT, STATE_GROUND);
+
+        set(STATE_ESCAPE, 0x20, 0x2F, ACTION_COLLECT, STATE_ESCAPE_INTERMEDIATE);
+        set(STATE_ESCAPE, 0x30, 0x7E, ACTION_ESC_DISPATCH, STATE_GROUND);
+        set(STATE_ESCAPE, 'P', 'P', ACTION_CLEAR, STATE_DCS_ENTRY);
+        set(STATE_ESCAPE, '[', '[', ACTION_CLEAR, STATE_CSI_ENTRY);
+        set(STATE_ESCAPE, ']', ']', ACTION_OSC_START, STATE_OSC_STRING);
+        set(STATE_ESCAPE, 'X', 'X', ACTION_IGNORE, STATE_SOS_PM_APC_STRING);
+        set(STATE_ESCAPE, '^', '^', ACTION_IGNORE, STATE_SOS_PM_APC_STRING);
+        set(STATE_ESCAPE, '_', '_', ACTION_IGNORE, STATE_SOS_PM_APC_STRING);
+        set(STATE_ESCAPE, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_IGNORE, STATE_GROUND);
+
+        set(STATE_ESCAPE_INTERMEDIATE, 0x20, 0x2F, ACTION_COLLECT, STATE_ESCAPE_INTERMEDIATE);
+        set(STATE_ESCAPE_INTERMEDIATE, 0x30, 0x7E, ACTION_ESC_DISPATCH, STATE_GROUND);
+        set(STATE_ESCAPE_INTERMEDIATE, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_IGNORE, STATE_GROUND);
+
+        set(STATE_CSI_ENTRY, 0x20, 0x2F, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+        set(STATE_CSI_ENTRY, 0x30, 0x3B, ACTION_PARAM, STATE_CSI_PARAM);
+        set(STATE_CSI_ENTRY, 0x3C, 0x3F, ACTION_COLLECT, STATE_CSI_PARAM);
+        set(STATE_CSI_ENTRY, 0x40, 0x7E, ACTION_CSI_DISPATCH, STATE_GROUND);
+        set(STATE_CSI_ENTRY, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_IGNORE, STATE_CSI_IGNORE);
+
+        set(STATE_CSI_PARAM, 0x20, 0x2F, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+        set(STATE_CSI_PARAM, 0x30, 0x3B, ACTION_PARAM, STATE_CSI_PARAM);
+        set(STATE_CSI_PARAM, 0x3C, 0x3F, ACTION_IGNORE, STATE_CSI_IGNORE);
+        set(STATE_CSI_PARAM, 0x40, 0x7E, ACTION_CSI_DISPATCH, STATE_GROUND);
+        set(STATE_CSI_PARAM, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_IGNORE, STATE_CSI_IGNORE);
+
+        set(STATE_CSI_INTERMEDIATE, 0x20, 0x2F, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+        set(STATE_CSI_INTERMEDIATE, 0x30, 0x3F, ACTION_IGNORE, STATE_CSI_IGNORE);
+        set(STATE_CSI_INTERMEDIATE, 0x40, 0x7E, ACTION_CSI_DISPATCH, STATE_GROUND);
+        set(STATE_CSI_INTERMEDIATE, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_IGNORE, STATE_CSI_IGNORE);
+
+        set(STATE_CSI_IGNORE, 0x40, 0x7E, ACTION_IGNORE, STATE_GROUND);
+
+        set(STATE_DCS_ENTRY, 0x20, 0x2F, ACTION_COLLECT, STATE_DCS_INTERMEDIATE);
+        set(STATE_DCS_ENTRY, 0x30, 0x39, ACTION_PARAM, STATE_DCS_PARAM);
+        set(STATE_DCS_ENTRY, 0x3A, 0x3A, ACTION_IGNORE, STATE_DCS_IGNORE);
+        set(STATE_DCS_ENTRY, 0x3B, 0x3B, ACTION_PARAM, STATE_DCS_PARAM);
+        set(STATE_DCS_ENTRY, 0x3C, 0x3F, ACTION_COLLECT, STATE_DCS_PARAM);
+        set(STATE_DCS_ENTRY, 0x40, 0x7E, ACTION_HOOK, STATE_DCS_PASSTHROUGH);
+        set(STATE_DCS_ENTRY, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_IGNORE, STATE_DCS_IGNORE);
+
+        set(STATE_DCS_PARAM, 0x20, 0x2F, ACTION_COLLECT, STATE_DCS_INTERMEDIATE);
+        set(STATE_DCS_PARAM, 0x30, 0x39, ACTION_PARAM, STATE_DCS_PARAM);
+        set(STATE_DCS_PARAM, 0x3A, 0x3A, ACTION_IGNORE, STATE_DCS_IGNORE);
+        set(STATE_DCS_PARAM, 0x3B, 0x3B, ACTION_PARAM, STATE_DCS_PARAM);
+        set(STATE_DCS_PARAM, 0x3C, 0x3F, ACTION_IGNORE, STATE_DCS_IGNORE);
+        set(STATE_DCS_PARAM, 0x40, 0x7E, ACTION_HOOK, STATE_DCS_PASSTHROUGH);
+        set(STATE_DCS_PARAM, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_IGNORE, STATE_DCS_IGNORE);
+
+        set(STATE_DCS_INTERMEDIATE, 0x20, 0x2F, ACTION_COLLECT, STATE_DCS_INTERMEDIATE);
+        set(STATE_DCS_INTERMEDIATE, 0x30, 0x3F, ACTION_IGNORE, STATE_DCS_IGNORE);
+        set(STATE_DCS_INTERMEDIATE, 0x40, 0x7E, ACTION_HOOK, STATE_DCS_PASSTHROUGH);
+        set(STATE_DCS_INTERMEDIATE, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_IGNORE, STATE_DCS_IGNORE);
+
+        set(STATE_DCS_PASSTHROUGH, 0x00, 0x17, ACTION_PUT, STATE_DCS_PASSTHROUGH);
+        set(STATE_DCS_PASSTHROUGH, 0x19, 0x19, ACTION_PUT, STATE_DCS_PASSTHROUGH);
+        set(STATE_DCS_PASSTHROUGH, 0x1C, 0x7E, ACTION_PUT, STATE_DCS_PASSTHROUGH);
+        set(STATE_DCS_PASSTHROUGH, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_PUT, STATE_DCS_PASSTHROUGH);
+
+        set(STATE_OSC_STRING, 0x07, 0x07, ACTION_OSC_END, STATE_GROUND);
+        set(STATE_OSC_STRING, 0x20, 0x7F, ACTION_OSC_PUT, STATE_OSC_STRING);
+        set(STATE_OSC_STRING, NON_ASCII_COLUMN, NON_ASCII_COLUMN, ACTION_OSC_PUT, STATE_OSC_STRING);
+    }
+
+    private static void set(int state, int firstColumn, int lastColumn, int action, int nextState) {
+        for (int column = firstColumn; column <= lastColumn; column++)
+            TRANSITIONS[state * COLUMNS + column] = (byte) ((action << 4) | nextState);
+    }
+
+    /** Get the packed transition for a code point in a state, to be unpacked with {@link #action} and {@link #nextState}. */
+    static int transition(int state, int codePoint) {
+        return TRANSITIONS[state * COLUMNS + (codePoint < NON_ASCII_COLUMN ? codePoint : NON_ASCII_COLUMN)];
+    }
+
+    static int action(int transition) {
+        return (transition >> 4) & 0xF;
+    }
+
+    static int nextState(int transition) {
+        return transition & 0xF;
+    }
+
+}
@@ -0,0 +1,216 @@
+package com.termux.terminal;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records terminal output with timing in the asciicast v2 format (https://docs.asciinema.org/manual/asciicast/v2/),
+ * for later playback with {@link TerminalReplay} or asciinema.
+ * <p>
+ * {@link #recordOutput(byte[], int, int)} never blocks: the data is copied and handed over to a background thread
+ * which does the encoding and writing. If more than the configured number of bytes are waiting to be written, new
+ * output is dropped and counted in {@link #getDroppedBytes()} instead.
+ */
+public final class TerminalRecorder implements Closeable {
+
+    private static final byte[] END_OF_RECORDING = new byte[0];
+
+    private static final class Event {
+        final long mNanoTime;
+        final char mType;
+        final byte[] mData;
+
+        Event(long nanoTime, char type, byte[] data) {
+            mNanoTime = nanoTime;
+            mType = type;
+            mData = data;
+        }
+    }
+
+    private final LinkedBlockingQueue<Event> mEvents = new LinkedBlockingQueue<>();
+    private final long mMaxBufferedBytes;
+    /** The number of bytes recorded but not yet handed to the output stream. */
+    private final AtomicLong mBufferedBytes = new AtomicLong();
+    private final AtomicLong mDroppedBytes = new AtomicLong();
+    private final long mStartNanoTime = System.nanoTime();
+    private final Thread mWriterThread;
+    private volatile boolean mClosed;
+    private volatile IOException mWriteError;
+
+    /**
+     * Start a recording. The header is written by the background thread, which also closes the stream when the
+     * recording is closed.
+     *
+     * @param out              where to write the recording.
+     * @param columns          the width of the terminal when the recording starts.
+     * @param rows             the height of the terminal when the recording starts.
+     * @param maxBufferedBytes how many bytes of output may wait to be written before new output is dropped.
+     */
+    public TerminalRecorder(OutputStream out, int columns, int rows, int maxBufferedBytes) {
+        if (out == null) throw new IllegalArgumentException("out is null");
+        if (columns < 1 || rows < 1) throw new IllegalArgumentException("Invalid size " + columns + "x" + rows);
+        if (maxBufferedBytes < 1) throw new IllegalArgumentException("maxBufferedBytes=" + maxBufferedBytes);
+        mMaxBufferedBytes = maxBufferedBytes;
+
+        final String header = "{\"version\": 2, \"width\": " + columns + ", \"height\": " + rows + ", \"timestamp\": "
+            + (System.currentTimeMillis() / 1000) + "}\n";
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        mWriterThread = new Thread("TerminalRecorder") {
+            @Override
+            public void run() {
+                try {
+                    writer.write(header);
+                    writeEvents(writer);
+                } catch (IOException e) {
+                    mWriteError = e;
+                } catch (InterruptedException e) {
+                    // Stopped.
+                } finally {
+                    mClosed = true;
+                    mEvents.clear();
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        if (mWriteError == null) mWriteError = e;
+                    }
+                }
+            }
+        };
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /** Record output from the process. Safe to call from any single thread, typically the one reading from the pty. */
+    public void recordOutput(byte[] data, int offset, int count) {
+        if (count == 0 || mClosed) return;
+        if (mBufferedBytes.addAndGet(count) > mMaxBufferedBytes) {
+            mBufferedBytes.addAndGet(-count);
+            mDroppedBytes.addAndGet(count);
+            return;
+        }
+        byte[] copy = new byte[count];
+        System.arraycopy(data, offset, copy, 0, count);
+        mEvents.add(new Event(System.nanoTime(), 'o', copy));
+    }
+
+    /** Record that the terminal was resized. */
+    public void recordResize(int columns, int rows) {
+        if (mClosed) return;
+        mEvents.add(new Event(System.nanoTime(), 'r', (columns + "x" + rows).getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /** The number of bytes of output which were not recorded since the background writer could not keep up. */
+    public long getDroppedBytes() {
+        return mDroppedBytes.get();
+    }
+
+    /** The error which stopped the recording, or null if none. */
+    public IOException getWriteError() {
+        return mWriteError;
+    }
+
+    /** Stop recording. Output already recorded is written and the stream closed in the background. */
+    @Override
+    public void close() {
+        if (mClosed) return;
+        mClosed = true;
+        mEvents.add(new Event(System.nanoTime(), 'o', END_OF_RECORDING));
+    }
+
+    /** Wait for the background thread to finish writing after {@link #close()}. Returns false on timeout. */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        unit.timedJoin(mWriterThread, timeout);
+        return !mWriterThread.isAlive();
+    }
+
+    void writeEvents(Writer writer) throws IOException, InterruptedException {
+        // Output may be split in the middle of a UTF-8 sequence, so keep incomplete sequences for the next event.
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer pending = ByteBuffer.allocate(8192);
+        CharBuffer decoded = CharBuffer.allocate(8192);
+        StringBuilder line = new StringBuilder();
+
+        while (true) {
+            Event event = mEvents.poll();
+            if (event == null) {
+                writer.flush();
+                event = mEvents.take();
+            }
+            if (event.mData == END_OF_RECORDING) return;
+
+            String data;
+            if (event.mType == 'o') {
+                mBufferedBytes.addAndGet(-event.mData.length);
+                if (pending.remaining() < event.mData.length) {
+                    pending.flip();
+                    ByteBuffer larger = ByteBuffer.allocate(pending.remaining() + event.mData.length);
+                    pending = larger.put(pending);
+                }
+                pending.put(event.mData).flip();
+                if (decoded.capacity() < pending.remaining()) decoded = CharBuffer.allocate(pending.remaining());
+                decoded.clear();
+                decoder.decode(pending, decoded, false);
+                pending.compact();
+                decoded.flip();
+                if (!decoded.hasRemaining()) continue;
+                data = decoded.toString();
+            } else {
+                data = new String(event.mData, StandardCharsets.US_ASCII);
+            }
+
+            line.setLength(0);
+            line.append('[').append(String.format(Locale.ROOT, "%.6f", (event.mNanoTime - mStartNanoTime) / 1e9));
+            line.append(", \"").append(event.mType).append("\", ");
+            appendJsonString(line, data);
+            line.append("]\n");
+            writer.write(line.toString());
+        }
+    }
+
+    static void appendJsonString(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x7F) {
+                        out.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+}
@@ -0,0 +1,278 @@
+package com.termux.terminal;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A recording in the asciicast v2 format, as written by {@link TerminalRecorder} or asciinema, which can be fed into a
+ * {@link TerminalEmulator}. Only output and resize events are used, input and marker events are skipped.
+ */
+public final class TerminalReplay {
+
+    private static final class Event {
+        final long mNanoTime;
+        /** The output, or null for a resize event. */
+        final byte[] mData;
+        /** The new size for a resize event. */
+        final int mColumns, mRows;
+
+        Event(long nanoTime, byte[] data, int columns, int rows) {
+            mNanoTime = nanoTime;
+            mData = data;
+            mColumns = columns;
+            mRows = rows;
+        }
+    }
+
+    private final int mColumns, mRows;
+    private final List<Event> mEvents;
+
+    private TerminalReplay(int columns, int rows, List<Event> events) {
+        mColumns = columns;
+        mRows = rows;
+        mEvents = events;
+    }
+
+    /** Read a recording. The reader is not closed. */
+    public static TerminalReplay read(Reader input) throws IOException {
+        BufferedReader reader = new BufferedReader(input);
+        String line = reader.readLine();
+        if (line == null) throw new IOException("Empty recording");
+        Object header = new JsonParser(line, 1).parse();
+        if (!(header instanceof Map)) throw new IOException("Invalid asciicast header: " + line);
+        Map<?, ?> headerMap = (Map<?, ?>) header;
+        if (!Double.valueOf(2).equals(headerMap.get("version"))) {
+            throw new IOException("Unsupported asciicast version: " + headerMap.get("version"));
+        }
+        int columns = sizeFromHeader(headerMap, "width");
+        int rows = sizeFromHeader(headerMap, "height");
+
+        List<Event> events = new ArrayList<>();
+        int lineNumber = 1;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) continue;
+            Object event = new JsonParser(line, lineNumber).parse();
+            if (!(event instanceof List) || ((List<?>) event).size() < 3) throw new IOException("Invalid event on line " + lineNumber);
+            List<?> eventList = (List<?>) event;
+            if (!(eventList.get(0) instanceof Double) || !(eventList.get(1) instanceof String) || !(eventList.get(2) instanceof String)) {
+                throw new IOException("Invalid event on line " + lineNumber);
+            }
+            long nanoTime = (long) ((Double) eventList.get(0) * 1e9);
+            String type = (String) eventList.get(1);
+            String data = (String) eventList.get(2);
+            if (type.equals("o")) {
+                events.add(new Event(nanoTime, data.getBytes(StandardCharsets.UTF_8), 0, 0));
+            } else if (type.equals("r")) {
+                int[] size = parseSize(data, lineNumber);
+                events.add(new Event(nanoTime, null, size[0], size[1]));
+            }
+        }
+        return new TerminalReplay(columns, rows, events);
+    }
+
+    /** The width of the terminal when the recording started. */
+    public int getColumns() {
+        return mColumns;
+    }
+
+    /** The height of the terminal when the recording started. */
+    public int getRows() {
+        return mRows;
+    }
+
+    /** All output in the recording, without timing and resizes. */
+    public byte[] getOutput() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Event event : mEvents) {
+            if (event.mData != null) out.write(event.mData, 0, event.mData.length);
+        }
+        return out.toByteArray();
+    }
+
+    /** Create an emulator with the size of the terminal when the recording started. */
+    public TerminalEmulator createEmulator(TerminalOutput output, int transcriptRows) {
+        return new TerminalEmulator(output, mColumns, mRows, Math.max(transcriptRows, mRows));
+    }
+
+    /**
+     * Feed the recording into an emulator on the calling thread.
+     *
+     * @param realTime if events should be fed with the timing they were recorded with, instead of as fast as possible.
+     */
+    public void replay(TerminalEmulator emulator, boolean realTime) throws InterruptedException {
+        long startNanoTime = System.nanoTime();
+        for (Event event : mEvents) {
+            if (realTime) {
+                long delayNanos = event.mNanoTime - (System.nanoTime() - startNanoTime);
+                if (delayNanos > 0) Thread.sleep(delayNanos / 1_000_000, (int) (delayNanos % 1_000_000));
+            }
+            if (event.mData == null) {
+                emulator.resize(event.mColumns, event.mRows);
+            } else {
+                emulator.append(event.mData, event.mData.length);
+            }
+        }
+    }
+
+    private static int sizeFromHeader(Map<?, ?> header, String key) throws IOException {
+        Object value = header.get(key);
+        if (!(value instanceof Double) || (Double) value < 1 || (Double) value > Short.MAX_VALUE) {
+            throw new IOException("Invalid " + key + " in asciicast header: " + value);
+        }
+        return ((Double) value).intValue();
+    }
+
+    /** Parse the "COLSxROWS" data of a resize event. */
+    private static int[] parseSize(String size, int lineNumber) throws IOException {
+        int separator = size.indexOf('x');
+        try {
+            if (separator != -1) {
+                int columns = Integer.parseInt(size.substring(0, separator));
+                int rows = Integer.parseInt(size.substring(separator + 1));
+                if (columns > 0 && rows > 0) return new int[]{columns, rows};
+            }
+        } catch (NumberFormatException e) {
+            // Fall through.
+        }
+        throw new IOException("Invalid resize event on line " + lineNumber + ": " + size);
+    }
+
+    /** Parses the JSON of a single line into maps, lists, strings, doubles, booleans and nulls. */
+    private static final class JsonParser {
+        private final String mText;
+        private final int mLineNumber;
+        private int mPosition;
+
+        JsonParser(String text, int lineNumber) {
+            mText = text;
+            mLineNumber = lineNumber;
+        }
+
+        Object parse() throws IOException {
+            Object value = parseValue();
+            skipWhitespace();
+            if (mPosition != mText.length()) throw error("Trailing characters");
+            return value;
+        }
+
+        private Object parseValue() throws IOException {
+            skipWhitespace();
+            if (mPosition == mText.length()) throw error("Unexpected end of line");
+            char c = mText.charAt(mPosition);
+            switch (c) {
+                case '{':
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    mPosition++;
+                    if (consume('}')) return map;
+                    do {
+                        skipWhitespace();
+                        if (!consume('"')) throw error("Expected string");
+                        String key = parseStringContent();
+                        if (!consume(':')) throw error("Expected ':'");
+                        map.put(key, parseValue());
+                    } while (consume(','));
+                    if (!consume('}')) throw error("Expected '}'");
+                    return map;
+                case '[':
+                    List<Object> list = new ArrayList<>();
+                    mPosition++;
+                    if (consume(']')) return list;
+                    do {
+                        list.add(parseValue());
+                    } while (consume(','));
+                    if (!consume(']')) throw error("Expected ']'");
+                    return list;
+                case '"':
+                    mPosition++;
+                    return parseStringContent();
+                default:
+                    if (mText.startsWith("true", mPosition)) {
+                        mPosition += 4;
+                        return Boolean.TRUE;
+                    } else if (mText.startsWith("false", mPosition)) {
+                        mPosition += 5;
+                        return Boolean.FALSE;
+                    } else if (mText.startsWith("null", mPosition)) {
+                        mPosition += 4;
+                        return null;
+                    }
+                    int start = mPosition;
+                    while (mPosition < mText.length() && "+-0123456789.eE".indexOf(mText.charAt(mPosition)) != -1) mPosition++;
+                    try {
+                        return Double.parseDouble(mText.substring(start, mPosition));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid value");
+                    }
+            }
+        }
+
+        private String parseStringContent() throws IOException {
+            StringBuilder result = new StringBuilder();
+            while (true) {
+                if (mPosition == mText.length()) throw error("Unterminated string");
+                char c = mText.charAt(mPosition++);
+                if (c == '"') return result.toString();
+                if (c != '\\') {
+                    result.append(c);
+                    continue;
+                }
+                if (mPosition == mText.length()) throw error("Unterminated string");
+                char escaped = mText.charAt(mPosition++);
+                switch (escaped) {
+                    case 'b':
+                        result.append('\b');
+                        break;
+                    case 'f':
+                        result.append('\f');
+                        break;
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 'r':
+                        result.append('\r');
+                        break;
+                    case 't':
+                        result.append('\t');
+                        break;
+                    case 'u':
+                        if (mPosition + 4 > mText.length()) throw error("Invalid unicode escape");
+                        try {
+                            result.append((char) Integer.parseInt(mText.substring(mPosition, mPosition + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid unicode escape");
+                        }
+                        mPosition += 4;
+                        break;
+                    default:
+                        result.append(escaped);
+                }
+            }
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (mPosition < mText.length() && mText.charAt(mPosition) == c) {
+                mPosition++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (mPosition < mText.length() && Character.isWhitespace(mText.charAt(mPosition))) mPosition++;
+        }
+
+        private IOException error(String message) {
+            return new IOException(message + " at line " + mLineNumber + ", column " + (mPosition + 1));
+        }
+    }
+
+}
@@ -0,0 +1,689 @@
+package com.termux.terminal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A row in a terminal, composed of a fixed number of cells.
+ * <p>
+ * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering.
+ * <p>
+ * Rows in the transcript are rarely written again, so {@link TerminalBuffer} makes them {@link #compact()}: the text
+ * of a row with only Latin-1 characters is then stored as one byte per column, and the styles as runs of columns with
+ * the same style. Any change to a compact row first brings it back to the full form.
+ */
+public final class TerminalRow {
+
+    private static final float SPARE_CAPACITY_FACTOR = 1.5f;
+
+    /** Flags of a row written by {@link #writeTo(DataOutput)}. */
+    private static final int FLAG_LINE_WRAP = 1, FLAG_LATIN1_TEXT = 2, FLAG_COLUMN_STARTS = 4;
+
+    /** The number of columns in this terminal row. */
+    private final int mColumns;
+    /** The text filling this terminal row, or null if stored in {@link #mCompactText}. See {@link #getText(char[])}. */
+    char[] mText;
+    /** The number of java char:s used in {@link #mText}. */
+    private short mSpaceUsed;
+    /** If this row has been line wrapped due to text output at the end of line. */
+    boolean mLineWrap;
+    /** The generation of clearing the screen this row was last cleared or written in, see {@link TerminalBuffer#blockSet}. */
+    int mClearGeneration;
+    /** The style bits of each cell in the row, or null if stored in {@link #mStyleRuns}. See {@link TextStyle}. */
+    long[] mStyle;
+    /** If this row might contain chars with width != 1, used for deactivating fast path */
+    boolean mHasNonOneWidthOrSurrogateChars;
+    /**
+     * The index in {@link #mText} where each column starts, as returned by {@link #findStartOfColumn(int)}. The second
+     * half of a wide character starts at the same index as the first half. Only valid if
+     * {@link #mHasNonOneWidthOrSurrogateChars}, as otherwise column and index are the same.
+     */
+    private short[] mColumnStart;
+    /** The widths of characters in the terminal this row belongs to. */
+    private final WcWidth mWcWidth;
+
+    /** The text of a compact row, one Latin-1 character per column, or null if in {@link #mText}. */
+    private byte[] mCompactText;
+    /** The column after the last of each run of columns with the same style, or null if in {@link #mStyle}. */
+    private short[] mStyleRunEnds;
+    /** The style of each run in {@link #mStyleRunEnds}. */
+    private long[] mStyleRuns;
+
+    /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
+    public TerminalRow(int columns, long style, WcWidth wcWidth) {
+        mColumns = columns;
+        mWcWidth = wcWidth;
+        mText = new char[(int) (SPARE_CAPACITY_FACTOR * columns)];
+        mStyle = new long[columns];
+        clear(style);
+    }
+
+    /** Construct a row without contents, to be filled by {@link #readFrom(DataInput, int, WcWidth)}. */
+    private TerminalRow(int columns, WcWidth wcWidth) {
+        mColumns = columns;
+        mWcWidth = wcWidth;
+    }
+
+    /** Construct a blank row in the compact form, as when given to {@link #compact(TerminalRow)} to take its arrays. */
+    static TerminalRow createCompact(int columns, long style, WcWidth wcWidth) {
+        TerminalRow row = new TerminalRow(columns, wcWidth);
+        row.mCompactText = new byte[columns];
+        row.mStyleRunEnds = new short[]{(short) columns};
+        row.mStyleRuns = new long[1];
+        row.clear(style);
+        return row;
+    }
+
+    /** NOTE: The sourceX2 is exclusive. */
+    public void copyInterval(TerminalRow line, int sourceX1, int sourceX2, int destinationX) {
+        if (this == line) {
+            moveInterval(sourceX1, sourceX2, destinationX);
+            return;
+        }
+        line.expand();
+        expand();
+        if (line.mHasNonOneWidthOrSurrogateChars && !mHasNonOneWidthOrSurrogateChars) startTrackingColumns();
+        boolean startingFromSecondHalfOfWideChar = (sourceX1 > 0 && line.wideDisplayCharacterStartingAt(sourceX1 - 1));
+        copyChars(line.mText, line.mStyle, line.findStartOfColumn(sourceX1), line.findStartOfColumn(sourceX2), startingFromSecondHalfOfWideChar,
+            sourceX1, destinationX);
+    }
+
+    /**
+     * Copy an interval of this row to another position in it, which may overlap, as when inserting or deleting
+     * characters. The text, styles and column starts are moved with array copies. A wide character split by an end of
+     * the interval, or by an end of where it is copied to, is replaced with a space. NOTE: The sourceX2 is exclusive.
+     */
+    public void moveInterval(int sourceX1, int sourceX2, int destinationX) {
+        expand();
+        final int columns = sourceX2 - sourceX1;
+        if (columns <= 0 || sourceX1 == destinationX) return;
+        if (!mHasNonOneWidthOrSurrogateChars) {
+            System.arraycopy(mText, sourceX1, mText, destinationX, columns);
+            System.arraycopy(mStyle, sourceX1, mStyle, destinationX, columns);
+            return;
+        }
+
+        final int destinationX2 = destinationX + columns;
+        // The wide characters split: the first column copied being a second half, the last one a first half, and
+        // the columns before and after the copy getting one half overwritten.
+        final boolean sourceStartSplit = sourceX1 > 0 && wideDisplayCharacterStartingAt(sourceX1 - 1);
+        final boolean sourceEndSplit = sourceX2 < mColumns && wideDisplayCharacterStartingAt(sourceX2 - 1);
+        final boolean destinationStartSplit = destinationX > 0 && wideDisplayCharacterStartingAt(destinationX - 1);
+        final boolean destinationEndSplit = destinationX2 < mColumns && wideDisplayCharacterStartingAt(destinationX2 - 1);
+
+        // The new text is the text before the copy, the copied text and the text after the copy, with a space for each
+        // split character. The text before the copy stays where it is.
+        final int prefixEnd = findStartOfColumn(destinationX);
+        final int middleStart = sourceStartSplit ? findStartOfColumn(sourceX1 + 1) : findStartOfColumn(sourceX1);
+        final int middleEnd = findStartOfColumn(sourceX2);
+        final int suffixStart = destinationEndSplit ? findStartOfColumn(destinationX2 + 1) : findStartOfColumn(destinationX2);
+        final int middleLength = middleEnd - middleStart, suffixLength = mSpaceUsed - suffixStart;
+        final int middleDestination = prefixEnd + (destinationStartSplit ? 1 : 0) + (sourceStartSplit ? 1 : 0);
+        final int suffixDestination = middleDestination + middleLength + (sourceEndSplit ? 1 : 0) + (destinationEndSplit ? 1 : 0);
+        final int newSpaceUsed = suffixDestination + suffixLength;
+
+        char[] text = mText;
+        if (newSpaceUsed > text.length) {
+            char[] newText = new char[Math.max(newSpaceUsed, text.length + mColumns)];
+            System.arraycopy(text, 0, newText, 0, prefixEnd);
+            System.arraycopy(text, middleStart, newText, middleDestination, middleLength);
+            System.arraycopy(text, suffixStart, newText, suffixDestination, suffixLength);
+            mText = text = newText;
+        } else if (suffixDestination < suffixStart) {
+            // The suffix moves left, so the middle is copied first without overwriting it.
+            System.arraycopy(text, middleStart, text, middleDestination, middleLength);
+            System.arraycopy(text, suffixStart, text, suffixDestination, suffixLength);
+        } else if (suffixDestination >= middleEnd) {
+            // The suffix moves right past the middle, so it is copied first without overwriting the middle.
+            System.arraycopy(text, suffixStart, text, suffixDestination, suffixLength);
+            System.arraycopy(text, middleStart, text, middleDestination, middleLength);
+        } else {
+            // Each would overwrite the other, which may only happen when moving text left over more java chars.
+            final char[] middle = Arrays.copyOfRange(text, middleStart, middleEnd);
+            System.arraycopy(text, suffixStart, text, suffixDestination, suffixLength);
+            System.arraycopy(middle, 0, text, middleDestination, middleLength);
+        }
+        if (destinationStartSplit) text[prefixEnd] = ' ';
+        if (sourceStartSplit) text[middleDestination - 1] = ' ';
+        if (sourceEndSplit) text[middleDestination + middleLength] = ' ';
+        if (destinationEndSplit) text[suffixDestination - 1] = ' ';
+        mSpaceUsed = (short) newSpaceUsed;
+
+        System.arraycopy(mStyle, sourceX1, mStyle, destinationX, columns);
+
+        // Read the column starts of the copied columns before updating the ones after the copy, which may be among them.
+        final short[] columnStart = mColumnStart;
+        System.arraycopy(columnStart, sourceX1, columnStart, destinationX, columns);
+        final int middleShift = middleDestination - middleStart;
+        for (int column = destinationX; column < destinationX2; column++)
+            columnStart[column] += middleShift;
+        if (sourceStartSplit) columnStart[destinationX] = (short) (middleDestination - 1);
+        final int suffixShift = suffixDestination - suffixStart;
+        for (int column = destinationX2; column < mColumns; column++)
+            columnStart[column] += suffixShift;
+        if (destinationEndSplit) columnStart[destinationX2] = (short) (suffixDestination - 1);
+    }
+
+    /** Set the characters from sourceChars[x1] up to sourceChars[x2], starting at column sourceX1, at destinationX. */
+    private void copyChars(char[] sourceChars, long[] sourceStyles, int x1, int x2, boolean startingFromSecondHalfOfWideChar, int sourceX1,
+                           int destinationX) {
+        int latestNonCombiningWidth = 0;
+        for (int i = x1; i < x2; i++) {
+            char sourceChar = sourceChars[i];
+            int codePoint = Character.isHighSurrogate(sourceChar) ? Character.toCodePoint(sourceChar, sourceChars[++i]) : sourceChar;
+            if (startingFromSecondHalfOfWideChar) {
+                // Just treat copying second half of wide char as copying whitespace.
+                codePoint = ' ';
+                startingFromSecondHalfOfWideChar = false;
+            }
+            int w = mWcWidth.getWidth(codePoint);
+            if (w > 0) {
+                destinationX += latestNonCombiningWidth;
+                sourceX1 += latestNonCombiningWidth;
+                latestNonCombiningWidth = w;
+            }
+            setChar(destinationX, codePoint, sourceStyles[sourceX1]);
+        }
+    }
+
+    public int getSpaceUsed() {
+        return mSpaceUsed;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
+    /** Returns an estimate of the bytes of memory taken by this row, for limiting the memory used by transcripts. */
+    int getMemoryUsage() {
+        // Assuming 16 bytes for the header of an object or array, and 64 for the row object itself.
+        int bytes = 64;
+        if (mText != null) bytes += 16 + 2 * mText.length;
+        if (mStyle != null) bytes += 16 + 8 * mStyle.length;
+        if (mColumnStart != null) bytes += 16 + 2 * mColumnStart.length;
+        if (mCompactText != null) bytes += 16 + mCompactText.length;
+        if (mStyleRunEnds != null) bytes += 32 + 10 * mStyleRunEnds.length;
+        return bytes;
+    }
+
+    /**
+     * Returns the index in {@link #mText} where the column starts, after any combining characters belonging to the
+     * previous column. Note that the column may end of second half of wide character.
+     */
+    public int findStartOfColumn(int column) {
+        if (column == mColumns) return getSpaceUsed();
+        return mHasNonOneWidthOrSurrogateChars ? mColumnStart[column] : column;
+    }
+
+    private boolean wideDisplayCharacterStartingAt(int column) {
+        return mHasNonOneWidthOrSurrogateChars && column + 1 < mColumns && mColumnStart[column + 1] == mColumnStart[column];
+    }
+
+    /** Leave the fast path for rows with only single width chars, where column and index in {@link #mText} are equal. */
+    private void startTrackingColumns() {
+        if (mColumnStart == null) mColumnStart = new short[mColumns];
+        for (int i = 0; i < mColumns; i++)
+            mColumnStart[i] = (short) i;
+        mHasNonOneWidthOrSurrogateChars = true;
+    }
+
+    public void clear(long style) {
+        // A compact row stays compact, while being blank.
+        if (mText != null) {
+            Arrays.fill(mText, ' ');
+        } else {
+            Arrays.fill(mCompactText, (byte) ' ');
+        }
+        if (mStyle != null) {
+            Arrays.fill(mStyle, style);
+        } else {
+            if (mStyleRuns.length != 1) {
+                mStyleRunEnds = new short[]{(short) mColumns};
+                mStyleRuns = new long[1];
+            }
+            mStyleRuns[0] = style;
+        }
+        mSpaceUsed = (short) mColumns;
+        // Keep mColumnStart allocated for reuse.
+        mHasNonOneWidthOrSurrogateChars = false;
+    }
+
+    // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
+    public void setChar(int columnToSet, int codePoint, long style) {
+        if (mText == null || mStyle == null) expand();
+        mStyle[columnToSet] = style;
+
+        final int newCodePointDisplayWidth = mWcWidth.getWidth(codePoint);
+
+        // Fast path when we don't have any chars with width != 1
+        if (!mHasNonOneWidthOrSurrogateChars) {
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT || newCodePointDisplayWidth != 1) {
+                startTrackingColumns();
+            } else {
+                mText[columnToSet] = (char) codePoint;
+                return;
+            }
+        }
+
+        final boolean newIsCombining = newCodePointDisplayWidth <= 0;
+
+        boolean wasExtraColForWideChar = (columnToSet > 0) && wideDisplayCharacterStartingAt(columnToSet - 1);
+
+        if (newIsCombining) {
+            // When standing at second half of wide character and inserting combining:
+            if (wasExtraColForWideChar) columnToSet--;
+        } else {
+            // Check if we are overwriting the second half of a wide character starting at the previous column:
+            if (wasExtraColForWideChar) setChar(columnToSet - 1, ' ', style);
+            // Check if we are overwriting the first half of a wide character starting at the next column:
+            boolean overwritingWideCharInNextColumn = newCodePointDisplayWidth == 2 && wideDisplayCharacterStartingAt(columnToSet + 1);
+            if (overwritingWideCharInNextColumn) setChar(columnToSet + 1, ' ', style);
+        }
+
+        char[] text = mText;
+        final int oldSpaceUsed = mSpaceUsed;
+        final int oldStartOfColumnIndex = findStartOfColumn(columnToSet);
+        final int oldCodePointDisplayWidth = mWcWidth.getWidth(text, oldStartOfColumnIndex);
+
+        // Get the number of elements in the mText array this column uses now
+        int oldCharactersUsedForColumn;
+        if (columnToSet + oldCodePointDisplayWidth < mColumns) {
+            oldCharactersUsedForColumn = findStartOfColumn(columnToSet + oldCodePointDisplayWidth) - oldStartOfColumnIndex;
+        } else {
+            // Last character.
+            oldCharactersUsedForColumn = mSpaceUsed - oldStartOfColumnIndex;
+        }
+
+        // Find how many chars this column will need
+        int newCharactersUsedForColumn = Character.charCount(codePoint);
+        if (newIsCombining) {
+            // Combining characters are added to the contents of the column instead of overwriting them, so that they
+            // modify the existing contents.
+            // FIXME: Put a limit of combining characters.
+            // FIXME: Unassigned characters also get width=0.
+            newCharactersUsedForColumn += oldCharactersUsedForColumn;
+        }
+
+        int oldNextColumnIndex = oldStartOfColumnIndex + oldCharactersUsedForColumn;
+        int newNextColumnIndex = oldStartOfColumnIndex + newCharactersUsedForColumn;
+
+        final int javaCharDifference = newCharactersUsedForColumn - oldCharactersUsedForColumn;
+        if (javaCharDifference > 0) {
+            // Shift the rest of the line right.
+            int oldCharactersAfterColumn = mSpaceUsed - oldNextColumnIndex;
+            if (mSpaceUsed + javaCharDifference > text.length) {
+                // We need to grow the array
+                char[] newText = new char[text.length + mColumns];
+                System.arraycopy(text, 0, newText, 0, oldStartOfColumnIndex + oldCharactersUsedForColumn);
+                System.arraycopy(text, oldNextColumnIndex, newText, newNextColumnIndex, oldCharactersAfterColumn);
+                mText = text = newText;
+            } else {
+                System.arraycopy(text, oldNextColumnIndex, text, newNextColumnIndex, oldCharactersAfterColumn);
+            }
+        } else if (javaCharDifference < 0) {
+            // Shift the rest of the line left.
+            System.arraycopy(text, oldNextColumnIndex, text, newNextColumnIndex, mSpaceUsed - oldNextColumnIndex);
+        }
+        mSpaceUsed += javaCharDifference;
+
+        // Store char. A combining character is stored at the end of the existing contents so that it modifies them:
+        //noinspection ResultOfMethodCallIgnored - since we already now how many java chars is used.
+        Character.toChars(codePoint, text, oldStartOfColumnIndex + (newIsCombining ? oldCharactersUsedForColumn : 0));
+
+        if (oldCodePointDisplayWidth == 2 && newCodePointDisplayWidth == 1) {
+            // Replace second half of wide char with a space. Which mean that we actually add a ' ' java character.
+            if (mSpaceUsed + 1 > text.length) {
+                char[] newText = new char[text.length + mColumns];
+                System.arraycopy(text, 0, newText, 0, newNextColumnIndex);
+                System.arraycopy(text, newNextColumnIndex, newText, newNextColumnIndex + 1, mSpaceUsed - newNextColumnIndex);
+                mText = text = newText;
+            } else {
+                System.arraycopy(text, newNextColumnIndex, text, newNextColumnIndex + 1, mSpaceUsed - newNextColumnIndex);
+            }
+            text[newNextColumnIndex] = ' ';
+
+            ++mSpaceUsed;
+        } else if (oldCodePointDisplayWidth == 1 && newCodePointDisplayWidth == 2) {
+            if (columnToSet == mColumns - 1) {
+                throw new IllegalArgumentException("Cannot put wide character in last column");
+            } else if (columnToSet == mColumns - 2) {
+                // Truncate the line to the second part of this wide char:
+                mSpaceUsed = (short) newNextColumnIndex;
+            } else {
+                // Overwrite the contents of the next column, which mean we actually remove java characters. Due to the
+                // check at the beginning of this method we know that we are not overwriting a wide char.
+                int newNextNextColumnIndex = newNextColumnIndex + (Character.isHighSurrogate(mText[newNextColumnIndex]) ? 2 : 1);
+                int nextLen = newNextNextColumnIndex - newNextColumnIndex;
+
+                // Shift the array leftwards.
+                System.arraycopy(text, newNextNextColumnIndex, text, newNextColumnIndex, mSpaceUsed - newNextNextColumnIndex);
+                mSpaceUsed -= nextLen;
+            }
+        }
+
+        // Update the column starts. The column itself starts where it did. If it is now a wide char the next column is
+        // its second half, and if it replaced a wide char with a narrow one the next column is the added space.
+        final short[] columnStart = mColumnStart;
+        if (!newIsCombining && columnToSet + 1 < mColumns) {
+            if (newCodePointDisplayWidth == 2) {
+                columnStart[columnToSet + 1] = (short) oldStartOfColumnIndex;
+            } else if (oldCodePointDisplayWidth == 2) {
+                columnStart[columnToSet + 1] = (short) newNextColumnIndex;
+            }
+        }
+        // The columns after have just moved with the rest of the line.
+        final int spaceUsedDifference = mSpaceUsed - oldSpaceUsed;
+        if (spaceUsedDifference != 0) {
+            for (int column = columnToSet + Math.max(1, Math.max(oldCodePointDisplayWidth, newCodePointDisplayWidth)); column < mColumns; column++)
+                columnStart[column] += spaceUsedDifference;
+        }
+    }
+
+    /**
+     * Set a run of printable ASCII characters starting at the specified column. Since all of them have a display width
+     * of one they can be copied straight into {@link #mText} unless the row contains chars with width != 1.
+     */
+    public void setChars(int columnToSet, int[] asciiChars, int offset, int count, long style) {
+        if (mText == null || mStyle == null) expand();
+        if (mHasNonOneWidthOrSurrogateChars) {
+            for (int i = 0; i < count; i++)
+                setChar(columnToSet + i, asciiChars[offset + i], style);
+            return;
+        }
+
+        final char[] text = mText;
+        for (int i = 0; i < count; i++)
+            text[columnToSet + i] = (char) asciiChars[offset + i];
+        Arrays.fill(mStyle, columnToSet, columnToSet + count, style);
+    }
+
+    /**
+     * Set count columns starting at the specified column to the same character and style. A character with a display
+     * width of one is filled straight into {@link #mText} if the row contains no chars with width != 1, or if the whole
+     * row is filled, as when erasing it. A wide character is set count / 2 times.
+     */
+    public void fillChars(int columnToSet, int count, int codePoint, long style) {
+        if (mText == null || mStyle == null) expand();
+        final boolean oneJavaCharWidthOne = codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT && mWcWidth.getWidth(codePoint) == 1;
+        if (oneJavaCharWidthOne && columnToSet == 0 && count == mColumns) {
+            Arrays.fill(mText, 0, mColumns, (char) codePoint);
+            mSpaceUsed = (short) mColumns;
+            // Keep mColumnStart allocated for reuse.
+            mHasNonOneWidthOrSurrogateChars = false;
+        } else if (oneJavaCharWidthOne && !mHasNonOneWidthOrSurrogateChars) {
+            Arrays.fill(mText, columnToSet, columnToSet + count, (char) codePoint);
+        } else {
+            final int step = (mWcWidth.getWidth(codePoint) == 2) ? 2 : 1;
+            for (int i = 0; i + step <= count; i += step)
+                setChar(columnToSet + i, codePoint, style);
+            return;
+        }
+        Arrays.fill(mStyle, columnToSet, columnToSet + count, style);
+    }
+
+    boolean isBlank() {
+        if (mText == null) {
+            for (byte b : mCompactText)
+                if (b != ' ') return false;
+            return true;
+        }
+        for (int charIndex = 0, charLen = getSpaceUsed(); charIndex < charLen; charIndex++)
+            if (mText[charIndex] != ' ') return false;
+        return true;
+    }
+
+    /**
+     * Returns the text of this row, of which the first {@link #getSpaceUsed()} java chars are used. The text of a compact
+     * row is decoded into the buffer, which is allocated if null or shorter than the number of columns.
+     */
+    public char[] getText(char[] buffer) {
+        if (mText != null) return mText;
+        if (buffer == null || buffer.length < mColumns) buffer = new char[mColumns];
+        final byte[] compactText = mCompactText;
+        for (int i = 0; i < mColumns; i++)
+            buffer[i] = (char) (compactText[i] & 0xFF);
+        return buffer;
+    }
+
+    public final long getStyle(int column) {
+        if (mStyle != null) return mStyle[column];
+
+        // Binary search for the first run ending after the column.
+        final short[] runEnds = mStyleRunEnds;
+        int low = 0;
+        int high = runEnds.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (runEnds[middle] <= column) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return mStyleRuns[low];
+    }
+
+    public void setStyle(int column, long style) {
+        if (mStyle == null) expand();
+        mStyle[column] = style;
+    }
+
+    boolean isCompact() {
+        return mText == null || mStyle == null;
+    }
+
+    /**
+     * Store the text as bytes if all characters are Latin-1 with a width of one, and the styles as runs if there are few
+     * enough of them to take less space.
+     * <p>
+     * The arrays no longer needed are swapped with those of the compact parts of recycledRow, if any, to avoid
+     * allocating when the oldest transcript row is reused as a new row. The contents of recycledRow are then lost, so it
+     * has to be cleared.
+     */
+    void compact(TerminalRow recycledRow) {
+        if (recycledRow != null && recycledRow.mColumns != mColumns) recycledRow = null;
+
+        final int columns = mColumns;
+        if (mText != null && !mHasNonOneWidthOrSurrogateChars) {
+            final char[] text = mText;
+            // Copy and check in one loop without branches, as this is done for every line scrolled into the transcript.
+            // The bytes of recycledRow may be overwritten even if not Latin-1, as its contents are lost anyway.
+            final boolean reuseBytes = recycledRow != null && recycledRow.mText == null;
+            byte[] compactText = reuseBytes ? recycledRow.mCompactText : null;
+            int allChars = 0;
+            if (reuseBytes) {
+                for (int i = 0; i < columns; i++) {
+                    char c = text[i];
+                    allChars |= c;
+                    compactText[i] = (byte) c;
+                }
+            } else {
+                for (int i = 0; i < columns; i++)
+                    allChars |= text[i];
+                if (allChars <= 0xFF) {
+                    compactText = new byte[columns];
+                    for (int i = 0; i < columns; i++)
+                        compactText[i] = (byte) text[i];
+                }
+            }
+            if (allChars <= 0xFF) {
+                if (reuseBytes) {
+                    recycledRow.mCompactText = null;
+                    recycledRow.mText = text;
+                }
+                mCompactText = compactText;
+                mText = null;
+            }
+        }
+
+        if (mStyle != null) {
+            final long[] styles = mStyle;
+            int runs = 1;
+            for (int i = 1; i < columns; i++)
+                if (styles[i] != styles[i - 1]) runs++;
+            // A run takes 10 bytes while a column takes 8.
+            if (runs <= columns / 2) {
+                short[] runEnds;
+                long[] runStyles;
+                if (recycledRow != null && recycledRow.mStyle == null && recycledRow.mStyleRuns.length == runs) {
+                    runEnds = recycledRow.mStyleRunEnds;
+                    runStyles = recycledRow.mStyleRuns;
+                } else {
+                    runEnds = new short[runs];
+                    runStyles = new long[runs];
+                }
+                if (recycledRow != null && recycledRow.mStyle == null) {
+                    recycledRow.mStyleRunEnds = null;
+                    recycledRow.mStyleRuns = null;
+                    recycledRow.mStyle = styles;
+                }
+
+                int run = 0;
+                for (int i = 1; i < columns && run < runs - 1; i++) {
+                    if (styles[i] != styles[i - 1]) {
+                        runEnds[run] = (short) i;
+                        runStyles[run++] = styles[i - 1];
+                    }
+                }
+                runEnds[run] = (short) columns;
+                runStyles[run] = styles[columns - 1];
+                mStyleRunEnds = runEnds;
+                mStyleRuns = runStyles;
+                mStyle = null;
+            }
+        }
+    }
+
+    /**
+     * Write this row to out, to be read back as a compact row by {@link #readFrom(DataInput, int, WcWidth)}. Used to
+     * compress the rows of a {@link FrozenTranscript}.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        final int columns = mColumns;
+        final char[] text = mText;
+        boolean latin1Text = text == null;
+        if (!latin1Text && !mHasNonOneWidthOrSurrogateChars) {
+            int allChars = 0;
+            for (int i = 0; i < columns; i++)
+                allChars |= text[i];
+            latin1Text = allChars <= 0xFF;
+        }
+        out.writeByte((mLineWrap ? FLAG_LINE_WRAP : 0) | (latin1Text ? FLAG_LATIN1_TEXT : 0)
+            | (mHasNonOneWidthOrSurrogateChars ? FLAG_COLUMN_STARTS : 0));
+
+        if (latin1Text) {
+            // Trailing spaces are left out, being most of the text in many rows.
+            final byte[] compactText = mCompactText;
+            int length = columns;
+            if (text == null) {
+                while (length > 0 && compactText[length - 1] == ' ')
+                    length--;
+                out.writeShort(length);
+                out.write(compactText, 0, length);
+            } else {
+                while (length > 0 && text[length - 1] == ' ')
+                    length--;
+                out.writeShort(length);
+                for (int i = 0; i < length; i++)
+                    out.writeByte(text[i]);
+            }
+        } else {
+            out.writeShort(mSpaceUsed);
+            for (int i = 0; i < mSpaceUsed; i++)
+                out.writeChar(text[i]);
+            if (mHasNonOneWidthOrSurrogateChars) {
+                for (int i = 0; i < columns; i++)
+                    out.writeShort(mColumnStart[i]);
+            }
+        }
+
+        // The styles are always written as runs.
+        if (mStyle == null) {
+            out.writeShort(mStyleRuns.length);
+            for (int run = 0; run < mStyleRuns.length; run++) {
+                out.writeShort(mStyleRunEnds[run]);
+                out.writeLong(mStyleRuns[run]);
+            }
+        } else {
+            final long[] styles = mStyle;
+            int runs = 1;
+            for (int i = 1; i < columns; i++)
+                if (styles[i] != styles[i - 1]) runs++;
+            out.writeShort(runs);
+            for (int i = 1; i < columns; i++) {
+                if (styles[i] != styles[i - 1]) {
+                    out.writeShort(i);
+                    out.writeLong(styles[i - 1]);
+                }
+            }
+            out.writeShort(columns);
+            out.writeLong(styles[columns - 1]);
+        }
+    }
+
+    /** Read a row written by {@link #writeTo(DataOutput)}, with its styles as runs and its text compact if possible. */
+    static TerminalRow readFrom(DataInput in, int columns, WcWidth wcWidth) throws IOException {
+        TerminalRow row = new TerminalRow(columns, wcWidth);
+        final int flags = in.readUnsignedByte();
+        row.mLineWrap = (flags & FLAG_LINE_WRAP) != 0;
+
+        if ((flags & FLAG_LATIN1_TEXT) != 0) {
+            final int length = in.readUnsignedShort();
+            if (length > columns) throw new IOException("Invalid text length: " + length);
+            byte[] compactText = new byte[columns];
+            in.readFully(compactText, 0, length);
+            Arrays.fill(compactText, length, columns, (byte) ' ');
+            row.mCompactText = compactText;
+            row.mSpaceUsed = (short) columns;
+        } else {
+            final int spaceUsed = in.readUnsignedShort();
+            char[] text = new char[spaceUsed];
+            for (int i = 0; i < spaceUsed; i++)
+                text[i] = in.readChar();
+            row.mText = text;
+            row.mSpaceUsed = (short) spaceUsed;
+            if ((flags & FLAG_COLUMN_STARTS) != 0) {
+                row.mColumnStart = new short[columns];
+                for (int i = 0; i < columns; i++)
+                    row.mColumnStart[i] = in.readShort();
+                row.mHasNonOneWidthOrSurrogateChars = true;
+            }
+        }
+
+        final int runs = in.readUnsignedShort();
+        if (runs == 0 || runs > columns) throw new IOException("Invalid style runs: " + runs);
+        row.mStyleRunEnds = new short[runs];
+        row.mStyleRuns = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            row.mStyleRunEnds[run] = in.readShort();
+            row.mStyleRuns[run] = in.readLong();
+        }
+        return row;
+    }
+
+    /** Bring a compact row back to the full form, in which it can be modified. */
+    private void expand() {
+        if (mText == null) {
+            final byte[] compactText = mCompactText;
+            char[] text = new char[(int) (SPARE_CAPACITY_FACTOR * mColumns)];
+            for (int i = 0; i < mColumns; i++)
+                text[i] = (char) (compactText[i] & 0xFF);
+            mText = text;
+            mCompactText = null;
+        }
+        if (mStyle == null) {
+            long[] styles = new long[mColumns];
+            int start = 0;
+            for (int run = 0; run < mStyleRuns.length; run++) {
+                Arrays.fill(styles, start, mStyleRunEnds[run], mStyleRuns[run]);
+                start = mStyleRunEnds[run];
+            }
+            mStyle = styles;
+            mStyleRunEnds = null;
+            mStyleRuns = null;
+        }
+    }
+
+}
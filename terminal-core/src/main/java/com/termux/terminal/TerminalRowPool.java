@@ -0,0 +1,78 @@
+package com.termux.terminal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows no longer used by the screen buffers of an emulator, which are reused instead of allocating new ones, to avoid
+ * pauses for garbage collection when many rows are replaced at once, as when resizing.
+ * <p>
+ * As the number of columns of a row cannot change, rows are pooled by it. Only rows with the last few numbers of
+ * columns recycled are kept, as when rotating the screen back and forth, and at most {@link #MAX_ROWS_PER_WIDTH} of
+ * each.
+ */
+final class TerminalRowPool {
+
+    /** The number of different numbers of columns to keep rows for. */
+    private static final int MAX_WIDTHS = 2;
+    /** The number of rows to keep with the same number of columns, enough for a full circular buffer of rows. */
+    static final int MAX_ROWS_PER_WIDTH = TerminalBuffer.LIVE_TRANSCRIPT_ROWS + 500;
+
+    private final WcWidth mWcWidth;
+    /** The rows by their number of columns, least recently used first. */
+    private final Map<Integer, List<TerminalRow>> mRows = new LinkedHashMap<Integer, List<TerminalRow>>(MAX_WIDTHS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<TerminalRow>> eldest) {
+            if (size() <= MAX_WIDTHS) return false;
+            for (TerminalRow row : eldest.getValue())
+                mMemoryUsage -= row.getMemoryUsage();
+            return true;
+        }
+    };
+    /** The bytes of memory taken by the rows, which are not modified while pooled. */
+    private long mMemoryUsage;
+
+    /** @param wcWidth the widths of characters, given to the rows created. */
+    TerminalRowPool(WcWidth wcWidth) {
+        mWcWidth = wcWidth;
+    }
+
+    /** Returns a blank row, with the style given to all columns, reused if possible. */
+    TerminalRow obtain(int columns, long style) {
+        final List<TerminalRow> rows = mRows.get(columns);
+        if (rows == null || rows.isEmpty()) return new TerminalRow(columns, style, mWcWidth);
+        TerminalRow row = rows.remove(rows.size() - 1);
+        mMemoryUsage -= row.getMemoryUsage();
+        row.clear(style);
+        row.mLineWrap = false;
+        return row;
+    }
+
+    /** Add a row no longer used to the pool. The row must not be used by the caller afterwards. */
+    void recycle(TerminalRow row) {
+        final int columns = row.getColumns();
+        List<TerminalRow> rows = mRows.get(columns);
+        if (rows == null) {
+            rows = new ArrayList<>();
+            mRows.put(columns, rows);
+        }
+        if (rows.size() < MAX_ROWS_PER_WIDTH) {
+            rows.add(row);
+            mMemoryUsage += row.getMemoryUsage();
+        }
+    }
+
+    /** Drop all rows, to free memory. */
+    void clear() {
+        mRows.clear();
+        mMemoryUsage = 0;
+    }
+
+    /** Returns an estimate of the bytes of memory taken by the rows. */
+    long getMemoryUsage() {
+        return mMemoryUsage;
+    }
+
+}
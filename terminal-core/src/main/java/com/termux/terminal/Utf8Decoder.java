@@ -0,0 +1,159 @@
+package com.termux.terminal;
+
+/**
+ * A table driven UTF-8 decoder turning chunks of bytes into code points.
+ * <p>
+ * Each input byte is mapped to a byte class, and the class together with the current state (the number of continuation
+ * bytes left of the sequence being decoded, and if it encodes a surrogate) gives the next state. The state survives between calls to
+ * {@link #decode(byte[], int, int[])}, so a sequence may be split over several chunks.
+ * <p>
+ * Malformed input is replaced with {@link TerminalEmulator#UNICODE_REPLACEMENT_CHAR}:
+ * <ul>
+ * <li>Invalid start bytes and stray continuation bytes.</li>
+ * <li>Sequences interrupted by a byte which is not a continuation byte, which is then decoded on its own.</li>
+ * <li>Overlong encodings, surrogates, code points above U+10FFFF and unassigned code points.</li>
+ * </ul>
+ * Sequences decoding to C1 control characters (U+0080 - U+009F) are dropped.
+ */
+final class Utf8Decoder {
+
+    private static final int CLASS_ASCII = 0;
+    /** Continuation bytes 0x80 - 0x9F, which after 0xED give code points below the surrogates. */
+    private static final int CLASS_CONTINUATION_LOW = 1;
+    /** Continuation bytes 0xA0 - 0xBF, which after 0xED give surrogates. */
+    private static final int CLASS_CONTINUATION_HIGH = 2;
+    private static final int CLASS_START_OF_2 = 3;
+    private static final int CLASS_START_OF_3 = 4;
+    /** The start byte 0xED of three byte sequences for U+D000 - U+DFFF, which holds the surrogates. */
+    private static final int CLASS_START_OF_3_ED = 5;
+    private static final int CLASS_START_OF_4 = 6;
+    private static final int CLASS_INVALID = 7;
+    private static final int CLASS_COUNT = 8;
+
+    /** The state between complete sequences. States 1 - 3 are the number of continuation bytes left. */
+    private static final int STATE_GROUND = 0;
+    /** Two continuation bytes left after 0xED, where the next one tells if a surrogate is encoded. */
+    private static final int STATE_AFTER_ED = 4;
+    /** One continuation byte left of a surrogate, which is replaced when complete. */
+    private static final int STATE_SURROGATE = 5;
+    /** Returned from {@link #TRANSITIONS} for a byte which is not valid in the current state. */
+    private static final byte REJECT = -1;
+
+    /** The byte class of each byte value. */
+    private static final byte[] BYTE_CLASSES = new byte[256];
+    /** The payload bits of a byte in each class. */
+    private static final int[] PAYLOAD_MASKS = {0x7F, 0x3F, 0x3F, 0x1F, 0x0F, 0x0F, 0x07, 0};
+    /** The smallest code point allowed for a sequence started by a byte in each class, to detect overlong encodings. */
+    private static final int[] MIN_CODE_POINTS = {0, 0, 0, 0x80, 0x800, 0x800, 0x10000, 0};
+    /** The next state, indexed by {@code state * CLASS_COUNT + byteClass}. */
+    private static final byte[] TRANSITIONS = {
+        // ASCII, CONTINUATION_LOW, CONTINUATION_HIGH, START_OF_2, START_OF_3, START_OF_3_ED, START_OF_4, INVALID
+        STATE_GROUND, REJECT, REJECT, 1, 2, STATE_AFTER_ED, 3, REJECT, // STATE_GROUND
+        REJECT, STATE_GROUND, STATE_GROUND, REJECT, REJECT, REJECT, REJECT, REJECT, // One continuation byte left.
+        REJECT, 1, 1, REJECT, REJECT, REJECT, REJECT, REJECT, // Two continuation bytes left.
+        REJECT, 2, 2, REJECT, REJECT, REJECT, REJECT, REJECT, // Three continuation bytes left.
+        REJECT, 1, STATE_SURROGATE, REJECT, REJECT, REJECT, REJECT, REJECT, // STATE_AFTER_ED
+        REJECT, STATE_GROUND, STATE_GROUND, REJECT, REJECT, REJECT, REJECT, REJECT, // STATE_SURROGATE
+    };
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            final int byteClass;
+            if (b < 0b10000000) {
+                byteClass = CLASS_ASCII;
+            } else if (b < 0b10100000) {
+                byteClass = CLASS_CONTINUATION_LOW;
+            } else if (b < 0b11000000) {
+                byteClass = CLASS_CONTINUATION_HIGH;
+            } else if (b < 0b11100000) {
+                byteClass = CLASS_START_OF_2;
+            } else if (b == 0xED) {
+                byteClass = CLASS_START_OF_3_ED;
+            } else if (b < 0b11110000) {
+                byteClass = CLASS_START_OF_3;
+            } else if (b < 0b11111000) {
+                byteClass = CLASS_START_OF_4;
+            } else {
+                byteClass = CLASS_INVALID;
+            }
+            BYTE_CLASSES[b] = (byte) byteClass;
+        }
+    }
+
+    private int mState = STATE_GROUND;
+    /** The bits decoded so far of the current sequence. */
+    private int mCodePoint;
+    /** The smallest code point which is not an overlong encoding for the current sequence. */
+    private int mMinCodePoint;
+
+    /**
+     * Decode a chunk of bytes.
+     *
+     * @param input  the bytes to decode
+     * @param length the number of bytes in the array to decode
+     * @param output array receiving the decoded code points, which must have room for at least {@code length + 1}
+     *               code points since a sequence left unfinished by the previous chunk may be replaced here
+     * @return the number of code points written to output
+     */
+    public int decode(byte[] input, int length, int[] output) {
+        int state = mState;
+        int codePoint = mCodePoint;
+        int outputIndex = 0;
+        for (int i = 0; i < length; i++) {
+            final int b = input[i] & 0xFF;
+            final int byteClass = BYTE_CLASSES[b];
+            final int nextState = TRANSITIONS[state * CLASS_COUNT + byteClass];
+            if (nextState == REJECT) {
+                output[outputIndex++] = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+                if (state != STATE_GROUND) {
+                    // The Unicode Standard Version 6.2 – Core Specification
+                    // (http://www.unicode.org/versions/Unicode6.2.0/ch03.pdf):
+                    // "If the converter encounters an ill-formed UTF-8 code unit sequence which starts with a valid
+                    // first byte, but which does not continue with valid successor bytes (see Table 3-7), it must not
+                    // consume the successor bytes as part of the ill-formed subsequence whenever those successor bytes
+                    // themselves constitute part of a well-formed UTF-8 code unit subsequence."
+                    state = STATE_GROUND;
+                    i--;
+                }
+                continue;
+            }
+
+            if (state == STATE_GROUND) {
+                if (nextState == STATE_GROUND) {
+                    output[outputIndex++] = b;
+                    continue;
+                }
+                mMinCodePoint = MIN_CODE_POINTS[byteClass];
+                codePoint = b & PAYLOAD_MASKS[byteClass];
+            } else {
+                codePoint = (codePoint << 6) | (b & 0b00111111);
+                if (nextState == STATE_GROUND) {
+                    if (codePoint < mMinCodePoint || state == STATE_SURROGATE) {
+                        // Overlong encoding, or a surrogate.
+                        output[outputIndex++] = TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+                    } else if (codePoint >= 0x80 && codePoint <= 0x9F) {
+                        // Sequence decoded to a C1 control character which we ignore. They are
+                        // not used nowadays and increases the risk of messing up the terminal state
+                        // on binary input. XTerm does not allow them in utf-8:
+                        // "It is not possible to use a C1 control obtained from decoding the
+                        // UTF-8 text" - http://invisible-island.net/xterm/ctlseqs/ctlseqs.html
+                    } else {
+                        final boolean valid = codePoint <= Character.MAX_CODE_POINT && !WcWidth.isUnassigned(codePoint);
+                        output[outputIndex++] = valid ? codePoint : TerminalEmulator.UNICODE_REPLACEMENT_CHAR;
+                    }
+                }
+            }
+            state = nextState;
+        }
+        mState = state;
+        mCodePoint = codePoint;
+        return outputIndex;
+    }
+
+    /** Discard any partially decoded sequence. */
+    public void reset() {
+        mState = STATE_GROUND;
+        mCodePoint = 0;
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.termux.terminal;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Implementation of wcwidth(3), with a table for each supported Unicode version.
+ *
+ * Based on https://github.com/jquast/wcwidth but we return 0 for unprintable characters.
+ *
+ * The tables are generated at build time from src/main/unicode/VERSION/widths.txt by WcWidthTableGenerator. A
+ * session should use the Unicode version of the wcwidth(3) in the libc of the programs it runs, as when the two
+ * disagree about the width of a character programs such as readline and zsh place the cursor wrongly. For Termux
+ * that is the version used by the following:
+ * https://github.com/termux/wcwidth
+ * https://github.com/termux/libandroid-support
+ * https://github.com/termux/termux-packages/tree/master/libandroid-support
+ */
+public final class WcWidth {
+
+    /** The Unicode version of {@link #width(int)} and sessions not specifying a version. */
+    public static final String DEFAULT_UNICODE_VERSION = "13.0.0";
+
+    /** Must match WcWidthTableGenerator. */
+    private static final int BLOCK_SHIFT = 8;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    /** Each long holds the width of 32 code points, 2 bits each. */
+    private static final int LONGS_PER_BLOCK = BLOCK_SIZE / 32;
+    /** Each long of the unassigned table holds a bit for 64 code points. */
+    private static final int UNASSIGNED_LONGS_PER_BLOCK = BLOCK_SIZE / 64;
+
+    /** The tables loaded so far, by Unicode version. */
+    private static final Map<String, WcWidth> sLoaded = new HashMap<>();
+    private static final WcWidth DEFAULT = forUnicodeVersion(DEFAULT_UNICODE_VERSION);
+
+    /** The blocks of {@link #sUnassignedBits} to use for each range of {@link #BLOCK_SIZE} code points. */
+    private static final char[] sUnassignedBlockIndex = new char[(Character.MAX_CODE_POINT + 1) >> BLOCK_SHIFT];
+    /** A bit set for each unassigned code point, in blocks of {@link #UNASSIGNED_LONGS_PER_BLOCK} longs. */
+    private static final long[] sUnassignedBits;
+
+    static {
+        InputStream in = WcWidth.class.getResourceAsStream("unassigned.bin");
+        if (in == null) throw new IllegalStateException("No table of unassigned code points");
+        try (DataInputStream dataIn = new DataInputStream(in)) {
+            sUnassignedBits = readTable(dataIn, sUnassignedBlockIndex, UNASSIGNED_LONGS_PER_BLOCK);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read table of unassigned code points", e);
+        }
+    }
+
+    private final String mUnicodeVersion;
+    /** The block in {@link #mBlockWidths} to use for each range of {@link #BLOCK_SIZE} code points. */
+    private final char[] mBlockIndex = new char[(Character.MAX_CODE_POINT + 1) >> BLOCK_SHIFT];
+    /**
+     * The widths of code points, 2 bits per code point in blocks of {@link #LONGS_PER_BLOCK} longs. Identical blocks,
+     * such as the many with all widths being 1, are only stored once.
+     */
+    private final long[] mBlockWidths;
+
+    private WcWidth(String unicodeVersion, DataInputStream in) throws IOException {
+        mUnicodeVersion = unicodeVersion;
+        mBlockWidths = readTable(in, mBlockIndex, LONGS_PER_BLOCK);
+    }
+
+    /** Read a table written by WcWidthTableGenerator into blockIndex, returning the blocks it indexes. */
+    private static long[] readTable(DataInputStream in, char[] blockIndex, int longsPerBlock) throws IOException {
+        int uniqueBlocks = in.readInt();
+        if (uniqueBlocks <= 0 || uniqueBlocks > blockIndex.length) throw new IOException("Invalid block count: " + uniqueBlocks);
+        long[] blocks = new long[uniqueBlocks * longsPerBlock];
+
+        byte[] table = new byte[blockIndex.length * 2 + blocks.length * 8];
+        in.readFully(table);
+        if (in.read() != -1) throw new IOException("Trailing data after table");
+        ByteBuffer buffer = ByteBuffer.wrap(table);
+        buffer.asCharBuffer().get(blockIndex);
+        buffer.position(blockIndex.length * 2);
+        buffer.asLongBuffer().get(blocks);
+        for (char index : blockIndex) {
+            if (index >= uniqueBlocks) throw new IOException("Invalid block index: " + (int) index);
+        }
+        return blocks;
+    }
+
+    /**
+     * Returns the widths of a Unicode version, such as {@link #DEFAULT_UNICODE_VERSION}.
+     *
+     * @throws IllegalArgumentException if there is no table for the version.
+     */
+    public static WcWidth forUnicodeVersion(String unicodeVersion) {
+        synchronized (sLoaded) {
+            WcWidth result = sLoaded.get(unicodeVersion);
+            if (result != null) return result;
+
+            if (!unicodeVersion.matches("[0-9]+(\\.[0-9]+)*"))
+                throw new IllegalArgumentException("Invalid Unicode version: " + unicodeVersion);
+            InputStream in = WcWidth.class.getResourceAsStream("wcwidth-" + unicodeVersion + ".bin");
+            if (in == null) throw new IllegalArgumentException("No width table for Unicode " + unicodeVersion);
+            try (DataInputStream dataIn = new DataInputStream(in)) {
+                result = new WcWidth(unicodeVersion, dataIn);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read width table for Unicode " + unicodeVersion, e);
+            }
+            sLoaded.put(unicodeVersion, result);
+            return result;
+        }
+    }
+
+    /** The widths of {@link #DEFAULT_UNICODE_VERSION}. */
+    public static WcWidth getDefault() {
+        return DEFAULT;
+    }
+
+    public String getUnicodeVersion() {
+        return mUnicodeVersion;
+    }
+
+    /** Return the terminal display width of a code point: 0, 1 || 2. */
+    public int getWidth(int ucs) {
+        if ((ucs >>> 16) > (Character.MAX_CODE_POINT >>> 16)) {
+            // Negative or past the last code point.
+            return ucs < 0 ? 0 : 1;
+        }
+        long widths = mBlockWidths[(mBlockIndex[ucs >>> BLOCK_SHIFT] * LONGS_PER_BLOCK) + ((ucs & (BLOCK_SIZE - 1)) >>> 5)];
+        return (int) (widths >>> ((ucs & 31) << 1)) & 3;
+    }
+
+    /**
+     * Returns if a code point, which must be at most {@link Character#MAX_CODE_POINT}, is unassigned. Looked up in a
+     * table generated at build time from {@link Character#getType(int)}, which is too slow to call for all input.
+     */
+    static boolean isUnassigned(int codePoint) {
+        long bits = sUnassignedBits[(sUnassignedBlockIndex[codePoint >>> BLOCK_SHIFT] * UNASSIGNED_LONGS_PER_BLOCK) + ((codePoint & (BLOCK_SIZE - 1)) >>> 6)];
+        return (bits & (1L << codePoint)) != 0;
+    }
+
+    /** The width at an index position in a java char array. */
+    public int getWidth(char[] chars, int index) {
+        char c = chars[index];
+        return Character.isHighSurrogate(c) ? getWidth(Character.toCodePoint(c, chars[index + 1])) : getWidth(c);
+    }
+
+    /** Return the terminal display width of a code point in {@link #DEFAULT_UNICODE_VERSION}: 0, 1 || 2. */
+    public static int width(int ucs) {
+        return DEFAULT.getWidth(ucs);
+    }
+
+    /** The width at an index position in a java char array in {@link #DEFAULT_UNICODE_VERSION}. */
+    public static int width(char[] chars, int index) {
+        return DEFAULT.getWidth(chars, index);
+    }
+
+}
@@ -35,6 +35,34 @@ public class ControlSequenceIntroducerTest extends TerminalTestCase {
 		withTerminalSized(3, 2).enterString("\033[0;38;2;255;255;255;48;2;0;0;0;1;2;3;4;5;7;8;9mabc").assertLinesAre("abc", "   ");
 	}
 
+	/** CSI Pm m  with colon separated sub-parameters. */
+	public void testCsiSGRSubParameters() {
+		withTerminalSized(3, 2).enterString("\033[38:2::255:0:0ma\033[38:2:0:255:0mb\033[48:5:17mc");
+		assertForegroundColorAt(0, 0, 0xFFFF0000);
+		assertForegroundColorAt(0, 1, 0xFF00FF00);
+		assertEquals(17, TextStyle.decodeBackColor(getStyleAt(0, 2)));
+		// Sub-parameters do not affect the following parameters:
+		withTerminalSized(3, 2).enterString("\033[4:3;31ma\033[4:0mb");
+		assertEquals(TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE, TextStyle.decodeEffect(getStyleAt(0, 0)));
+		assertForegroundColorAt(0, 0, 1);
+		assertEquals(0, TextStyle.decodeEffect(getStyleAt(0, 1)));
+	}
+
+	/** Sequences which are not understood are consumed in full instead of having their remaining characters printed. */
+	public void testIgnoredSequences() {
+		// Private marker after parameters:
+		withTerminalSized(3, 2).enterString("a\033[1?2hb").assertLinesAre("ab ", "   ");
+		// Non-ASCII in sequence:
+		withTerminalSized(3, 2).enterString("a\033[1åhb").assertLinesAre("ab ", "   ");
+		// Start of string (SOS), privacy message (PM) and application program command (APC) strings:
+		withTerminalSized(3, 2).enterString("a\033Xignored\033\\\033^ignored\033\\\033_ignored\033\\b").assertLinesAre("ab ", "   ");
+		// CAN aborts a sequence:
+		withTerminalSized(3, 2).enterString("a\033[31\030b").assertLinesAre("ab ", "   ");
+		assertForegroundColorAt(0, 1, TextStyle.COLOR_INDEX_FOREGROUND);
+		// Control characters are executed in the middle of a sequence:
+		withTerminalSized(3, 2).enterString("a\033[\r3Cb").assertLinesAre("a b", "   ");
+	}
+
     /** CSI Ps b  Repeat the preceding graphic character Ps times (REP). */
     public void testRepeat() {
         withTerminalSized(3, 2).enterString("a\033[b").assertLinesAre("aa ", "   ");
@@ -46,6 +74,31 @@ public class ControlSequenceIntroducerTest extends TerminalTestCase {
         withTerminalSized(5, 2).enterString("abcde\033[2G\033[2b\n").assertLinesAre("aeede", "     ");
     }
 
+	/** REP filling rows at once, which should behave as outputting the character repeatedly. */
+	public void testRepeatFillingRows() {
+		// Wrapping, and scrolling, into following rows:
+		withTerminalSized(3, 2).enterString("a\033[5b").assertLinesAre("aaa", "aaa").assertCursorAt(1, 2);
+		enterString("b").assertLinesAre("aaa", "b  ");
+		assertLineWraps(true, false);
+		// Without autowrap the last column is overwritten:
+		withTerminalSized(3, 2).enterString("\033[?7lab\033[5b").assertLinesAre("abb", "   ").assertCursorAt(0, 2);
+		// The line drawing character repeated:
+		withTerminalSized(4, 2).enterString("\033(0q\033[2b\033(Bq").assertLinesAre("───q", "    ");
+		// Wide characters, wrapping before the last column, or ignored there without autowrap:
+		withTerminalSized(5, 2).enterString("\u679C\033[b").assertLinesAre("\u679C\u679C ", "     ");
+		withTerminalSized(5, 2).enterString("\u679C\033[3b").assertLinesAre("\u679C\u679C ", "\u679C\u679C ").assertCursorAt(1, 4);
+		assertLineWraps(true, false);
+		withTerminalSized(5, 2).enterString("\033[?7la\u679C\033[3b").assertLinesAre("a\u679C\u679C", "     ").assertCursorAt(0, 4);
+		// Insert mode is output one at a time:
+		withTerminalSized(5, 2).enterString("ab\033[4h\033[Hc\033[2b").assertLinesAre("cccab", "     ");
+		// A large count does not take long, and is capped:
+		withTerminalSized(80, 24).enterString("x\033[9999b").assertCursorAt(23, 79);
+		assertLineIs(23, new String(new char[80]).replace('\0', 'x'));
+		withTerminalSized(80, 24).enterString("\u679C\033[999999999b").assertCursorAt(23, (1 + 65535) % 40 * 2);
+		assertLineIs(22, new String(new char[40]).replace("\0", "\u679C"));
+		withTerminalSized(3, 2).enterString("\u679C\033[4h\033[999999999b").assertCursorAt(1, 2);
+	}
+
     /** CSI 3 J  Clear scrollback (xterm, libvte; non-standard). */
     public void testCsi3J() {
         withTerminalSized(3, 2).enterString("a\r\nb\r\nc\r\nd");
@@ -50,6 +50,22 @@ public class CursorAndScreenTest extends TerminalTestCase {
 		}
 	}
 
+	public void testInsertAndDeleteLinesInScrollRegion() {
+		withTerminalSized(3, 5).enterString("ABCDEFGHIJKLMNO").assertLinesAre("ABC", "DEF", "GHI", "JKL", "MNO");
+		assertLineWraps(true, true, true, true, false);
+		// "${CSI}2;4r" to set the scroll region to rows 2-4, then to row 3 and insert a line:
+		enterString("\033[2;4r\033[3H\033[L").assertLinesAre("ABC", "DEF", "   ", "GHI", "MNO");
+		// Rows move with their line wrapping, while inserted rows do not wrap:
+		assertLineWraps(true, true, false, true, false);
+		enterString("\033[2H\033[2M").assertLinesAre("ABC", "GHI", "   ", "   ", "MNO");
+		assertLineWraps(true, true, false, false, false);
+		// Scroll down, the rows going down, and reverse index at the top margin:
+		enterString("XY\033[T").assertLinesAre("ABC", "   ", "XYI", "   ", "MNO");
+		enterString("\033[2HZ\033[2H\033M").assertLinesAre("ABC", "   ", "Z  ", "XYI", "MNO");
+		// Below the bottom margin lines are neither inserted nor deleted:
+		enterString("\033[2;3r\033[5H\033[L\033[M").assertLinesAre("ABC", "   ", "Z  ", "XYI", "MNO");
+	}
+
 	public void testDeleteCharacters() {
 		withTerminalSized(5, 2).enterString("枝ce").assertLinesAre("枝ce ", "     ");
 		withTerminalSized(5, 2).enterString("a枝ce").assertLinesAre("a枝ce", "     ");
@@ -73,6 +89,19 @@ public class CursorAndScreenTest extends TerminalTestCase {
 		withTerminalSized(5, 2).enterString("a枝ce").enterString("\033[G\033[P").assertLinesAre("枝ce ", "     ");
 	}
 
+	public void testInsertAndDeleteCharactersSplittingWideCharacters() {
+		// Deleting from the second half of a wide char, moving text starting at the second half of another:
+		withTerminalSized(8, 2).enterString("枝a枝b枝").enterString("\033[2G\033[3P").assertLinesAre("  b枝   ", "        ");
+		withTerminalSized(8, 2).enterString("𠜎a𠜎b𠜎").enterString("\033[2G\033[3P")
+			.assertLinesAre("  b𠜎   ", "        ");
+		// Inserting at the second half of a wide char, moving text ending at the first half of another:
+		withTerminalSized(7, 2).enterString("a枝b枝c").enterString("\033[3G\033[2@").assertLinesAre("a    b ", "       ");
+		withTerminalSized(7, 2).enterString("a𠜎b𠜎̂c").enterString("\033[3G\033[2@")
+			.assertLinesAre("a    b ", "       ");
+		// Inserting before a wide char, pushing it out of the row and its neighbour over its first half:
+		withTerminalSized(6, 2).enterString("ab枝枝").enterString("\033[2G\033[@").assertLinesAre("a b枝 ", "      ");
+	}
+
 	public void testInsertMode() {
 		// "${CSI}4h" enables insert mode.
 		withTerminalSized(5, 2).enterString("nice").enterString("\033[G\033[4hA").assertLinesAre("Anice", "     ");
@@ -232,6 +261,32 @@ public class CursorAndScreenTest extends TerminalTestCase {
 		withTerminalSized(4, 2).enterString("t\033[?1049h\033[Hest\r\nme").assertLinesAre("est ", "me  ").enterString("\033[?1049lry").assertLinesAre("try ", "    ");
 	}
 
+	public void testAlternateBufferAllocatedWhenUsed() {
+		withTerminalSized(4, 2).enterString("ab");
+		assertNull(mTerminal.mAltBuffer);
+		// Not resized while not allocated, and allocated at the size of the screen.
+		resize(3, 3).enterString("\033[?1049hx").assertLinesAre("  x", "   ", "   ");
+		assertEquals(3, mTerminal.mAltBuffer.mColumns);
+		mTerminal.releaseAlternateBuffer();
+		assertNotNull(mTerminal.mAltBuffer);
+
+		enterString("\033[?1049l").assertLinesAre("ab ", "   ", "   ");
+		assertTrue(mTerminal.hasInactiveAlternateBuffer());
+		mTerminal.releaseAlternateBuffer();
+		assertNull(mTerminal.mAltBuffer);
+		enterString("\033[?1049hy").assertLinesAre("  y", "   ", "   ");
+		assertTrue(mTerminal.checkAlternateBufferLeft());
+		assertFalse(mTerminal.checkAlternateBufferLeft());
+
+		// Entering and leaving within the same output is noted, so that the buffer may still be released.
+		withTerminalSized(3, 2).enterString("\033[?1049hx\033[?1049l");
+		assertTrue(mTerminal.hasInactiveAlternateBuffer());
+		assertTrue(mTerminal.checkAlternateBufferLeft());
+		assertFalse(mTerminal.checkAlternateBufferLeft());
+		mTerminal.releaseAlternateBuffer();
+		assertNull(mTerminal.mAltBuffer);
+	}
+
 	public void testCursorSaveRestoreTextStyle() {
 		long s;
 
@@ -35,6 +35,24 @@ public class DecSetTest extends TerminalTestCase {
 		assertTrue(mTerminal.isShowingCursor());
 	}
 
+	/** DECSET 2026, synchronized output, during which the screen should not be drawn. */
+	public void testSynchronizedOutput() {
+		withTerminalSized(3, 3);
+		assertFalse(mTerminal.isSynchronizedOutput());
+		assertEnteringStringGivesResponse("\033[?2026$p", "\033[?2026;2$y");
+
+		enterString("\033[?2026hab");
+		assertTrue(mTerminal.isSynchronizedOutput());
+		assertEnteringStringGivesResponse("\033[?2026$p", "\033[?2026;1$y");
+		enterString("c\033[?2026l");
+		assertFalse(mTerminal.isSynchronizedOutput());
+		assertLinesAre("abc", "   ", "   ");
+
+		enterString("\033[?2026h");
+		mTerminal.reset();
+		assertFalse("Resetting the terminal should end synchronized output", mTerminal.isSynchronizedOutput());
+	}
+
 	/** DECSET 2004, controls bracketed paste mode. */
 	public void testBracketedPasteMode() {
 		withTerminalSized(3, 3);
@@ -1,8 +1,9 @@
 package com.termux.terminal;
 
-import android.util.Base64;
-
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 import java.util.Random;
 
@@ -137,9 +138,11 @@ public class OperatingSystemControlTest extends TerminalTestCase {
 		assertIndexColorsMatch(TerminalColors.COLOR_SCHEME.mDefaultColors);
 	}
 
-	public void disabledTestSetClipboard() {
-		// Cannot run this as a unit test since Base64 is a android.util class.
-		enterString("\033]52;c;" + Base64.encodeToString("Hello, world".getBytes(), 0) + "\007");
+	public void testSetClipboard() {
+		withTerminalSized(3, 3).enterString("\033]52;c;" + Base64.getEncoder().encodeToString("Hello, world".getBytes(StandardCharsets.UTF_8)) + "\007");
+		// The encoded text may be split over several lines:
+		enterString("\033]52;c;" + Base64.getMimeEncoder().encodeToString("Hallå, värld".getBytes(StandardCharsets.UTF_8)) + "\n\007");
+		assertEquals(Arrays.asList("Hello, world", "Hallå, värld"), mOutput.clipboardPuts);
 	}
 
 	public void testResettingTerminalResetsColor() throws Exception {
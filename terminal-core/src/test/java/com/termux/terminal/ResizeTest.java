@@ -1,5 +1,9 @@
 package com.termux.terminal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class ResizeTest extends TerminalTestCase {
 
 	public void testResizeWhenHasHistory() {
@@ -27,6 +31,44 @@ public class ResizeTest extends TerminalTestCase {
 		enterString("\033[?1049l").assertLinesAre("a  ", "def", "$  ").assertCursorAt(2, 1);
 	}
 
+	public void testRowsReusedWhenResizingBack() {
+		withTerminalSized(5, 3).enterString("ab\r\ncd\r\nef\r\ngh").assertLinesAre("cd   ", "ef   ", "gh   ");
+		List<TerminalRow> rows = new ArrayList<>(Arrays.asList(mTerminal.getScreen().mLines));
+
+		// The rows of the old width are pooled, and used again when going back to it.
+		resize(4, 3).assertLinesAre("cd  ", "ef  ", "gh  ");
+		resize(5, 3).assertLinesAre("cd   ", "ef   ", "gh   ");
+		for (TerminalRow row : mTerminal.getScreen().mLines)
+			if (row != null) assertTrue(rows.remove(row));
+
+		// As are the rows of the alt buffer after leaving it.
+		enterString("\033[?1049h").enterString("x\033[?1049l");
+		enterString("\033[?1049h");
+		assertLineIs(0, "     ");
+	}
+
+	public void testLayoutKeptWhenResizingBack() {
+		withTerminalSized(5, 3).enterString("abcd\r\nefghij").assertLinesAre("abcd ", "efghi", "j    ").assertCursorAt(2, 1);
+		TerminalRow[] lines = mTerminal.getScreen().mLines;
+
+		// Resizing back and forth without output in between goes back to the layouts left, without reflowing.
+		resize(3, 3).assertLinesAre("efg", "hij", "   ").assertCursorAt(2, 0);
+		TerminalRow[] narrowLines = mTerminal.getScreen().mLines;
+		resize(5, 3).assertLinesAre("abcd ", "efghi", "j    ").assertCursorAt(2, 1);
+		assertSame(lines, mTerminal.getScreen().mLines);
+		resize(3, 3).assertLinesAre("efg", "hij", "   ").assertCursorAt(2, 0);
+		assertSame(narrowLines, mTerminal.getScreen().mLines);
+
+		// Output, or a moved cursor, makes the layout left stale.
+		enterString("k");
+		resize(5, 3).assertLinesAre("abcd ", "efghi", "jk   ").assertCursorAt(2, 2);
+		assertNotSame(lines, mTerminal.getScreen().mLines);
+		lines = mTerminal.getScreen().mLines;
+		resize(3, 3).enterString("\r");
+		resize(5, 3).assertLinesAre("abcd ", "efghi", "jk   ").assertCursorAt(2, 1);
+		assertNotSame(lines, mTerminal.getScreen().mLines);
+	}
+
 	public void testShrinkingInAltBuffer() {
 		final int rows = 5;
 		final int cols = 3;
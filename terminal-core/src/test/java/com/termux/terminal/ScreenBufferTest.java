@@ -0,0 +1,277 @@
+package com.termux.terminal;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+public class ScreenBufferTest extends TerminalTestCase {
+
+	public void testBasics() {
+		TerminalBuffer screen = new TerminalBuffer(5, 3, 3, WcWidth.getDefault());
+		assertEquals("", screen.getTranscriptText());
+		screen.setChar(0, 0, 'a', 0);
+		assertEquals("a", screen.getTranscriptText());
+		screen.setChar(0, 0, 'b', 0);
+		assertEquals("b", screen.getTranscriptText());
+		screen.setChar(2, 0, 'c', 0);
+		assertEquals("b c", screen.getTranscriptText());
+		screen.setChar(2, 2, 'f', 0);
+		assertEquals("b c\n\n  f", screen.getTranscriptText());
+		screen.blockSet(0, 0, 2, 2, 'X', 0);
+	}
+
+	public void testBlockSet() {
+		TerminalBuffer screen = new TerminalBuffer(5, 3, 3, WcWidth.getDefault());
+		screen.blockSet(0, 0, 2, 2, 'X', 0);
+		assertEquals("XX\nXX", screen.getTranscriptText());
+		screen.blockSet(1, 1, 2, 2, 'Y', 0);
+		assertEquals("XX\nXYY\n YY", screen.getTranscriptText());
+	}
+
+	public void testClearScreenLeavesRowsToClear() {
+		withTerminalSized(3, 3).enterString("ab\r\ncd\r\nef\r\ngh");
+		TerminalBuffer screen = mTerminal.getScreen();
+		TerminalRow firstRow = screen.mLines[screen.externalToInternalRow(0)];
+		enterString("\033[41m\033[2J");
+		// The rows are cleared when used, and the row in the transcript is kept.
+		assertEquals("cd ", new String(firstRow.getText(null), 0, firstRow.getSpaceUsed()));
+		assertLinesAre("   ", "   ", "   ");
+		final long clearStyle = TextStyle.encode(TextStyle.COLOR_INDEX_FOREGROUND, 1, 0);
+		assertEquals(clearStyle, screen.getStyleAt(0, 0));
+		assertEquals(clearStyle, screen.getStyleAt(2, 2));
+		assertLineIs(-1, "ab ");
+
+		enterString("\033[Hx").assertLinesAre("x  ", "   ", "   ");
+		assertEquals(clearStyle, screen.getStyleAt(0, 1));
+		enterString("\r\n\r\n\r\n").assertLinesAre("   ", "   ", "   ");
+		assertLineIs(-1, "x  ");
+		assertEquals("ab\nx", screen.getTranscriptText());
+
+		// As are the rows of the alternate buffer.
+		withTerminalSized(3, 2).enterString("ab\033[?1049hx\033[?1049h\033[?1049l");
+		assertLinesAre("ab ", "   ");
+		enterString("\033[?1049h").assertLinesAre("   ", "   ");
+	}
+
+	public void testGetSelectedText() {
+		withTerminalSized(5, 3).enterString("ABCDEFGHIJ").assertLinesAre("ABCDE", "FGHIJ", "     ");
+		assertEquals("AB", mTerminal.getSelectedText(0, 0, 1, 0));
+		assertEquals("BC", mTerminal.getSelectedText(1, 0, 2, 0));
+		assertEquals("CDE", mTerminal.getSelectedText(2, 0, 4, 0));
+		assertEquals("FG", mTerminal.getSelectedText(0, 1, 1, 1));
+		assertEquals("GH", mTerminal.getSelectedText(1, 1, 2, 1));
+		assertEquals("HIJ", mTerminal.getSelectedText(2, 1, 4, 1));
+
+		assertEquals("ABCDEFG", mTerminal.getSelectedText(0, 0, 1, 1));
+		withTerminalSized(5, 3).enterString("ABCDE\r\nFGHIJ").assertLinesAre("ABCDE", "FGHIJ", "     ");
+		assertEquals("ABCDE\nFG", mTerminal.getSelectedText(0, 0, 1, 1));
+	}
+
+	public void testGetSelectedTextJoinFullLines() {
+		withTerminalSized(5, 3).enterString("ABCDE\r\nFG");
+		assertEquals("ABCDEFG", mTerminal.getScreen().getSelectedText(0, 0, 1, 1, true, true));
+
+		withTerminalSized(5, 3).enterString("ABC\r\nFG");
+		assertEquals("ABC\nFG", mTerminal.getScreen().getSelectedText(0, 0, 1, 1, true, true));
+	}
+
+	public void testTranscriptRowsAreCompact() {
+		withTerminalSized(5, 2).enterString("\033[31mab\033[mc\r\nde\r\nfg\r\n\u4e00h");
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertTrue(screen.mLines[screen.externalToInternalRow(-2)].isCompact());
+		assertTrue(screen.mLines[screen.externalToInternalRow(-1)].isCompact());
+		assertFalse(screen.mLines[screen.externalToInternalRow(0)].isCompact());
+		assertEquals("abc\nde\nfg\n\u4e00h", screen.getTranscriptText());
+		assertEquals(TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0), screen.getStyleAt(-2, 1));
+		assertEquals(TextStyle.NORMAL, screen.getStyleAt(-2, 2));
+
+		// Resizing copies the compact rows.
+		mTerminal.resize(4, 2);
+		assertEquals("abc\nde\nfg\n\u4e00h", screen.getTranscriptText());
+	}
+
+	public void testFrozenTranscriptCompressorBacklog() throws InterruptedException {
+		final CountDownLatch compressorBlocked = new CountDownLatch(1);
+		FrozenTranscript.sCompressor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compressorBlocked.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		try {
+			final int blocks = FrozenTranscript.MAX_PENDING_BLOCKS + 4;
+			FrozenTranscript transcript = new FrozenTranscript(5, (blocks - 2) * FrozenTranscript.BLOCK_ROWS, WcWidth.getDefault());
+			for (int i = 0; i < blocks * FrozenTranscript.BLOCK_ROWS; i++) {
+				TerminalRow row = new TerminalRow(5, TextStyle.NORMAL, WcWidth.getDefault());
+				for (int column = 0; column < 5; column++)
+					row.setChar(column, '0' + (i + column) % 10, TextStyle.NORMAL);
+				transcript.add(row);
+			}
+			// Blocks beyond those waiting for the blocked compressor are compressed when filled.
+			assertTrue(FrozenTranscript.sPendingBlocks.get() <= FrozenTranscript.MAX_PENDING_BLOCKS);
+			assertEquals((blocks - 2) * FrozenTranscript.BLOCK_ROWS, transcript.getRows());
+			for (int i = 0; i < transcript.getRows(); i++)
+				assertEquals('0' + (i + 2 * FrozenTranscript.BLOCK_ROWS) % 10, transcript.getRow(i).getText(null)[0]);
+		} finally {
+			compressorBlocked.countDown();
+		}
+		// The dropped blocks are skipped by the compressor.
+		FrozenTranscript.awaitCompression();
+		assertEquals(0, FrozenTranscript.sPendingBlocks.get());
+	}
+
+	public void testFrozenTranscript() throws InterruptedException {
+		final int transcriptRows = TerminalBuffer.LIVE_TRANSCRIPT_ROWS + 2 * FrozenTranscript.BLOCK_ROWS;
+		mTerminal = new TerminalEmulator(mOutput, 5, 2, 2 + transcriptRows);
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(2 + TerminalBuffer.LIVE_TRANSCRIPT_ROWS, screen.mTotalRows);
+
+		// A styled row with wide characters, to go through a compressed block.
+		enterString("\033[31ma\u4e00\033[m\r\n");
+		for (int line = 1; line < transcriptRows + 1; line++)
+			enterString(line + "\r\n");
+		assertEquals(transcriptRows, screen.getActiveTranscriptRows());
+		FrozenTranscript.awaitCompression();
+		assertLineIs(-transcriptRows, "a\u4e00  ");
+		assertEquals(TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0), screen.getStyleAt(-transcriptRows, 1));
+		assertEquals(TextStyle.NORMAL, screen.getRow(-transcriptRows).getStyle(3));
+		for (int line = 1; line < transcriptRows; line++)
+			assertEquals(Integer.toString(line), screen.getSelectedText(0, line - transcriptRows, 4, line - transcriptRows));
+
+		// When full the oldest block is dropped.
+		enterString("x\r\n");
+		assertEquals(transcriptRows + 1 - FrozenTranscript.BLOCK_ROWS, screen.getActiveTranscriptRows());
+		assertLineIs(-screen.getActiveTranscriptRows(), FrozenTranscript.BLOCK_ROWS + "  ");
+		assertLineIs(0, "x    ");
+
+		// Resizing reflows the frozen rows too.
+		String transcript = screen.getTranscriptText();
+		mTerminal.resize(4, 2);
+		assertEquals(transcript, screen.getTranscriptText());
+		assertTrue(screen.getActiveTranscriptRows() > TerminalBuffer.LIVE_TRANSCRIPT_ROWS);
+
+		enterString("\033[3J");
+		assertEquals(0, screen.getActiveTranscriptRows());
+	}
+
+	public void testReflowTranscriptWhenNeeded() {
+		final int transcriptRows = TerminalBuffer.LIVE_TRANSCRIPT_ROWS + 4 * FrozenTranscript.BLOCK_ROWS;
+		mTerminal = new TerminalEmulator(mOutput, 6, 2, 2 + transcriptRows);
+		TerminalBuffer screen = mTerminal.getScreen();
+		for (int line = 0; line < transcriptRows + 1; line++)
+			enterString(line + "\r\n");
+		String transcript = screen.getTranscriptText();
+
+		// Only the rows in the circular buffer are reflowed at once, and older rows when wanted.
+		mTerminal.resize(5, 2);
+		assertEquals(TerminalBuffer.LIVE_TRANSCRIPT_ROWS, screen.getActiveTranscriptRows());
+		assertLineIs(-TerminalBuffer.LIVE_TRANSCRIPT_ROWS, (transcriptRows - TerminalBuffer.LIVE_TRANSCRIPT_ROWS) + " ");
+		assertTrue(screen.reflowTranscript(1));
+		assertEquals(TerminalBuffer.LIVE_TRANSCRIPT_ROWS + 1, screen.getActiveTranscriptRows());
+		assertLineIs(-TerminalBuffer.LIVE_TRANSCRIPT_ROWS - 1, (transcriptRows - TerminalBuffer.LIVE_TRANSCRIPT_ROWS - 1) + " ");
+
+		// Resizing back before the rest is reflowed.
+		mTerminal.resize(6, 2);
+		assertEquals(transcript, screen.getTranscriptText());
+		assertEquals(transcriptRows, screen.getActiveTranscriptRows());
+		assertFalse(screen.reflowTranscript(1));
+
+		// Rows which no longer fit are wrapped, dropping the oldest ones not fitting in the transcript.
+		mTerminal.resize(3, 2);
+		String narrowTranscript = screen.getTranscriptText();
+		assertTrue(transcript.endsWith(narrowTranscript));
+		assertTrue(narrowTranscript.length() > transcript.length() / 2);
+		assertTrue(screen.getActiveTranscriptRows() <= transcriptRows);
+		assertLineIs(-3, "152");
+		assertLineIs(-2, "3  ");
+	}
+
+	public void testShrinkTranscript() throws InterruptedException {
+		final int transcriptRows = TerminalBuffer.LIVE_TRANSCRIPT_ROWS + 4 * FrozenTranscript.BLOCK_ROWS;
+		mTerminal = new TerminalEmulator(mOutput, 5, 2, 2 + transcriptRows);
+		TerminalBuffer screen = mTerminal.getScreen();
+		for (int line = 0; line < transcriptRows + 1; line++)
+			enterString(line + "\r\n");
+		FrozenTranscript.awaitCompression();
+		long memoryUsage = mTerminal.getMemoryUsage();
+
+		// The oldest rows are dropped, and the transcript may fill up again.
+		assertTrue(mTerminal.shrinkTranscript());
+		assertEquals(TerminalBuffer.LIVE_TRANSCRIPT_ROWS + 2 * FrozenTranscript.BLOCK_ROWS, screen.getActiveTranscriptRows());
+		assertTrue(mTerminal.getMemoryUsage() < memoryUsage);
+		assertLineIs(-screen.getActiveTranscriptRows(), 2 * FrozenTranscript.BLOCK_ROWS + "  ");
+		for (int line = 0; line < 3 * FrozenTranscript.BLOCK_ROWS; line++)
+			enterString("x\r\n");
+		assertEquals(transcriptRows, screen.getActiveTranscriptRows());
+
+		assertTrue(mTerminal.shrinkTranscript());
+		assertTrue(mTerminal.shrinkTranscript());
+		assertTrue(mTerminal.shrinkTranscript());
+		assertEquals(TerminalBuffer.LIVE_TRANSCRIPT_ROWS, screen.getActiveTranscriptRows());
+		assertFalse(mTerminal.shrinkTranscript());
+		enterString("y\r\n");
+		assertEquals(TerminalBuffer.LIVE_TRANSCRIPT_ROWS + 1, screen.getActiveTranscriptRows());
+		assertLineIs(0, "y    ");
+	}
+
+	public void testFrozenTranscriptMemoryUsage() throws InterruptedException {
+		FrozenTranscript transcript = new FrozenTranscript(5, 4 * FrozenTranscript.BLOCK_ROWS, WcWidth.getDefault());
+		long rowsMemoryUsage = 0;
+		for (int i = 0; i < 2 * FrozenTranscript.BLOCK_ROWS + 1; i++) {
+			TerminalRow row = new TerminalRow(5, TextStyle.NORMAL, WcWidth.getDefault());
+			row.setChar(0, '0' + i % 10, TextStyle.NORMAL);
+			transcript.add(row);
+			rowsMemoryUsage += row.getMemoryUsage();
+		}
+		FrozenTranscript.awaitCompression();
+		// The full blocks are counted as compressed, and the last row as it is.
+		final long compressedMemoryUsage = transcript.getMemoryUsage();
+		assertTrue(compressedMemoryUsage < rowsMemoryUsage / 2);
+
+		// Decompressed blocks are counted while cached.
+		transcript.getRow(0);
+		assertTrue(transcript.getMemoryUsage() > compressedMemoryUsage);
+		transcript.dropOldestRows(FrozenTranscript.BLOCK_ROWS + 1);
+		assertEquals(FrozenTranscript.BLOCK_ROWS + 1, transcript.getRows());
+		assertTrue(transcript.getMemoryUsage() < compressedMemoryUsage);
+
+		transcript.clear();
+		assertEquals(0, transcript.getMemoryUsage());
+	}
+
+	public void testSpilledTranscript() throws Exception {
+		File directory = File.createTempFile("transcripts", "");
+		assertTrue(directory.delete() && directory.mkdir());
+		try {
+			final int transcriptRows = TerminalBuffer.LIVE_TRANSCRIPT_ROWS + 4 * FrozenTranscript.BLOCK_ROWS;
+			mTerminal = new TerminalEmulator(mOutput, 5, 2, 2 + transcriptRows);
+			mTerminal.spillTranscript(directory, 0);
+			TerminalBuffer screen = mTerminal.getScreen();
+			for (int line = 0; line < transcriptRows + 1; line++)
+				enterString(line + "\r\n");
+			assertEquals(transcriptRows, screen.getActiveTranscriptRows());
+			FrozenTranscript.awaitCompression();
+			assertEquals(1, directory.listFiles().length);
+			for (int line = 0; line < transcriptRows; line++)
+				assertEquals(Integer.toString(line), screen.getSelectedText(0, line - transcriptRows, 4, line - transcriptRows));
+
+			// Dropping the oldest block keeps the file in use by the others.
+			enterString("x\r\n");
+			FrozenTranscript.awaitCompression();
+			assertLineIs(-screen.getActiveTranscriptRows(), FrozenTranscript.BLOCK_ROWS + "  ");
+			assertEquals(1, directory.listFiles().length);
+
+			enterString("\033[3J");
+			FrozenTranscript.awaitCompression();
+			assertEquals(0, directory.listFiles().length);
+		} finally {
+			for (File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+
+}
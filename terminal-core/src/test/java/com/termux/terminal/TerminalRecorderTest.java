@@ -0,0 +1,125 @@
+package com.termux.terminal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TerminalRecorderTest extends TerminalTestCase {
+
+	private static String record(int columns, int rows, byte[]... chunks) throws InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TerminalRecorder recorder = new TerminalRecorder(out, columns, rows, 1024 * 1024);
+		for (byte[] chunk : chunks) recorder.recordOutput(chunk, 0, chunk.length);
+		recorder.close();
+		assertTrue(recorder.awaitTermination(10, TimeUnit.SECONDS));
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	public void testRecordingFormat() throws InterruptedException {
+		String recording = record(80, 24, "hi\r\n\"\\\033[m".getBytes(StandardCharsets.UTF_8));
+		String[] lines = recording.split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0], lines[0].startsWith("{\"version\": 2, \"width\": 80, \"height\": 24, \"timestamp\": "));
+		assertTrue(lines[1], lines[1].matches("\\[\\d+\\.\\d{6}, \"o\", \"hi\\\\r\\\\n\\\\\"\\\\\\\\\\\\u001b\\[m\"\\]"));
+	}
+
+	public void testUtf8SplitBetweenReads() throws InterruptedException {
+		byte[] euro = "€".getBytes(StandardCharsets.UTF_8);
+		String recording = record(80, 24, new byte[]{'a', euro[0]}, new byte[]{euro[1]}, new byte[]{euro[2], 'b'});
+		String[] lines = recording.split("\n");
+		assertEquals(3, lines.length);
+		assertTrue(lines[1], lines[1].endsWith("\"o\", \"a\"]"));
+		assertTrue(lines[2], lines[2].endsWith("\"o\", \"€b\"]"));
+	}
+
+	public void testReplayGivesSameScreen() throws Exception {
+		String output = "\033[31mhello\r\nwörld 😀\033[2;1H\033[K\033[1;44mbye\033[m";
+		String recording = record(5, 3, output.getBytes(StandardCharsets.UTF_8));
+
+		withTerminalSized(5, 3).enterString(output);
+		TerminalReplay replay = TerminalReplay.read(new StringReader(recording));
+		assertEquals(5, replay.getColumns());
+		assertEquals(3, replay.getRows());
+		assertEquals(output, new String(replay.getOutput(), StandardCharsets.UTF_8));
+
+		TerminalEmulator replayed = replay.createEmulator(mOutput, 100);
+		replay.replay(replayed, false);
+		for (int row = 0; row < 3; row++) {
+			assertEquals(mTerminal.getScreen().getSelectedText(0, row, 4, row), replayed.getScreen().getSelectedText(0, row, 4, row));
+			for (int column = 0; column < 5; column++) {
+				assertEquals(getStyleAt(row, column), replayed.getScreen().getStyleAt(row, column));
+			}
+		}
+	}
+
+	public void testReplayAsciinemaRecording() throws Exception {
+		String recording = "{\"version\": 2, \"width\": 4, \"height\": 2, \"timestamp\": 1504467315, \"env\": {\"SHELL\": \"/bin/zsh\", \"TERM\": \"xterm\"}}\n"
+			+ "[0.248848, \"o\", \"ab\\u001b[1mc\\r\\n\"]\n"
+			+ "[0.3, \"i\", \"x\"]\n"
+			+ "[0.4, \"m\", \"\"]\n"
+			+ "[1.001376, \"o\", \"\\ud83d\\ude00d\"]\n"
+			+ "[1.5, \"r\", \"6x2\"]\n";
+		TerminalReplay replay = TerminalReplay.read(new StringReader(recording));
+		TerminalEmulator emulator = replay.createEmulator(mOutput, 100);
+		replay.replay(emulator, false);
+		assertEquals(6, emulator.mColumns);
+		assertEquals("abc\n😀d", emulator.getScreen().getTranscriptText());
+	}
+
+	public void testInvalidRecording() {
+		String[] invalidRecordings = {"", "[1, \"o\", \"a\"]\n", "{\"version\": 1, \"width\": 80, \"height\": 24}\n",
+			"{\"version\": 2, \"width\": 80}\n", "{\"version\": 2, \"width\": 80, \"height\": 24}\n[1, \"o\"]\n",
+			"{\"version\": 2, \"width\": 80, \"height\": 24}\n[1, \"r\", \"80\"]\n",
+			"{\"version\": 2, \"width\": 80, \"height\": 24}\n[1, \"o\", \"a]\n"};
+		for (String recording : invalidRecordings) {
+			try {
+				TerminalReplay.read(new StringReader(recording));
+				fail("Expected failure reading: " + recording);
+			} catch (IOException e) {
+				// Expected.
+			}
+		}
+	}
+
+	public void testOutputDroppedWhenWriterIsBlocked() throws InterruptedException {
+		final CountDownLatch unblock = new CountDownLatch(1);
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		OutputStream blockingOut = new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				try {
+					unblock.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				written.write(b, off, len);
+			}
+		};
+
+		TerminalRecorder recorder = new TerminalRecorder(blockingOut, 80, 24, 10);
+		byte[] data = "0123456789".getBytes(StandardCharsets.US_ASCII);
+		recorder.recordOutput(data, 0, 6);
+		recorder.recordOutput(data, 6, 4);
+		assertEquals(0, recorder.getDroppedBytes());
+		recorder.recordOutput(data, 0, 1);
+		assertEquals(1, recorder.getDroppedBytes());
+
+		unblock.countDown();
+		recorder.close();
+		assertTrue(recorder.awaitTermination(10, TimeUnit.SECONDS));
+		assertNull(recorder.getWriteError());
+		String recording = new String(written.toByteArray(), StandardCharsets.UTF_8);
+		assertTrue(recording, recording.contains("\"012345\"]\n"));
+		assertTrue(recording, recording.contains("\"6789\"]\n"));
+	}
+
+}
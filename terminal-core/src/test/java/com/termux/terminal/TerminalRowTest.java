@@ -2,6 +2,11 @@ package com.termux.terminal;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -28,7 +33,7 @@ public class TerminalRowTest extends TestCase {
 	@Override
 	protected void setUp() throws Exception {
 		super.setUp();
-		row = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		row = new TerminalRow(COLUMNS, TextStyle.NORMAL, WcWidth.getDefault());
 	}
 
 	private void assertLineStartsWith(int... codePoints) {
@@ -416,6 +421,115 @@ public class TerminalRowTest extends TestCase {
 		assertLineStartsWith(0x006E, 0x0303, ' ');
 	}
 
+	/** Find the start of a column by scanning the text from the start of the row, as a reference. */
+	private static int scanForStartOfColumn(TerminalRow row, int column) {
+		char[] text = row.mText;
+		int currentColumn = 0;
+		for (int charIndex = 0; charIndex < row.getSpaceUsed(); ) {
+			int codePoint = Character.codePointAt(text, charIndex);
+			int width = WcWidth.width(codePoint);
+			if (width > 0) {
+				if (currentColumn == column) return charIndex;
+				if (currentColumn + width > column) return charIndex; // Second half of a wide character.
+				currentColumn += width;
+			}
+			charIndex += Character.charCount(codePoint);
+		}
+		return row.getSpaceUsed();
+	}
+
+	private static void assertColumnStartsMatchText(TerminalRow row, int columns, String message) {
+		for (int column = 0; column <= columns; column++) {
+			assertEquals(message + ", column=" + column, scanForStartOfColumn(row, column), row.findStartOfColumn(column));
+		}
+	}
+
+	public void testColumnStartsAfterRandomChanges() {
+		int[] codePoints = {'a', 'b', ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_2,
+			TWO_JAVA_CHARS_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, DIARESIS_CODEPOINT};
+		Random random = new Random(1234);
+		final int columns = 12;
+		TerminalRow other = new TerminalRow(columns, TextStyle.NORMAL, WcWidth.getDefault());
+		row = new TerminalRow(columns, TextStyle.NORMAL, WcWidth.getDefault());
+		for (int i = 0; i < 20000; i++) {
+			TerminalRow target = random.nextInt(4) == 0 ? other : row;
+			int operation = random.nextInt(100);
+			String message = "Operation " + i;
+			if (operation == 0) {
+				target.clear(TextStyle.NORMAL);
+			} else if (operation < 5) {
+				TerminalRow source = random.nextBoolean() ? other : row;
+				int x1 = random.nextInt(columns);
+				int x2 = x1 + 1 + random.nextInt(columns - x1);
+				int destination = random.nextInt(columns - (x2 - x1) + 1);
+				target.copyInterval(source, x1, x2, destination);
+			} else {
+				int codePoint = codePoints[random.nextInt(codePoints.length)];
+				int column = random.nextInt(WcWidth.width(codePoint) == 2 ? columns - 1 : columns);
+				target.setChar(column, codePoint, TextStyle.NORMAL);
+			}
+			assertColumnStartsMatchText(target, columns, message);
+		}
+	}
+
+	public void testMoveInterval() {
+		long red = TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0);
+		for (int i = 0; i < 5; i++)
+			row.setChar(i, 'a' + i, i % 2 == 0 ? red : TextStyle.NORMAL);
+		// Inserting two characters, moving the rest right with their styles:
+		row.moveInterval(1, COLUMNS - 2, 3);
+		assertLineStartsWith('a', 'b', 'c', 'b', 'c', 'd', 'e', ' ');
+		assertEquals(red, row.getStyle(4));
+		assertEquals(TextStyle.NORMAL, row.getStyle(5));
+		// Deleting them again:
+		row.moveInterval(3, COLUMNS, 1);
+		assertLineStartsWith('a', 'b', 'c', 'd', 'e', ' ');
+		assertEquals(red, row.getStyle(2));
+		assertFalse(row.mHasNonOneWidthOrSurrogateChars);
+
+		// With wide characters the result is that of copying from another row with the same contents:
+		row.clear(TextStyle.NORMAL);
+		row.setChar(0, 'x', red);
+		row.setChar(1, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, red);
+		row.setChar(3, DIARESIS_CODEPOINT, red);
+		row.setChar(4, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, TextStyle.NORMAL);
+		TerminalRow copy = new TerminalRow(COLUMNS, TextStyle.NORMAL, WcWidth.getDefault());
+		copy.copyInterval(row, 0, COLUMNS, 0);
+		TerminalRow expected = new TerminalRow(COLUMNS, TextStyle.NORMAL, WcWidth.getDefault());
+		expected.copyInterval(row, 0, COLUMNS, 0);
+		expected.copyInterval(copy, 0, COLUMNS - 3, 3);
+		row.moveInterval(0, COLUMNS - 3, 3);
+		assertEquals(new String(expected.mText, 0, expected.getSpaceUsed()), new String(row.mText, 0, row.getSpaceUsed()));
+		for (int column = 0; column < COLUMNS; column++)
+			assertEquals(expected.getStyle(column), row.getStyle(column));
+		assertColumnStartsMatchText(row, COLUMNS, "After moving");
+	}
+
+	public void testFillChars() {
+		long red = TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0);
+		row.fillChars(1, 3, 'x', red);
+		assertLineStartsWith(' ', 'x', 'x', 'x', ' ');
+		assertEquals(TextStyle.NORMAL, row.getStyle(0));
+		assertEquals(red, row.getStyle(3));
+		assertEquals(TextStyle.NORMAL, row.getStyle(4));
+
+		// With wide characters in the row, or filled in, the characters are set one at a time:
+		row.setChar(6, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, red);
+		row.fillChars(7, 2, 'y', red);
+		assertLineStartsWith(' ', 'x', 'x', 'x', ' ', ' ', ' ', 'y', 'y', ' ');
+		assertColumnStartsMatchText(row, COLUMNS, "After filling");
+		row.fillChars(0, 4, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, red);
+		assertLineStartsWith(TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1,
+			TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, ' ');
+		assertColumnStartsMatchText(row, COLUMNS, "After filling with surrogates");
+
+		// Filling the whole row leaves no chars with width != 1:
+		row.fillChars(0, COLUMNS, ' ', TextStyle.NORMAL);
+		assertFalse(row.mHasNonOneWidthOrSurrogateChars);
+		assertEquals(COLUMNS, row.getSpaceUsed());
+		assertColumnStartsMatchText(row, COLUMNS, "After erasing");
+	}
+
 	public void testInsertWideAtLastColumn() {
 		row.setChar(COLUMNS - 2, 'Z', 0);
 		row.setChar(COLUMNS - 1, 'a', 0);
@@ -429,4 +543,103 @@ public class TerminalRowTest extends TestCase {
 		// assertEquals(' ', line.mText[line.findStartOfColumn(COLUMNS - 1)]);
 	}
 
+	public void testCompact() {
+		long red = TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0);
+		row.setChar(0, 'a', red);
+		row.setChar(1, 'ö', red);
+		row.setChar(COLUMNS - 1, 'z', TextStyle.NORMAL);
+		row.mLineWrap = true;
+		row.compact(null);
+		assertTrue(row.isCompact());
+		assertNull(row.mText);
+		assertNull(row.mStyle);
+
+		char[] text = row.getText(null);
+		assertEquals('a', text[0]);
+		assertEquals('ö', text[1]);
+		assertEquals(' ', text[2]);
+		assertEquals('z', text[COLUMNS - 1]);
+		assertEquals(COLUMNS, row.getSpaceUsed());
+		assertEquals(red, row.getStyle(0));
+		assertEquals(red, row.getStyle(1));
+		assertEquals(TextStyle.NORMAL, row.getStyle(2));
+		assertEquals(TextStyle.NORMAL, row.getStyle(COLUMNS - 1));
+		assertFalse(row.isBlank());
+
+		// Writing brings back the full form with the same contents.
+		row.setChar(2, 'b', red);
+		assertFalse(row.isCompact());
+		assertLineStartsWith('a', 'ö', 'b', ' ');
+		assertEquals('z', row.mText[COLUMNS - 1]);
+		assertEquals(red, row.getStyle(2));
+		assertEquals(TextStyle.NORMAL, row.getStyle(3));
+		assertTrue(row.mLineWrap);
+
+		row.compact(null);
+		row.clear(TextStyle.NORMAL);
+		assertTrue(row.isBlank());
+		assertEquals(TextStyle.NORMAL, row.getStyle(0));
+	}
+
+	public void testCompactKeepsFullFormWhereNotSmaller() {
+		row.setChar(0, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TextStyle.NORMAL);
+		row.setChar(2, 0x2500, TextStyle.NORMAL);
+		for (int column = 0; column < COLUMNS; column += 2)
+			row.setStyle(column, TextStyle.encode(column % 256, TextStyle.COLOR_INDEX_BACKGROUND, 0));
+		char[] textBefore = row.mText;
+		long[] stylesBefore = row.mStyle;
+		row.compact(null);
+		assertFalse(row.isCompact());
+		assertSame(textBefore, row.mText);
+		assertSame(stylesBefore, row.mStyle);
+	}
+
+	public void testCompactSwapsArraysWithRecycledRow() {
+		TerminalRow recycled = new TerminalRow(COLUMNS, TextStyle.NORMAL, WcWidth.getDefault());
+		recycled.setChar(0, 'x', TextStyle.NORMAL);
+		recycled.compact(null);
+
+		row.setChar(0, 'a', TextStyle.NORMAL);
+		char[] text = row.mText;
+		long[] styles = row.mStyle;
+		row.compact(recycled);
+		assertSame(text, recycled.mText);
+		assertSame(styles, recycled.mStyle);
+
+		recycled.clear(TextStyle.NORMAL);
+		assertFalse(recycled.isCompact());
+		assertTrue(recycled.isBlank());
+		assertEquals('a', row.getText(null)[0]);
+		assertEquals(' ', row.getText(null)[1]);
+	}
+
+	public void testWriteAndRead() throws IOException {
+		long red = TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0);
+		TerminalRow latin1 = new TerminalRow(COLUMNS, TextStyle.NORMAL, WcWidth.getDefault());
+		latin1.setChar(0, '\u00f6', red);
+		latin1.compact(null);
+		row.setChar(0, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, red);
+		row.setChar(2, TWO_JAVA_CHARS_DISPLAY_WIDTH_TWO_1, TextStyle.NORMAL);
+		row.setChar(COLUMNS - 1, 'z', red);
+		row.mLineWrap = true;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		latin1.writeTo(out);
+		row.writeTo(out);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for (TerminalRow written : new TerminalRow[]{latin1, row}) {
+			TerminalRow read = TerminalRow.readFrom(in, COLUMNS, WcWidth.getDefault());
+			assertTrue(read.isCompact());
+			assertEquals(written.mLineWrap, read.mLineWrap);
+			assertEquals(written.getSpaceUsed(), read.getSpaceUsed());
+			assertEquals(new String(written.getText(null), 0, written.getSpaceUsed()), new String(read.getText(null), 0, read.getSpaceUsed()));
+			for (int column = 0; column < COLUMNS; column++) {
+				assertEquals(written.findStartOfColumn(column), read.findStartOfColumn(column));
+				assertEquals(written.getStyle(column), read.getStyle(column));
+			}
+		}
+		assertEquals(-1, in.read());
+	}
+
 }
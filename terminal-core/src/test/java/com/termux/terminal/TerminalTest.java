@@ -289,6 +289,30 @@ public class TerminalTest extends TerminalTestCase {
 		withTerminalSized(3, 3).enterString("abc\r ").assertLinesAre(" bc", "   ", "   ").assertCursorAt(0, 1);
 	}
 
+	public void testPrintableAsciiRuns() {
+		// Runs wrapping over several lines and scrolling the screen:
+		withTerminalSized(3, 3).enterString("abcdefghijk").assertLinesAre("def", "ghi", "jk ").assertCursorAt(2, 2);
+		assertTrue(mTerminal.getScreen().getLineWrap(0));
+		assertTrue(mTerminal.getScreen().getLineWrap(1));
+		withTerminalSized(3, 3).enterString("abcdef").assertLinesAre("abc", "def", "   ").assertCursorAt(1, 2);
+		enterString("g").assertLinesAre("abc", "def", "g  ").assertCursorAt(2, 1);
+		// Without autowrap the last character of the run ends up in the last column:
+		withTerminalSized(5, 2).enterString("\033[?7labcdefgh").assertLinesAre("abcdh", "     ").assertCursorAt(0, 4);
+		// Inside left and right margins:
+		withTerminalSized(5, 3).enterString("\033[?69h\033[2;4s\033[1;2Habcdefg").assertLinesAre(" abc ", " def ", " g   ");
+		// Insert mode:
+		withTerminalSized(5, 2).enterString("abc\r\033[4hXY").assertLinesAre("XYabc", "     ");
+		// Line drawing charset:
+		withTerminalSized(3, 2).enterString("\033(0qqq").assertLinesAre("───", "   ");
+		// Overwriting a row containing wide characters:
+		withTerminalSized(5, 2).enterString("一一a\rbc").assertLinesAre("bc一a", "     ");
+		withTerminalSized(5, 2).enterString("一一a\rbcd").assertLinesAre("bcd a", "     ");
+		// Style is applied to the whole run:
+		withTerminalSized(3, 2).enterString("\033[31mabc");
+		for (int col = 0; col < 3; col++)
+			assertEquals(1, TextStyle.decodeForeColor(getStyleAt(0, col)));
+	}
+
     public void testTab() {
         withTerminalSized(11, 2).enterString("01234567890\r\tXX").assertLinesAre("01234567XX0", "           ");
         withTerminalSized(11, 2).enterString("01234567890\033[44m\r\tXX").assertLinesAre("01234567XX0", "           ");
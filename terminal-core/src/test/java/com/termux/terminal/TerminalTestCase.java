@@ -141,7 +141,7 @@ public abstract class TerminalTestCase extends TestCase {
 		for (int i = 0; i < lines.length; i++) {
 			if (lines[i] == null) continue;
 			assertTrue("Line exists at multiple places: " + i, linesSet.add(new LineWrapper(lines[i])));
-			char[] text = lines[i].mText;
+			char[] text = lines[i].getText(null);
 			int usedChars = lines[i].getSpaceUsed();
 			int currentColumn = 0;
 			for (int j = 0; j < usedChars; j++) {
@@ -160,11 +160,12 @@ public abstract class TerminalTestCase extends TestCase {
 				assertFalse("The first column should not start with combining character", currentColumn == 0 && width < 0);
 				if (width > 0) currentColumn += width;
 			}
-			assertEquals("Line whose width does not match screens. line=" + new String(lines[i].mText, 0, lines[i].getSpaceUsed()),
+			assertEquals("Line whose width does not match screens. line=" + new String(text, 0, lines[i].getSpaceUsed()),
 					screen.mColumns, currentColumn);
 		}
 
-		assertEquals("The alt buffer should have have no history", mTerminal.mAltBuffer.mTotalRows, mTerminal.mAltBuffer.mScreenRows);
+		if (mTerminal.mAltBuffer != null)
+			assertEquals("The alt buffer should have have no history", mTerminal.mAltBuffer.mTotalRows, mTerminal.mAltBuffer.mScreenRows);
 		if (mTerminal.isAlternateBufferActive()) {
 			assertEquals("The alt buffer should be the same size as the screen", mTerminal.mRows, mTerminal.mAltBuffer.mTotalRows);
 		}
@@ -173,8 +174,8 @@ public abstract class TerminalTestCase extends TestCase {
 	}
 
 	protected void assertLineIs(int line, String expected) {
-		TerminalRow l = mTerminal.getScreen().allocateFullLineIfNecessary(mTerminal.getScreen().externalToInternalRow(line));
-		char[] chars = l.mText;
+		TerminalRow l = mTerminal.getScreen().getRow(line);
+		char[] chars = l.getText(null);
 		int textLen = l.getSpaceUsed();
 		if (textLen != expected.length()) fail("Expected '" + expected + "' (len=" + expected.length() + "), was='"
 				+ new String(chars, 0, textLen) + "' (len=" + textLen + ")");
@@ -203,12 +204,12 @@ public abstract class TerminalTestCase extends TestCase {
 
 	public TerminalTestCase assertLineWraps(boolean... lines) {
 		for (int i = 0; i < lines.length; i++)
-			assertEquals("line=" + i, lines[i], mTerminal.getScreen().mLines[mTerminal.getScreen().externalToInternalRow(i)].mLineWrap);
+			assertEquals("line=" + i, lines[i], mTerminal.getScreen().getRow(i).mLineWrap);
 		return this;
 	}
 
 	protected TerminalTestCase assertLineStartsWith(int line, int... codePoints) {
-		char[] chars = mTerminal.getScreen().mLines[mTerminal.getScreen().externalToInternalRow(line)].mText;
+		char[] chars = mTerminal.getScreen().getRow(line).getText(null);
 		int charIndex = 0;
 		for (int i = 0; i < codePoints.length; i++) {
 			int lineCodePoint = chars[charIndex++];
@@ -292,7 +293,7 @@ public abstract class TerminalTestCase extends TestCase {
 	}
 
 	public void assertForegroundColorAt(int externalRow, int column, int color) {
-		long style = mTerminal.getScreen().mLines[mTerminal.getScreen().externalToInternalRow(externalRow)].getStyle(column);
+		long style = mTerminal.getScreen().getRow(externalRow).getStyle(column);
 		assertEquals(color, TextStyle.decodeForeColor(style));
 	}
 
@@ -1,6 +1,7 @@
 package com.termux.terminal;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 
 public class UnicodeInputTest extends TerminalTestCase {
 
@@ -125,6 +126,28 @@ public class UnicodeInputTest extends TerminalTestCase {
 		assertLineIs(0, "\uFFFDY   ");
 	}
 
+	public void testOverlongUtf8EncodingOfLargestCodePoint() throws Exception {
+		// U+07FF encoded with three bytes and U+FFFF encoded with four bytes are also overlong.
+		withTerminalSized(5, 5).mTerminal.append(new byte[]{(byte) 0xe0, (byte) 0x9f, (byte) 0xbf, 'Y'}, 4);
+		assertLineIs(0, "\uFFFDY   ");
+		withTerminalSized(5, 5).mTerminal.append(new byte[]{(byte) 0xf0, (byte) 0x8f, (byte) 0xbf, (byte) 0xbf, 'Y'}, 5);
+		assertLineIs(0, "\uFFFDY   ");
+	}
+
+	public void testUtf8SequenceSplitBetweenAppends() throws Exception {
+		// U+1F600 GRINNING FACE and U+00E5 LATIN SMALL LETTER A WITH RING ABOVE, split after each byte:
+		withTerminalSized(5, 2);
+		byte[] input = "😀å".getBytes(StandardCharsets.UTF_8);
+		for (byte b : input) mTerminal.append(new byte[]{b}, 1);
+		assertLinesAre("😀å  ", "     ");
+
+		// A sequence interrupted in the next chunk is replaced, and the interrupting byte is kept:
+		withTerminalSized(5, 2);
+		mTerminal.append(new byte[]{(byte) 0xe6, (byte) 0x9e}, 2);
+		mTerminal.append(new byte[]{'a'}, 1);
+		assertLinesAre("\uFFFDa   ", "     ");
+	}
+
 	public void testWideCharacterWithoutWrapping() throws Exception {
 		// With wraparound disabled. The behaviour when a wide character is output with cursor in
 		// the last column when autowrap is disabled is not obvious, but we expect the wide
@@ -0,0 +1,65 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+public class Utf8DecoderTest extends TestCase {
+
+	/** Encode a code point, which may be a surrogate, as UTF-8. */
+	private static byte[] encode(int codePoint) {
+		if (codePoint < 0x80) return new byte[]{(byte) codePoint};
+		if (codePoint < 0x800) return new byte[]{(byte) (0xC0 | (codePoint >> 6)), (byte) (0x80 | (codePoint & 0x3F))};
+		if (codePoint < 0x10000)
+			return new byte[]{(byte) (0xE0 | (codePoint >> 12)), (byte) (0x80 | ((codePoint >> 6) & 0x3F)), (byte) (0x80 | (codePoint & 0x3F))};
+		return new byte[]{(byte) (0xF0 | (codePoint >> 18)), (byte) (0x80 | ((codePoint >> 12) & 0x3F)),
+				(byte) (0x80 | ((codePoint >> 6) & 0x3F)), (byte) (0x80 | (codePoint & 0x3F))};
+	}
+
+	public void testUnassignedTableMatchesCharacter() {
+		for (int c = 0; c <= Character.MAX_CODE_POINT; c++) {
+			if (WcWidth.isUnassigned(c) != (Character.getType(c) == Character.UNASSIGNED))
+				fail("Wrong unassigned bit for code point " + Integer.toHexString(c));
+		}
+	}
+
+	public void testAllCodePoints() {
+		Utf8Decoder decoder = new Utf8Decoder();
+		int[] output = new int[5];
+		for (int c = 0x80; c <= Character.MAX_CODE_POINT; c++) {
+			byte[] input = encode(c);
+			int count = decoder.decode(input, input.length, output);
+			if (c <= 0x9F) {
+				// C1 control characters are dropped.
+				assertEquals(0, count);
+				continue;
+			}
+			final int type = Character.getType(c);
+			final int expected = (type == Character.SURROGATE || type == Character.UNASSIGNED) ? TerminalEmulator.UNICODE_REPLACEMENT_CHAR : c;
+			assertEquals(1, count);
+			if (output[0] != expected) fail("Wrong decoding of code point " + Integer.toHexString(c));
+		}
+	}
+
+	public void testSurrogatesSplitBetweenChunks() {
+		Utf8Decoder decoder = new Utf8Decoder();
+		int[] output = new int[4];
+		// U+D800, then U+D7FB which is the last assigned code point before the surrogates, a byte at a time:
+		byte[] input = {(byte) 0xED, (byte) 0xA0, (byte) 0x80, (byte) 0xED, (byte) 0x9F, (byte) 0xBB};
+		int[] decoded = new int[2];
+		int decodedCount = 0;
+		for (byte b : input) {
+			int count = decoder.decode(new byte[]{b}, 1, output);
+			for (int i = 0; i < count; i++)
+				decoded[decodedCount++] = output[i];
+		}
+		assertEquals(2, decodedCount);
+		assertEquals(TerminalEmulator.UNICODE_REPLACEMENT_CHAR, decoded[0]);
+		assertEquals(0xD7FB, decoded[1]);
+
+		// A surrogate interrupted by another byte is replaced once, and the byte kept:
+		assertEquals(0, decoder.decode(new byte[]{(byte) 0xED, (byte) 0xBF}, 2, output));
+		assertEquals(2, decoder.decode(new byte[]{'a'}, 1, output));
+		assertEquals(TerminalEmulator.UNICODE_REPLACEMENT_CHAR, output[0]);
+		assertEquals('a', output[1]);
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class WcWidthTest extends TestCase {
+
+	private static void assertWidthIs(int expectedWidth, int codePoint) {
+		int wcWidth = WcWidth.width(codePoint);
+		assertEquals(expectedWidth, wcWidth);
+	}
+
+	public void testPrintableAscii() {
+		for (int i = 0x20; i <= 0x7E; i++) {
+			assertWidthIs(1, i);
+		}
+	}
+
+    public void testSomeWidthOne() {
+        assertWidthIs(1, 'å');
+        assertWidthIs(1, 'ä');
+        assertWidthIs(1, 'ö');
+        assertWidthIs(1, 0x23F2);
+    }
+
+	public void testSomeWide() {
+		assertWidthIs(2, 'Ａ');
+		assertWidthIs(2, 'Ｂ');
+		assertWidthIs(2, 'Ｃ');
+		assertWidthIs(2, '中');
+		assertWidthIs(2, '文');
+
+		assertWidthIs(2, 0x679C);
+		assertWidthIs(2, 0x679D);
+
+		assertWidthIs(2, 0x2070E);
+		assertWidthIs(2, 0x20731);
+
+		assertWidthIs(1, 0x1F781);
+	}
+
+	public void testSomeNonWide() {
+		assertWidthIs(1, 0x1D11E);
+		assertWidthIs(1, 0x1D11F);
+	}
+
+	public void testCombining() {
+        assertWidthIs(0, 0x0302);
+        assertWidthIs(0, 0x0308);
+        assertWidthIs(0, 0xFE0F);
+    }
+
+    public void testWordJoiner() {
+        // https://en.wikipedia.org/wiki/Word_joiner
+        // The word joiner (WJ) is a code point in Unicode used to separate words when using scripts
+        // that do not use explicit spacing. It is encoded since Unicode version 3.2
+        // (released in 2002) as U+2060 WORD JOINER (HTML &#8288;).
+        // The word joiner does not produce any space, and prohibits a line break at its position.
+        assertWidthIs(0, 0x2060);
+	}
+
+	public void testSofthyphen() {
+		// http://osdir.com/ml/internationalization.linux/2003-05/msg00006.html:
+		// "Existing implementation practice in terminals is that the SOFT HYPHEN is
+		// a spacing graphical character, and the purpose of my wcwidth() was to
+		// predict the advancement of the cursor position after a string is sent to
+		// a terminal. Hence, I have no choice but to keep wcwidth(SOFT HYPHEN) = 1.
+		// VT100-style terminals do not hyphenate."
+		assertWidthIs(1, 0x00AD);
+	}
+
+	public void testHangul() {
+		assertWidthIs(1, 0x11A3);
+	}
+
+    public void testEmojis() {
+        assertWidthIs(2, 0x1F428); // KOALA.
+        assertWidthIs(2, 0x231a);  // WATCH.
+        assertWidthIs(2, 0x1F643); // UPSIDE-DOWN FACE (Unicode 8).
+    }
+
+    public void testTablesMatchSourceFiles() throws IOException {
+        for (String version : new String[]{"13.0.0", "14.0.0"}) {
+            // Relative to the module directory, where tests are run.
+            byte[] expected = WcWidthTableGenerator.readWidths(new File("src/main/unicode/" + version + "/widths.txt"));
+            WcWidth wcWidth = WcWidth.forUnicodeVersion(version);
+            assertEquals(version, wcWidth.getUnicodeVersion());
+            for (int c = 0; c <= Character.MAX_CODE_POINT; c++) {
+                if (wcWidth.getWidth(c) != expected[c]) fail("Wrong width for code point " + Integer.toHexString(c) + " in " + version);
+            }
+        }
+    }
+
+    public void testOutsideOfUnicode() {
+        assertWidthIs(0, -1);
+        assertWidthIs(0, Integer.MIN_VALUE);
+        assertWidthIs(1, Character.MAX_CODE_POINT + 1);
+        assertWidthIs(1, Integer.MAX_VALUE);
+    }
+
+    public void testUnicodeVersions() {
+        assertSame(WcWidth.getDefault(), WcWidth.forUnicodeVersion(WcWidth.DEFAULT_UNICODE_VERSION));
+        assertEquals("13.0.0", WcWidth.getDefault().getUnicodeVersion());
+
+        WcWidth unicode13 = WcWidth.forUnicodeVersion("13.0.0");
+        WcWidth unicode14 = WcWidth.forUnicodeVersion("14.0.0");
+        // MELTING FACE, new in Unicode 14.
+        assertEquals(1, unicode13.getWidth(0x1FAE0));
+        assertEquals(2, unicode14.getWidth(0x1FAE0));
+        // HANUNOO SIGN PAMUDPOD, a spacing mark since Unicode 14.
+        assertEquals(0, unicode13.getWidth(0x1734));
+        assertEquals(1, unicode14.getWidth(0x1734));
+
+        for (String invalidVersion : new String[]{"9.0.0", "", "../13.0.0", "13.0.0/"}) {
+            try {
+                WcWidth.forUnicodeVersion(invalidVersion);
+                fail("Expected no table for " + invalidVersion);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    public void testEmulatorUsesUnicodeVersion() {
+        // HANUNOO SIGN PAMUDPOD is combining in Unicode 13 and spacing in 14.
+        byte[] pamudpod = "\u1734".getBytes(StandardCharsets.UTF_8);
+        for (String version : new String[]{"13.0.0", "14.0.0"}) {
+            TerminalEmulator emulator = new TerminalEmulator(new TerminalTestCase.MockTerminalOutput(), 5, 2, 2,
+                WcWidth.forUnicodeVersion(version));
+            emulator.append(pamudpod, pamudpod.length);
+            assertEquals(version, WcWidth.forUnicodeVersion(version).getWidth(0x1734), emulator.getCursorCol());
+        }
+    }
+
+}
@@ -1,53 +1,70 @@
 package com.termux.terminal;
 
-/** A circular byte buffer allowing one producer and one consumer thread. */
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular byte buffer allowing one producer and one consumer thread.
+ * <p>
+ * No lock is taken when handing over data: the producer only advances {@link #mTail} and the consumer only advances
+ * {@link #mHead}, both being volatile counters of the total number of bytes written and read. A thread which has to
+ * wait for the other side parks itself after announcing so in {@link #mWaitingReader} or {@link #mWaitingWriter}.
+ * <p>
+ * Several threads may take turns as producer or consumer if they synchronize between themselves, so that only one of
+ * them uses the queue at a time.
+ */
 final class ByteQueue {
 
     private final byte[] mBuffer;
-    private int mHead;
-    private int mStoredBytes;
-    private boolean mOpen = true;
+    /** The total number of bytes read. Only written by the consumer. */
+    private volatile long mHead;
+    /** The total number of bytes written. Only written by the producer. */
+    private volatile long mTail;
+    private volatile boolean mOpen = true;
+    /** The consumer thread if parked waiting for data, else null. */
+    private volatile Thread mWaitingReader;
+    /** The producer thread if parked waiting for space, else null. */
+    private volatile Thread mWaitingWriter;
 
     public ByteQueue(int size) {
         mBuffer = new byte[size];
     }
 
-    public synchronized void close() {
+    public void close() {
         mOpen = false;
-        notify();
+        LockSupport.unpark(mWaitingReader);
+        LockSupport.unpark(mWaitingWriter);
     }
 
-    public synchronized int read(byte[] buffer, boolean block) {
-        while (mStoredBytes == 0 && mOpen) {
-            if (block) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // Ignore.
-                }
-            } else {
-                return 0;
+    /** Returns whether a non-blocking {@link #read(byte[], boolean)} would return no bytes. */
+    public boolean isEmpty() {
+        return mTail == mHead || !mOpen;
+    }
+
+    public int read(byte[] buffer, boolean block) {
+        final long head = mHead;
+        long tail = mTail;
+        if (tail == head && mOpen) {
+            if (!block) return 0;
+            mWaitingReader = Thread.currentThread();
+            // Check again after announcing that we are waiting, since the writer might have missed that.
+            while ((tail = mTail) == head && mOpen) {
+                LockSupport.park(this);
+                // Ignore interruption, as when waiting on a monitor previously.
+                Thread.interrupted();
             }
+            mWaitingReader = null;
         }
         if (!mOpen) return -1;
 
-        int totalRead = 0;
-        int bufferLength = mBuffer.length;
-        boolean wasFull = bufferLength == mStoredBytes;
-        int length = buffer.length;
-        int offset = 0;
-        while (length > 0 && mStoredBytes > 0) {
-            int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
-            int bytesToCopy = Math.min(length, oneRun);
-            System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
-            mHead += bytesToCopy;
-            if (mHead >= bufferLength) mHead = 0;
-            mStoredBytes -= bytesToCopy;
-            length -= bytesToCopy;
-            offset += bytesToCopy;
-            totalRead += bytesToCopy;
-        }
-        if (wasFull) notify();
+        final int bufferLength = mBuffer.length;
+        int totalRead = (int) Math.min(buffer.length, tail - head);
+        int start = (int) (head % bufferLength);
+        int firstRun = Math.min(totalRead, bufferLength - start);
+        System.arraycopy(mBuffer, start, buffer, 0, firstRun);
+        if (firstRun < totalRead) System.arraycopy(mBuffer, 0, buffer, firstRun, totalRead - firstRun);
+        mHead = head + totalRead;
+
+        LockSupport.unpark(mWaitingWriter);
         return totalRead;
     }
 
@@ -64,44 +81,31 @@ final class ByteQueue {
         }
 
         final int bufferLength = mBuffer.length;
-
-        synchronized (this) {
-            while (lengthToWrite > 0) {
-                while (bufferLength == mStoredBytes && mOpen) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        // Ignore.
-                    }
-                }
-                if (!mOpen) return false;
-                final boolean wasEmpty = mStoredBytes == 0;
-                int bytesToWriteBeforeWaiting = Math.min(lengthToWrite, bufferLength - mStoredBytes);
-                lengthToWrite -= bytesToWriteBeforeWaiting;
-
-                while (bytesToWriteBeforeWaiting > 0) {
-                    int tail = mHead + mStoredBytes;
-                    int oneRun;
-                    if (tail >= bufferLength) {
-                        // Buffer: [.............]
-                        // ________________H_______T
-                        // =>
-                        // Buffer: [.............]
-                        // ___________T____H
-                        // onRun= _____----_
-                        tail = tail - bufferLength;
-                        oneRun = mHead - tail;
-                    } else {
-                        oneRun = bufferLength - tail;
-                    }
-                    int bytesToCopy = Math.min(oneRun, bytesToWriteBeforeWaiting);
-                    System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-                    offset += bytesToCopy;
-                    bytesToWriteBeforeWaiting -= bytesToCopy;
-                    mStoredBytes += bytesToCopy;
+        long tail = mTail;
+        while (lengthToWrite > 0) {
+            long head = mHead;
+            if (tail - head == bufferLength && mOpen) {
+                mWaitingWriter = Thread.currentThread();
+                while (tail - (head = mHead) == bufferLength && mOpen) {
+                    LockSupport.park(this);
+                    Thread.interrupted();
                 }
-                if (wasEmpty) notify();
+                mWaitingWriter = null;
             }
+            if (!mOpen) return false;
+
+            // Copy as much as there is space for, in at most two runs as the free space may wrap around.
+            int bytesToWrite = (int) Math.min(lengthToWrite, bufferLength - (tail - head));
+            int start = (int) (tail % bufferLength);
+            int firstRun = Math.min(bytesToWrite, bufferLength - start);
+            System.arraycopy(buffer, offset, mBuffer, start, firstRun);
+            if (firstRun < bytesToWrite) System.arraycopy(buffer, offset + firstRun, mBuffer, 0, bytesToWrite - firstRun);
+            offset += bytesToWrite;
+            lengthToWrite -= bytesToWrite;
+            tail += bytesToWrite;
+            mTail = tail;
+
+            LockSupport.unpark(mWaitingReader);
         }
         return true;
     }
@@ -3,6 +3,7 @@ package com.termux.terminal;
 import android.annotation.SuppressLint;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
@@ -14,16 +15,24 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A terminal session, consisting of a process coupled to a terminal interface.
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
  * {@link #updateSize(int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
- * All terminal emulation and callback methods will be performed on the main thread.
+ * Output from the process is parsed by the emulator on a worker thread, while all callback methods are performed on the
+ * main thread. Code on the main thread reading the emulator state, such as when drawing the screen, should synchronize
+ * on the {@link #getEmulator() emulator}, which is held while output is being parsed.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
  * <p>
@@ -47,6 +56,21 @@ public final class TerminalSession extends TerminalOutput {
 
     }
 
+    static {
+        // Route warnings from the platform independent emulator core to logcat.
+        EmulatorDebug.setLogger(new TerminalLogger() {
+            @Override
+            public void logWarning(String tag, String message) {
+                Log.w(tag, message);
+            }
+
+            @Override
+            public void logError(String tag, String message) {
+                Log.e(tag, message);
+            }
+        });
+    }
+
     private static FileDescriptor wrapFileDescriptor(int fileDescriptor) {
         FileDescriptor result = new FileDescriptor();
         try {
@@ -68,6 +92,49 @@ public final class TerminalSession extends TerminalOutput {
 
     private static final int MSG_NEW_INPUT = 1;
     private static final int MSG_PROCESS_EXITED = 4;
+    private static final int MSG_SYNCHRONIZED_OUTPUT_TIMEOUT = 5;
+    private static final int MSG_SCREEN_UPDATE = 6;
+    private static final int MSG_TITLE_CHANGED = 7;
+    private static final int MSG_CLIPBOARD_TEXT = 8;
+    private static final int MSG_BELL = 9;
+    private static final int MSG_COLORS_CHANGED = 10;
+    private static final int MSG_RELEASE_ALTERNATE_BUFFER = 11;
+
+    /** The number of rows of history to keep by default, see {@link #setTranscriptRows(int)}. */
+    public static final int DEFAULT_TRANSCRIPT_ROWS = 100000;
+    /** How long the alternate screen buffer is kept after leaving it by default, see {@link #setAlternateBufferReleaseDelay(long)}. */
+    public static final long DEFAULT_ALTERNATE_BUFFER_RELEASE_DELAY_MILLIS = 60 * 1000;
+
+    /**
+     * Parses output from all sessions, so that busy sessions run in parallel and do not compete with the main thread.
+     * Each session has at most one task queued or running at a time, see {@link #scheduleParseInput()}.
+     */
+    private static final ExecutorService sParserPool = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private final AtomicInteger mThreadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TermSessionParser-" + mThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * How long a session may process input before the parsing task is requeued, letting other sessions on the
+     * {@link #sParserPool} run.
+     */
+    private static final int INPUT_TIME_BUDGET_MILLIS = 8;
+
+    /** The minimum time between screen update notifications, matching a 60 Hz display. */
+    private static final int SCREEN_UPDATE_INTERVAL_MILLIS = 16;
+
+    /**
+     * The longest time screen updates are held back while the application is in synchronized output mode, in case it
+     * never resets the mode.
+     */
+    private static final int SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS = 150;
 
     public final String mHandle = UUID.randomUUID().toString();
 
@@ -104,45 +171,151 @@ public final class TerminalSession extends TerminalOutput {
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
+    /** How many bytes of process output a recording may buffer before dropping output. */
+    private static final int RECORDING_BUFFER_SIZE = 1024 * 1024;
+
+    /** Recording of the process output, read by the input reader thread, or null if not recording. */
+    private volatile TerminalRecorder mRecorder;
+
+    /** The {@link SystemClock#uptimeMillis()} of the last screen update notification. */
+    private long mLastScreenUpdateTime;
+
     @SuppressLint("HandlerLeak")
     final Handler mMainThreadHandler = new Handler() {
-        final byte[] mReceiveBuffer = new byte[4 * 1024];
-
         @Override
         public void handleMessage(Message msg) {
-            int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-            if (bytesRead > 0) {
-                mEmulator.append(mReceiveBuffer, bytesRead);
-                notifyScreenUpdate();
+            switch (msg.what) {
+                case MSG_NEW_INPUT:
+                    boolean synchronizedOutput, alternateBufferActive, alternateBufferLeft;
+                    synchronized (mEmulator) {
+                        synchronizedOutput = mEmulator.isSynchronizedOutput();
+                        alternateBufferActive = mEmulator.isAlternateBufferActive();
+                        alternateBufferLeft = mEmulator.checkAlternateBufferLeft();
+                    }
+                    // Release the alternate screen buffer if the program leaving it, maybe within this same output,
+                    // does not soon enter it again.
+                    if (alternateBufferActive) {
+                        removeMessages(MSG_RELEASE_ALTERNATE_BUFFER);
+                    } else if (alternateBufferLeft) {
+                        removeMessages(MSG_RELEASE_ALTERNATE_BUFFER);
+                        if (mAlternateBufferReleaseDelay >= 0) {
+                            sendEmptyMessageDelayed(MSG_RELEASE_ALTERNATE_BUFFER, mAlternateBufferReleaseDelay);
+                        }
+                    }
+                    if (synchronizedOutput) {
+                        // Hold back the half finished screen until the mode is reset or the timeout fires.
+                        removeMessages(MSG_SCREEN_UPDATE);
+                        if (!hasMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT)) {
+                            sendEmptyMessageDelayed(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT, SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS);
+                        }
+                    } else {
+                        removeMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT);
+                        scheduleScreenUpdate();
+                    }
+                    break;
+                case MSG_SYNCHRONIZED_OUTPUT_TIMEOUT:
+                    // Show what we have, later output in synchronized output mode will schedule a new timeout.
+                case MSG_SCREEN_UPDATE:
+                    notifyScreenUpdate();
+                    break;
+                case MSG_TITLE_CHANGED:
+                    mChangeCallback.onTitleChanged(TerminalSession.this);
+                    break;
+                case MSG_CLIPBOARD_TEXT:
+                    mChangeCallback.onClipboardText(TerminalSession.this, (String) msg.obj);
+                    break;
+                case MSG_BELL:
+                    mChangeCallback.onBell(TerminalSession.this);
+                    break;
+                case MSG_COLORS_CHANGED:
+                    mChangeCallback.onColorsChanged(TerminalSession.this);
+                    break;
+                case MSG_RELEASE_ALTERNATE_BUFFER:
+                    synchronized (mEmulator) {
+                        mEmulator.releaseAlternateBuffer();
+                    }
+                    break;
+                case MSG_PROCESS_EXITED:
+                    int exitCode = (Integer) msg.obj;
+                    synchronized (mEmulator) {
+                        // Process what the reader thread got before the process exited.
+                        int bytesRead;
+                        while ((bytesRead = mProcessToTerminalIOQueue.read(mExitReceiveBuffer, false)) > 0) {
+                            mEmulator.append(mExitReceiveBuffer, bytesRead);
+                        }
+                    }
+                    cleanupResources(exitCode);
+                    mChangeCallback.onSessionFinished(TerminalSession.this);
+
+                    String exitDescription = "\r\n[Process completed";
+                    if (exitCode > 0) {
+                        // Non-zero process exit.
+                        exitDescription += " (code " + exitCode + ")";
+                    } else if (exitCode < 0) {
+                        // Negated signal.
+                        exitDescription += " (signal " + (-exitCode) + ")";
+                    }
+                    exitDescription += " - press Enter]";
+
+                    byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
+                    synchronized (mEmulator) {
+                        mEmulator.append(bytesToWrite, bytesToWrite.length);
+                    }
+                    notifyScreenUpdate();
+                    break;
             }
+        }
+    };
 
-            if (msg.what == MSG_PROCESS_EXITED) {
-                int exitCode = (Integer) msg.obj;
-                cleanupResources(exitCode);
-                mChangeCallback.onSessionFinished(TerminalSession.this);
-
-                String exitDescription = "\r\n[Process completed";
-                if (exitCode > 0) {
-                    // Non-zero process exit.
-                    exitDescription += " (code " + exitCode + ")";
-                } else if (exitCode < 0) {
-                    // Negated signal.
-                    exitDescription += " (signal " + (-exitCode) + ")";
-                }
-                exitDescription += " - press Enter]";
+    /** If {@link #mParseInputTask} is submitted to {@link #sParserPool} or running. */
+    private final AtomicBoolean mParseInputScheduled = new AtomicBoolean();
 
-                byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
-                mEmulator.append(bytesToWrite, bytesToWrite.length);
-                notifyScreenUpdate();
+    private final Runnable mParseInputTask = new Runnable() {
+        final byte[] mReceiveBuffer = new byte[4 * 1024];
+
+        @Override
+        public void run() {
+            // Give other sessions a chance if the process outputs faster than we can handle.
+            long deadline = SystemClock.uptimeMillis() + INPUT_TIME_BUDGET_MILLIS;
+            boolean receivedInput = false;
+            while (true) {
+                // Lock for each chunk only, so that the main thread can draw while a flood of output is processed.
+                synchronized (mEmulator) {
+                    int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
+                    if (bytesRead <= 0) break;
+                    mEmulator.append(mReceiveBuffer, bytesRead);
+                }
+                receivedInput = true;
+                if (SystemClock.uptimeMillis() >= deadline) break;
+            }
+            if (receivedInput && !mMainThreadHandler.hasMessages(MSG_NEW_INPUT)) {
+                mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
             }
+
+            mParseInputScheduled.set(false);
+            // Input written after the last read could not schedule a new task while this one was running.
+            if (!mProcessToTerminalIOQueue.isEmpty()) scheduleParseInput();
         }
     };
 
+    /** Used by the main thread to process the last output when the process exits. */
+    private final byte[] mExitReceiveBuffer = new byte[4 * 1024];
+
     private final String mShellPath;
     private final String mCwd;
     private final String[] mArgs;
     private final String[] mEnv;
 
+    /** The widths of characters for the emulator, see {@link #setUnicodeVersion(String)}. */
+    private WcWidth mWcWidth = WcWidth.getDefault();
+    /** The number of rows of history for the emulator, see {@link #setTranscriptRows(int)}. */
+    private int mTranscriptRows = DEFAULT_TRANSCRIPT_ROWS;
+    /** Where to spill the transcript to, or null, see {@link #setTranscriptSpill(File, int)}. */
+    private File mTranscriptSpillDirectory;
+    private int mTranscriptMemoryRows;
+    /** See {@link #setAlternateBufferReleaseDelay(long)}. */
+    private long mAlternateBufferReleaseDelay = DEFAULT_ALTERNATE_BUFFER_RELEASE_DELAY_MILLIS;
+
     public TerminalSession(String shellPath, String cwd, String[] args, String[] env, SessionChangedCallback changeCallback) {
         mChangeCallback = changeCallback;
 
@@ -158,7 +331,11 @@ public final class TerminalSession extends TerminalOutput {
             initializeEmulator(columns, rows);
         } else {
             JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns);
-            mEmulator.resize(columns, rows);
+            synchronized (mEmulator) {
+                mEmulator.resize(columns, rows);
+            }
+            TerminalRecorder recorder = mRecorder;
+            if (recorder != null) recorder.recordResize(columns, rows);
         }
     }
 
@@ -174,7 +351,8 @@ public final class TerminalSession extends TerminalOutput {
      * @param rows    The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int rows) {
-        mEmulator = new TerminalEmulator(this, columns, rows, /* transcript= */2000);
+        mEmulator = new TerminalEmulator(this, columns, rows, mTranscriptRows, mWcWidth);
+        if (mTranscriptSpillDirectory != null) mEmulator.spillTranscript(mTranscriptSpillDirectory, mTranscriptMemoryRows);
 
         int[] processId = new int[1];
         mTerminalFileDescriptor = JNI.createSubprocess(mShellPath, mCwd, mArgs, mEnv, processId, rows, columns);
@@ -190,8 +368,10 @@ public final class TerminalSession extends TerminalOutput {
                     while (true) {
                         int read = termIn.read(buffer);
                         if (read == -1) return;
+                        TerminalRecorder recorder = mRecorder;
+                        if (recorder != null) recorder.recordOutput(buffer, 0, read);
                         if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-                        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+                        scheduleParseInput();
                     }
                 } catch (Exception e) {
                     // Ignore, just shutting down.
@@ -228,7 +408,13 @@ public final class TerminalSession extends TerminalOutput {
     /** Write data to the shell process. */
     @Override
     public void write(byte[] data, int offset, int count) {
-        if (mShellPid > 0) mTerminalToProcessIOQueue.write(data, offset, count);
+        if (mShellPid > 0) {
+            // Both the main thread (user input) and the parser thread (replies to the process) write here, but the
+            // queue only allows a single producer at a time.
+            synchronized (mTerminalToProcessIOQueue) {
+                mTerminalToProcessIOQueue.write(data, offset, count);
+            }
+        }
     }
 
     /** Write the Unicode code point to the terminal encoded in UTF-8. */
@@ -274,15 +460,131 @@ public final class TerminalSession extends TerminalOutput {
 
     /** Notify the {@link #mChangeCallback} that the screen has changed. */
     protected void notifyScreenUpdate() {
+        mMainThreadHandler.removeMessages(MSG_SCREEN_UPDATE);
+        mLastScreenUpdateTime = SystemClock.uptimeMillis();
         mChangeCallback.onTextChanged(this);
     }
 
+    /**
+     * Notify about a changed screen at most once per {@link #SCREEN_UPDATE_INTERVAL_MILLIS}, as redrawing more often
+     * than the display refreshes only slows down processing of the output.
+     */
+    private void scheduleScreenUpdate() {
+        long nextUpdateTime = mLastScreenUpdateTime + SCREEN_UPDATE_INTERVAL_MILLIS;
+        if (SystemClock.uptimeMillis() >= nextUpdateTime) {
+            notifyScreenUpdate();
+        } else if (!mMainThreadHandler.hasMessages(MSG_SCREEN_UPDATE)) {
+            mMainThreadHandler.sendEmptyMessageAtTime(MSG_SCREEN_UPDATE, nextUpdateTime);
+        }
+    }
+
+    /**
+     * Process the output in {@link #mProcessToTerminalIOQueue} on the {@link #sParserPool}, unless already scheduled.
+     * A scheduled task will process this output as well, as it drains the whole queue.
+     */
+    void scheduleParseInput() {
+        if (mParseInputScheduled.compareAndSet(false, true)) sParserPool.execute(mParseInputTask);
+    }
+
+    /**
+     * Set the Unicode version for the widths of characters, which should be the one of the wcwidth(3) used by the
+     * process. Must be called before {@link #updateSize(int, int)} starts the emulator.
+     *
+     * @throws IllegalArgumentException if there is no table for the version, see {@link WcWidth#forUnicodeVersion(String)}.
+     */
+    public void setUnicodeVersion(String unicodeVersion) {
+        if (mEmulator != null) throw new IllegalStateException("Emulator already initialized");
+        mWcWidth = WcWidth.forUnicodeVersion(unicodeVersion);
+    }
+
+    /**
+     * Set the number of rows of history to keep, which {@link #shrinkTranscript()} does not lower. Must be called before
+     * {@link #updateSize(int, int)} starts the emulator.
+     */
+    public void setTranscriptRows(int transcriptRows) {
+        if (mEmulator != null) throw new IllegalStateException("Emulator already initialized");
+        if (transcriptRows <= 0) throw new IllegalArgumentException("transcriptRows=" + transcriptRows);
+        mTranscriptRows = transcriptRows;
+    }
+
+    /**
+     * Spill the history to memory-mapped files in a directory instead of keeping it in memory, except for the newest
+     * memoryRows rows. The files are deleted by {@link #clearTranscript()}. Must be called before
+     * {@link #updateSize(int, int)} starts the emulator.
+     */
+    public void setTranscriptSpill(File directory, int memoryRows) {
+        if (mEmulator != null) throw new IllegalStateException("Emulator already initialized");
+        mTranscriptSpillDirectory = directory;
+        mTranscriptMemoryRows = memoryRows;
+    }
+
+    /**
+     * Set how long the alternate screen buffer, as used by full screen programs, is kept after the program leaves it
+     * before it is released. A negative delay keeps it for the life of the session.
+     */
+    public void setAlternateBufferReleaseDelay(long delayMillis) {
+        mAlternateBufferReleaseDelay = delayMillis;
+    }
+
+    /**
+     * Halve the rows of history kept, dropping the oldest ones, to free memory. New output may fill the history up
+     * again.
+     *
+     * @return false if there was nothing to drop.
+     */
+    public boolean shrinkTranscript() {
+        if (mEmulator == null) return false;
+        boolean shrunk;
+        synchronized (mEmulator) {
+            shrunk = mEmulator.shrinkTranscript();
+        }
+        if (shrunk) notifyScreenUpdate();
+        return shrunk;
+    }
+
+    /** Returns an estimate of the bytes of memory taken by the rows of the emulator, see {@link #shrinkTranscript()}. */
+    public long getMemoryUsage() {
+        if (mEmulator == null) return 0;
+        synchronized (mEmulator) {
+            return mEmulator.getMemoryUsage();
+        }
+    }
+
+    /** Clear the transcript, as when the session is removed, deleting any files it was spilled to. */
+    public void clearTranscript() {
+        if (mEmulator == null) return;
+        synchronized (mEmulator) {
+            mEmulator.clearTranscript();
+        }
+    }
+
     /** Reset state for terminal emulator state. */
     public void reset() {
-        mEmulator.reset();
+        synchronized (mEmulator) {
+            mEmulator.reset();
+        }
         notifyScreenUpdate();
     }
 
+    /**
+     * Start recording the output of the process in the asciicast v2 format, stopping any previous recording. The
+     * stream is written and closed by a background thread, see {@link TerminalRecorder}. Must be called after
+     * {@link #updateSize(int, int)}.
+     */
+    public void startRecording(OutputStream out) {
+        stopRecording();
+        mRecorder = new TerminalRecorder(out, mEmulator.mColumns, mEmulator.mRows, RECORDING_BUFFER_SIZE);
+    }
+
+    /** Stop recording the process output, if recording. */
+    public void stopRecording() {
+        TerminalRecorder recorder = mRecorder;
+        if (recorder != null) {
+            mRecorder = null;
+            recorder.close();
+        }
+    }
+
     /** Finish this terminal session by sending SIGKILL to the shell. */
     public void finishIfRunning() {
         if (isRunning()) {
@@ -301,6 +603,8 @@ public final class TerminalSession extends TerminalOutput {
             mShellExitStatus = exitStatus;
         }
 
+        stopRecording();
+
         // Stop the reader and writer threads, and close the I/O streams
         mTerminalToProcessIOQueue.close();
         mProcessToTerminalIOQueue.close();
@@ -309,7 +613,7 @@ public final class TerminalSession extends TerminalOutput {
 
     @Override
     public void titleChanged(String oldTitle, String newTitle) {
-        mChangeCallback.onTitleChanged(this);
+        mMainThreadHandler.sendEmptyMessage(MSG_TITLE_CHANGED);
     }
 
     public synchronized boolean isRunning() {
@@ -323,17 +627,17 @@ public final class TerminalSession extends TerminalOutput {
 
     @Override
     public void clipboardText(String text) {
-        mChangeCallback.onClipboardText(this, text);
+        mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_CLIPBOARD_TEXT, text));
     }
 
     @Override
     public void onBell() {
-        mChangeCallback.onBell(this);
+        mMainThreadHandler.sendEmptyMessage(MSG_BELL);
     }
 
     @Override
     public void onColorsChanged() {
-        mChangeCallback.onColorsChanged(this);
+        mMainThreadHandler.sendEmptyMessage(MSG_COLORS_CHANGED);
     }
 
     public int getPid() {
@@ -28,6 +28,19 @@ public class ByteQueueTest extends TestCase {
 		assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, arr);
 	}
 
+	public void testIsEmpty() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		assertTrue(q.isEmpty());
+		assertTrue(q.write(new byte[]{1, 2}, 0, 2));
+		assertFalse(q.isEmpty());
+		assertEquals(2, q.read(new byte[10], false));
+		assertTrue(q.isEmpty());
+
+		assertTrue(q.write(new byte[]{1}, 0, 1));
+		q.close();
+		assertTrue("A closed queue has nothing to read", q.isEmpty());
+	}
+
 	public void testQueueWraparound() throws Exception {
 		ByteQueue q = new ByteQueue(10);
 
@@ -51,4 +64,71 @@ public class ByteQueueTest extends TestCase {
 		assertEquals(0, q.read(new byte[128], false));
 	}
 
+	public void testBlockingReadReturnsOnClose() throws Exception {
+		final ByteQueue q = new ByteQueue(10);
+		final int[] result = new int[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				result[0] = q.read(new byte[10], true);
+			}
+		};
+		reader.start();
+		Thread.sleep(50);
+		q.close();
+		reader.join(10_000);
+		assertFalse(reader.isAlive());
+		assertEquals(-1, result[0]);
+	}
+
+	public void testBlockingWriteReturnsOnClose() throws Exception {
+		final ByteQueue q = new ByteQueue(10);
+		final boolean[] result = {true};
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				result[0] = q.write(new byte[20], 0, 20);
+			}
+		};
+		writer.start();
+		Thread.sleep(50);
+		q.close();
+		writer.join(10_000);
+		assertFalse(writer.isAlive());
+		assertFalse(result[0]);
+	}
+
+	/** Transfer data between two threads with a queue much smaller than the writes and reads. */
+	public void testProducerAndConsumerThreads() throws Exception {
+		final ByteQueue q = new ByteQueue(37);
+		final int totalBytes = 1_000_000;
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				byte[] chunk = new byte[101];
+				int written = 0;
+				while (written < totalBytes) {
+					int length = Math.min(chunk.length, totalBytes - written);
+					for (int i = 0; i < length; i++) chunk[i] = (byte) (written + i);
+					assertTrue(q.write(chunk, 0, length));
+					written += length;
+				}
+			}
+		};
+		writer.start();
+
+		byte[] buffer = new byte[53];
+		int read = 0;
+		while (read < totalBytes) {
+			int bytesRead = q.read(buffer, true);
+			assertTrue(bytesRead > 0);
+			for (int i = 0; i < bytesRead; i++) {
+				if (buffer[i] != (byte) (read + i)) fail("Wrong byte at index " + (read + i));
+			}
+			read += bytesRead;
+		}
+		writer.join(10_000);
+		assertTrue(q.isEmpty());
+	}
+
 }
@@ -83,6 +83,16 @@ public final class TerminalView extends View {
     float mScaleFactor = 1.f;
     final GestureAndScaleRecognizer mGestureRecognizer;
 
+    /** How long to wait before checking again if a scale gesture, during which the terminal is not resized, has ended. */
+    private static final int SCALE_RESIZE_DELAY_MS = 100;
+    /** Resizes the terminal to the size reached by a scale gesture, see {@link #updateSize()}. */
+    private final Runnable mUpdateSizeAfterScale = new Runnable() {
+        @Override
+        public void run() {
+            updateSize();
+        }
+    };
+
     /** Keep track of where mouse touch event started which we report as mouse scroll. */
     private int mMouseScrollStartX = -1, mMouseScrollStartY = -1;
     /** Keep track of the time when a touch event leading to sending mouse scroll events started. */
@@ -173,7 +183,11 @@ public final class TerminalView extends View {
                 if (mouseTrackingAtStartOfFling) {
                     mScroller.fling(0, 0, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.mRows / 2, mEmulator.mRows / 2);
                 } else {
-                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                    int rowsInHistory;
+                    synchronized (mEmulator) {
+                        rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
+                    }
+                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -rowsInHistory, 0);
                 }
 
                 post(new Runnable() {
@@ -385,7 +399,10 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollRange() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows();
+        if (mEmulator == null) return 1;
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getActiveRows();
+        }
     }
 
     @Override
@@ -395,19 +412,27 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollOffset() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        if (mEmulator == null) return 1;
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        }
     }
 
     public void onScreenUpdated() {
         if (mEmulator == null) return;
 
-        int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
+        // Read and clear the scroll counter at once, as the emulator may be scrolling on another thread.
+        int rowsInHistory, rowShift;
+        synchronized (mEmulator) {
+            rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
+            rowShift = mEmulator.getScrollCounter();
+            mEmulator.clearScrollCounter();
+        }
         if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
 
         boolean skipScrolling = false;
         if (mIsSelectingText) {
             // Do not scroll when selecting text.
-            int rowShift = mEmulator.getScrollCounter();
             if (-mTopRow + rowShift > rowsInHistory) {
                 // .. unless we're hitting the end of history transcript, in which
                 // case we abort text selection and scroll to end.
@@ -431,8 +456,6 @@ public final class TerminalView extends View {
             mTopRow = 0;
         }
 
-        mEmulator.clearScrollCounter();
-
         invalidate();
         if (mAccessibilityEnabled) setContentDescription(getText());
     }
@@ -492,7 +515,13 @@ public final class TerminalView extends View {
                 // e.g. less, which shifts to the alt screen without mouse handling.
                 handleKeyCode(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0);
             } else {
-                mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
+                synchronized (mEmulator) {
+                    if (up && mTopRow - mEmulator.mRows < -mEmulator.getScreen().getActiveTranscriptRows()) {
+                        // Reflow older rows left by a resize as they are scrolled to.
+                        mEmulator.getScreen().reflowTranscript(mEmulator.mRows);
+                    }
+                    mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
+                }
                 if (!awakenScrollBars()) invalidate();
             }
         }
@@ -750,6 +779,13 @@ public final class TerminalView extends View {
         int newRows = Math.max(4, (viewHeight - mRenderer.mFontLineSpacingAndAscent) / mRenderer.mFontLineSpacing);
 
         if (mEmulator == null || (newColumns != mEmulator.mColumns || newRows != mEmulator.mRows)) {
+            removeCallbacks(mUpdateSizeAfterScale);
+            if (mEmulator != null && mGestureRecognizer.isInProgress()) {
+                // Only the size at the end of pinching is reflowed and sent to the process, not those passed through.
+                postDelayed(mUpdateSizeAfterScale, SCALE_RESIZE_DELAY_MS);
+                invalidate();
+                return;
+            }
             mTermSession.updateSize(newColumns, newRows);
             mEmulator = mTermSession.getEmulator();
 
@@ -764,7 +800,10 @@ public final class TerminalView extends View {
         if (mEmulator == null) {
             canvas.drawColor(0XFF000000);
         } else {
-            mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2);
+            // The emulator is updated by a parser thread, see TerminalSession.
+            synchronized (mEmulator) {
+                mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2);
+            }
 
 
             SelectionModifierCursorController selectionController = getSelectionController();
@@ -786,14 +825,16 @@ public final class TerminalView extends View {
         mSelX1 = mSelX2 = cx;
         mSelY1 = mSelY2 = cy;
 
-        TerminalBuffer screen = mEmulator.getScreen();
-        if (!" ".equals(screen.getSelectedText(mSelX1, mSelY1, mSelX1, mSelY1))) {
-            // Selecting something other than whitespace. Expand to word.
-            while (mSelX1 > 0 && !"".equals(screen.getSelectedText(mSelX1 - 1, mSelY1, mSelX1 - 1, mSelY1))) {
-                mSelX1--;
-            }
-            while (mSelX2 < mEmulator.mColumns - 1 && !"".equals(screen.getSelectedText(mSelX2 + 1, mSelY1, mSelX2 + 1, mSelY1))) {
-                mSelX2++;
+        synchronized (mEmulator) {
+            TerminalBuffer screen = mEmulator.getScreen();
+            if (!" ".equals(screen.getSelectedText(mSelX1, mSelY1, mSelX1, mSelY1))) {
+                // Selecting something other than whitespace. Expand to word.
+                while (mSelX1 > 0 && !"".equals(screen.getSelectedText(mSelX1 - 1, mSelY1, mSelX1 - 1, mSelY1))) {
+                    mSelX1--;
+                }
+                while (mSelX2 < mEmulator.mColumns - 1 && !"".equals(screen.getSelectedText(mSelX2 + 1, mSelY1, mSelX2 + 1, mSelY1))) {
+                    mSelX2++;
+                }
             }
         }
         startTextSelectionMode();
@@ -804,7 +845,9 @@ public final class TerminalView extends View {
     }
 
     private CharSequence getText() {
-        return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
+        }
     }
 
     @Override
@@ -1219,7 +1262,10 @@ public final class TerminalView extends View {
                     }
                     switch (item.getItemId()) {
                         case 1:
-                            String selectedText = mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2).trim();
+                            String selectedText;
+                            synchronized (mEmulator) {
+                                selectedText = mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2).trim();
+                            }
                             mTermSession.clipboardText(selectedText);
                             break;
                         case 2:
@@ -1303,7 +1349,10 @@ public final class TerminalView extends View {
         public void updatePosition(HandleView handle, int x, int y) {
 
             TerminalBuffer screen = mEmulator.getScreen();
-            final int scrollRows = screen.getActiveRows() - mEmulator.mRows;
+            final int scrollRows;
+            synchronized (mEmulator) {
+                scrollRows = screen.getActiveRows() - mEmulator.mRows;
+            }
             if (handle == mStartHandle) {
                 mSelX1 = getCursorX(x);
                 mSelY1 = getCursorY(y);
@@ -1387,8 +1436,12 @@ public final class TerminalView extends View {
 
 
         private int getValidCurX(TerminalBuffer screen, int cy, int cx) {
-            String line = screen.getSelectedText(0, cy, cx, cy);
+            String line;
+            synchronized (mEmulator) {
+                line = screen.getSelectedText(0, cy, cx, cy);
+            }
             if (!TextUtils.isEmpty(line)) {
+                final WcWidth wcWidth = mEmulator.getWcWidth();
                 int col = 0;
                 for (int i = 0, len = line.length(); i < len; i++) {
                     char ch1 = line.charAt(i);
@@ -1400,9 +1453,9 @@ public final class TerminalView extends View {
                     int wc;
                     if (Character.isHighSurrogate(ch1) && i + 1 < len) {
                         char ch2 = line.charAt(++i);
-                        wc = WcWidth.width(Character.toCodePoint(ch1, ch2));
+                        wc = wcWidth.getWidth(Character.toCodePoint(ch1, ch2));
                     } else {
-                        wc = WcWidth.width(ch1);
+                        wc = wcWidth.getWidth(ch1);
                     }
 
                     final int cend = col + wc;